@@ -0,0 +1,93 @@
+import java.util.Random;
+
+/**
+ * Measures separable against direct convolution on a 4000x3000 ARGB buffer.
+ * <p>
+ * For every radius the binomial Gaussian blur, which runs as two 1-D passes, is compared with the
+ * same kernel with one weight changed, which is no longer separable and is convolved directly.
+ * Run it on a desktop JVM together with the sources of the filter core:
+ * </p>
+ *
+ * <pre>
+ * javac -d out src/PointOperation.java src/PointOperations.java src/LookupTableOperation.java \
+ *         src/PixelKernels.java src/Tiling.java src/NeighbourhoodOperation.java \
+ *         src/ConvolutionKernel.java bench/ConvolutionBenchmark.java
+ * java -cp out ConvolutionBenchmark
+ * </pre>
+ */
+public class ConvolutionBenchmark {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        final int[] src = new int[WIDTH * HEIGHT];
+        final int[] dst = new int[WIDTH * HEIGHT];
+        Random random = new Random(42);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        for (int radius = 1; radius <= ConvolutionKernel.MAX_GAUSSIAN_RADIUS; radius++) {
+            int size = 2 * radius + 1;
+            final ConvolutionKernel separable = ConvolutionKernel.gaussianBlur(radius);
+            final ConvolutionKernel direct = new ConvolutionKernel(perturbedGaussian(size),
+                    Math.pow(4, size - 1), 0);
+            String name = size + "x" + size;
+            report(name + ", separable", measure(new Runnable() {
+                @Override
+                public void run() {
+                    separable.convolve(src, dst, WIDTH, HEIGHT);
+                }
+            }));
+            report(name + ", direct", measure(new Runnable() {
+                @Override
+                public void run() {
+                    direct.convolve(src, dst, WIDTH, HEIGHT);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Returns the binomial Gaussian with the corner weight raised by one, which makes it
+     * non-separable while it costs the same to convolve directly.
+     */
+    private static double[][] perturbedGaussian(int size) {
+        double[] binomial = new double[size];
+        binomial[0] = 1;
+        for (int k = 1; k < size; k++) {
+            binomial[k] = binomial[k - 1] * (size - k) / k;
+        }
+        double[][] matrix = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrix[i][j] = binomial[i] * binomial[j];
+            }
+        }
+        matrix[0][0]++;
+        return matrix;
+    }
+
+    /**
+     * Runs a task a few times to warm up the JIT and returns the best time of the measured runs.
+     */
+    private static long measure(Runnable task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%-20s %8.2f ms %6.2f ns/pixel", name, nanos / 1e6,
+                (double) nanos / (WIDTH * HEIGHT)));
+    }
+}
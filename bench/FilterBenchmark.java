@@ -0,0 +1,465 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures every filter of ImageFilters that runs on the pure-Java {@code int[]} core, at several
+ * resolutions and thread counts, and writes the results as a CSV baseline.
+ * <p>
+ * Every filter runs the way ImageFilters runs it, in parallel strips on the
+ * {@link StripExecutor} of an {@link ImageProcessingService}. For every filter, resolution and
+ * thread count the best time of the measured runs is reported in ns/pixel, together with the
+ * median, the bytes allocated per run by all threads and the number and time of the garbage
+ * collections during the measured runs. Most point filters run in place on the same buffer again
+ * and again, the ones that would drift the pixels towards black or white copy the source first,
+ * and the others read the source and write a second buffer. The effects that draw on a Canvas
+ * (highlight, round corner, watermark and reflection) are not part of the core and are not
+ * measured.
+ * </p>
+ * <p>
+ * With {@code -baseline} the results are compared with an earlier CSV, and every filter that
+ * got more than {@link #TOLERANCE} slower is marked. Run it on a desktop JVM with a heap of
+ * about 2 GB for 48 MP:
+ * </p>
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out src/PointOperation.java \
+ *         src/PointOperations.java src/PixelKernels.java src/LookupTableOperation.java \
+ *         src/Tiling.java src/NeighbourhoodOperation.java src/ConvolutionKernel.java \
+ *         src/BoxBlur.java src/UnsharpMask.java src/AdaptiveThreshold.java src/GreyImage.java \
+ *         src/FilterPipeline.java src/StripPartitioner.java src/StripExecutor.java \
+ *         src/ImageProcessingService.java src/ScanSettings.java src/ScratchBuffers.java \
+ *         server/VectorPixelKernels.java bench/FilterBenchmark.java
+ * java -Xmx2g --add-modules jdk.incubator.vector -cp out FilterBenchmark [-sizes 1,12,48] \
+ *         [-threads 1,4] [-runs 5] [-out filter-baseline.csv] [-baseline old.csv]
+ * </pre>
+ * <p>
+ * Leave out {@code --add-modules} to measure the scalar kernels. The same filters run as the JMH
+ * suite {@code jmh.ImageFiltersBenchmark} with {@code gradle jmh}.
+ * </p>
+ */
+public class FilterBenchmark {
+    /**
+     * The aspect ratio of the measured images, that of a phone camera.
+     */
+    private static final double ASPECT = 4.0 / 3.0;
+    private static final int WARMUP_RUNS = 2;
+    private static final int DEFAULT_RUNS = 5;
+    /**
+     * How much slower than the baseline a filter may get before it is marked.
+     */
+    private static final double TOLERANCE = 0.10;
+    private static final String HEADER = "filter,megapixels,threads,ns_per_pixel,best_ms,"
+            + "median_ms,allocated_bytes_per_run,gc_count,gc_ms";
+
+    /**
+     * A filter run over a whole image.
+     */
+    interface Filter {
+        /**
+         * @param src
+         *            The source pixels, must not be changed.
+         * @param pixels
+         *            The pixels the point filters change in place.
+         * @param dst
+         *            The output of the other filters.
+         */
+        void run(int[] src, int[] pixels, int[] dst, int width, int height,
+                StripExecutor executor);
+    }
+
+    private static final class Result {
+        final String mFilter;
+        final int mMegapixels;
+        final int mThreads;
+        final double mNanosPerPixel;
+        final long mBest;
+        final long mMedian;
+        final long mAllocated;
+        final long mCollections;
+        final long mCollectionMillis;
+
+        Result(String filter, int megapixels, int threads, double nanosPerPixel, long best,
+                long median, long allocated, long collections, long collectionMillis) {
+            mFilter = filter;
+            mMegapixels = megapixels;
+            mThreads = threads;
+            mNanosPerPixel = nanosPerPixel;
+            mBest = best;
+            mMedian = median;
+            mAllocated = allocated;
+            mCollections = collections;
+            mCollectionMillis = collectionMillis;
+        }
+
+        String getKey() {
+            return mFilter + "," + mMegapixels + "," + mThreads;
+        }
+
+        String toCsv() {
+            return String.format("%s,%d,%d,%.3f,%.2f,%.2f,%d,%d,%d", mFilter, mMegapixels,
+                    mThreads, mNanosPerPixel, mBest / 1e6, mMedian / 1e6, mAllocated,
+                    mCollections, mCollectionMillis);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {
+                1, 12, 48
+        };
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = cores > 1 ? new int[] {
+                1, cores
+        } : new int[] {
+                1
+        };
+        int runs = DEFAULT_RUNS;
+        File out = new File("filter-baseline.csv");
+        File baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                usage();
+                return;
+            }
+            if (args[i].equals("-sizes")) {
+                sizes = parseList(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = parseList(args[++i]);
+            } else if (args[i].equals("-runs")) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-out")) {
+                out = new File(args[++i]);
+            } else if (args[i].equals("-baseline")) {
+                baseline = new File(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        Map<String, Double> previous = baseline != null ? readBaseline(baseline) : null;
+
+        System.out.println("kernels: " + (PixelKernels.getInstance().isAccelerated() ? "vector"
+                : "scalar"));
+        Map<String, Filter> filters = createFilters();
+        List<Result> results = new ArrayList<Result>();
+        for (int megapixels : sizes) {
+            int width = getWidth(megapixels);
+            int height = getHeight(megapixels);
+            int[] src = createSource(width * height);
+            int[] pixels = src.clone();
+            int[] dst = new int[src.length];
+            for (int threadCount : threads) {
+                ImageProcessingService service = new ImageProcessingService(threadCount, 1, null);
+                try {
+                    for (Map.Entry<String, Filter> filter : filters.entrySet()) {
+                        Result result = measure(filter.getKey(), filter.getValue(), megapixels,
+                                threadCount, src, pixels, dst, width, height, service
+                                        .getStripExecutor(), runs);
+                        results.add(result);
+                        report(result, previous);
+                    }
+                } finally {
+                    service.shutdown();
+                }
+            }
+        }
+
+        PrintWriter writer = new PrintWriter(out, "UTF-8");
+        try {
+            writer.println(HEADER);
+            for (Result result : results) {
+                writer.println(result.toCsv());
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println("wrote " + out);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: FilterBenchmark [-sizes 1,12,48] [-threads 1,4] [-runs N] "
+                + "[-out file.csv] [-baseline old.csv]");
+    }
+
+    private static int[] parseList(String list) {
+        String[] fields = list.split(",");
+        int[] values = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = Integer.parseInt(fields[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Reads the ns/pixel of every filter, resolution and thread count of a baseline.
+     */
+    private static Map<String, Double> readBaseline(File file) throws IOException {
+        Map<String, Double> baseline = new HashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(file + " is not a baseline of this benchmark");
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                baseline.put(fields[0] + "," + fields[1] + "," + fields[2], Double
+                        .parseDouble(fields[3]));
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+
+    /**
+     * @return The width of an image of the given size in the aspect ratio of a phone camera.
+     */
+    static int getWidth(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * ASPECT));
+    }
+
+    /**
+     * @return The height of an image of the given size in the aspect ratio of a phone camera.
+     */
+    static int getHeight(int megapixels) {
+        return (int) Math.round(megapixels * 1e6 / getWidth(megapixels));
+    }
+
+    /**
+     * Creates the same random opaque pixels for every run.
+     */
+    static int[] createSource(int length) {
+        int[] src = new int[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return src;
+    }
+
+    /**
+     * Creates the filters with the parameters ImageFilters is usually called with, in the
+     * order of ImageFilters.
+     */
+    static Map<String, Filter> createFilters() {
+        Map<String, Filter> filters = new LinkedHashMap<String, Filter>();
+        filters.put("applyInvertEffect", point(PointOperations.invert()));
+        filters.put("applyGreyscaleEffect", point(PointOperations.greyscale()));
+        filters.put("applyGammaEffect", point(PointOperations.gamma(1.8, 1.8, 1.8)));
+        filters.put("applyColorFilterEffect", point(PointOperations.colorFilter(1, 0.8, 0.6)));
+        filters.put("applySepiaToningEffect", point(PointOperations.sepiaToning(10, 1.5, 0.6,
+                0.12)));
+        filters.put("applyDecreaseColorDepthEffect", point(PointOperations
+                .decreaseColorDepth(32)));
+        filters.put("applyContrastEffect", point(PointOperations.contrast(50)));
+        filters.put("applyBrightnessEffect", point(PointOperations.brightness(40)));
+        filters.put("applyGaussianBlurEffect", neighbourhood(ConvolutionKernel.gaussianBlur()));
+        filters.put("applyBoxBlurEffect", new Filter() {
+            private final BoxBlur mBlur = new BoxBlur(5);
+
+            @Override
+            public void run(int[] src, int[] pixels, int[] dst, int width, int height,
+                    StripExecutor executor) {
+                mBlur.blur(pixels, dst, width, height, executor);
+            }
+        });
+        filters.put("applySharpenEffect", neighbourhood(ConvolutionKernel.sharpen(11)));
+        filters.put("applyUnsharpMaskEffect", neighbourhood(new UnsharpMask(
+                ScanSettings.SHARPEN_AMOUNT, ScanSettings.SHARPEN_RADIUS,
+                ScanSettings.SHARPEN_THRESHOLD)));
+        filters.put("applyAdaptiveThresholdEffect", new Filter() {
+            private final AdaptiveThreshold mThreshold = new AdaptiveThreshold(
+                    AdaptiveThreshold.Method.SAUVOLA, 40, ScanSettings.THRESHOLD_SENSITIVITY);
+
+            @Override
+            public void run(int[] src, int[] pixels, int[] dst, int width, int height,
+                    StripExecutor executor) {
+                mThreshold.threshold(src, width, height, false, executor);
+            }
+        });
+        filters.put("applyMeanRemovalEffect", neighbourhood(ConvolutionKernel.meanRemoval()));
+        filters.put("applySmoothEffect", neighbourhood(ConvolutionKernel.smooth(1)));
+        filters.put("applyEmbossEffect", neighbourhood(ConvolutionKernel.emboss()));
+        filters.put("applyEngraveEffect", neighbourhood(ConvolutionKernel.engrave()));
+        filters.put("applyBoostEffect", point(PointOperations.boost(1, 0.5f)));
+        filters.put("applyTintEffect", point(PointOperations.tint(50)));
+        filters.put("applyFleaEffect", copied(PointOperations.flea()));
+        filters.put("applyBlackFilter", copied(PointOperations.blackNoise()));
+        filters.put("applySnowEffect", copied(PointOperations.snow()));
+        filters.put("applyShadingFilter", point(PointOperations.shading(0xffff8040)));
+        filters.put("applySaturationFilter", copied(PointOperations.saturation(2)));
+        filters.put("applyHueFilter", copied(PointOperations.hue(2)));
+        filters.put("enhanceImage", point(PointOperations.enhance(
+                ScanSettings.BRIGHTNESS_CHANGE, ScanSettings.CONTRAST_CHANGE)));
+        filters.put("changeColorTransparancy", point(PointOperations.makeTransparent(
+                0xffffffff)));
+        filters.put("applyFilterPipeline", new Filter() {
+            // the contrast scan on ARGB pixels
+            private final FilterPipeline mPipeline = new FilterPipeline.Builder().add(
+                    PointOperations.enhance(ScanSettings.BRIGHTNESS_CHANGE,
+                            ScanSettings.CONTRAST_CHANGE)).add(new UnsharpMask(
+                    ScanSettings.SHARPEN_AMOUNT, ScanSettings.SHARPEN_RADIUS,
+                    ScanSettings.SHARPEN_THRESHOLD)).build();
+
+            @Override
+            public void run(int[] src, int[] pixels, int[] dst, int width, int height,
+                    StripExecutor executor) {
+                mPipeline.run(pixels, width, height, executor);
+            }
+        });
+        filters.put("scan", new Filter() {
+            // the contrast scan of CropActivity, on one byte per pixel
+            private final LookupTableOperation mTone = ScanSettings.getTone(false);
+            private final UnsharpMask mSharpen = new UnsharpMask(ScanSettings.SHARPEN_AMOUNT,
+                    ScanSettings.SHARPEN_RADIUS, ScanSettings.SHARPEN_THRESHOLD);
+
+            @Override
+            public void run(int[] src, int[] pixels, int[] dst, int width, int height,
+                    StripExecutor executor) {
+                GreyImage image = new GreyImage(width, height);
+                mTone.toGrey(src, 0, image.getPixels(), 0, width * height);
+                mSharpen.sharpen(image, executor);
+            }
+        });
+        return filters;
+    }
+
+    private static Filter point(final PointOperation operation) {
+        return new Filter() {
+            @Override
+            public void run(int[] src, final int[] pixels, int[] dst, final int width,
+                    int height, StripExecutor executor) {
+                executor.execute(height, new StripExecutor.StripTask() {
+                    @Override
+                    public void run(int top, int bottom) {
+                        operation.apply(pixels, top * width, (bottom - top) * width);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Runs a point operation on a fresh copy of the source every time, for the operations that
+     * would otherwise drift the pixels towards black or white over the runs.
+     */
+    private static Filter copied(final PointOperation operation) {
+        return new Filter() {
+            @Override
+            public void run(final int[] src, int[] pixels, final int[] dst, final int width,
+                    int height, StripExecutor executor) {
+                executor.execute(height, new StripExecutor.StripTask() {
+                    @Override
+                    public void run(int top, int bottom) {
+                        int offset = top * width;
+                        int length = (bottom - top) * width;
+                        System.arraycopy(src, offset, dst, offset, length);
+                        operation.apply(dst, offset, length);
+                    }
+                });
+            }
+        };
+    }
+
+    private static Filter neighbourhood(final NeighbourhoodOperation operation) {
+        return new Filter() {
+            @Override
+            public void run(final int[] src, int[] pixels, final int[] dst, final int width,
+                    final int height, StripExecutor executor) {
+                executor.execute(height, new StripExecutor.StripTask() {
+                    @Override
+                    public void run(int top, int bottom) {
+                        operation.apply(src, 0, dst, 0, width, height, top, bottom);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Runs a filter a few times to warm up the JIT and measures the runs after it.
+     */
+    private static Result measure(String name, Filter filter, int megapixels, int threads,
+            int[] src, int[] pixels, int[] dst, int width, int height, StripExecutor executor,
+            int runs) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            filter.run(src, pixels, dst, width, height, executor);
+        }
+        long[] times = new long[runs];
+        long allocated = getAllocatedBytes();
+        long collections = getCollections();
+        long collectionMillis = getCollectionMillis();
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            filter.run(src, pixels, dst, width, height, executor);
+            times[i] = System.nanoTime() - start;
+        }
+        // threads that ended in the meantime take their counts with them
+        allocated = Math.max(0, getAllocatedBytes() - allocated) / runs;
+        collections = getCollections() - collections;
+        collectionMillis = getCollectionMillis() - collectionMillis;
+        Arrays.sort(times);
+        return new Result(name, megapixels, threads, (double) times[0] / (width * height),
+                times[0], times[runs / 2], allocated, collections, collectionMillis);
+    }
+
+    /**
+     * Returns the bytes allocated by all live threads so far, or 0 if the JVM does not count
+     * them.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long getCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getCollectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static void report(Result result, Map<String, Double> baseline) {
+        String line = String.format("%-30s %3d MP %2d threads %7.2f ns/pixel %12d B/run "
+                + "%3d GCs", result.mFilter, result.mMegapixels, result.mThreads,
+                result.mNanosPerPixel, result.mAllocated, result.mCollections);
+        Double previous = baseline != null ? baseline.get(result.getKey()) : null;
+        if (previous != null) {
+            double change = result.mNanosPerPixel / previous - 1;
+            line += String.format(" %+6.1f%%%s", change * 100, change > TOLERANCE ? " SLOWER"
+                    : "");
+        }
+        System.out.println(line);
+    }
+}
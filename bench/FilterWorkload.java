@@ -0,0 +1,38 @@
+/**
+ * Runs one filter of {@link FilterBenchmark} for the JMH suite {@code jmh.ImageFiltersBenchmark},
+ * on the same image and with the same parameters.
+ */
+public final class FilterWorkload implements jmh.ImageFiltersBenchmark.Workload {
+    private FilterBenchmark.Filter mFilter;
+    private int mWidth;
+    private int mHeight;
+    private int[] mSrc;
+    private int[] mPixels;
+    private int[] mDst;
+    private ImageProcessingService mService;
+
+    @Override
+    public void setUp(String filter, int megapixels, int threads) {
+        mFilter = FilterBenchmark.createFilters().get(filter);
+        if (mFilter == null) {
+            throw new IllegalArgumentException("Unknown filter " + filter);
+        }
+        mWidth = FilterBenchmark.getWidth(megapixels);
+        mHeight = FilterBenchmark.getHeight(megapixels);
+        mSrc = FilterBenchmark.createSource(mWidth * mHeight);
+        mPixels = mSrc.clone();
+        mDst = new int[mSrc.length];
+        mService = new ImageProcessingService(threads, 1, null);
+    }
+
+    @Override
+    public int run() {
+        mFilter.run(mSrc, mPixels, mDst, mWidth, mHeight, mService.getStripExecutor());
+        return mWidth * mHeight;
+    }
+
+    @Override
+    public void tearDown() {
+        mService.shutdown();
+    }
+}
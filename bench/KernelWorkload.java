@@ -0,0 +1,28 @@
+/**
+ * Runs one kernel of {@link VectorKernelBenchmark} for the JMH suite
+ * {@code jmh.PixelKernelsBenchmark}, on the same buffer and with the same tables.
+ */
+public final class KernelWorkload implements jmh.PixelKernelsBenchmark.Workload {
+    private VectorKernelBenchmark.Kernel mKernel;
+    private PixelKernels mKernels;
+
+    @Override
+    public void setUp(String kernel, boolean vector) {
+        mKernel = VectorKernelBenchmark.createKernels().get(kernel);
+        if (mKernel == null) {
+            throw new IllegalArgumentException("Unknown kernel " + kernel);
+        }
+        mKernels = vector ? PixelKernels.getInstance() : PixelKernels.scalar();
+        if (vector && !mKernels.isAccelerated()) {
+            throw new IllegalStateException("No vector kernels, run with --add-modules "
+                    + "jdk.incubator.vector and without -D" + PixelKernels.VECTOR_PROPERTY
+                    + "=false");
+        }
+    }
+
+    @Override
+    public int run() {
+        mKernel.run(mKernels);
+        return VectorKernelBenchmark.WIDTH * VectorKernelBenchmark.HEIGHT;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Random;
+
+/**
+ * Measures what the traversal order costs on a 4000x3000 ARGB buffer.
+ * <p>
+ * Compares the old column-major loops of ImageFilters with row-major traversal for a point
+ * operation, and full-width rows with square tiles of several sizes for the 3x3 convolution.
+ * Run it on a desktop JVM together with the sources of the filter core:
+ * </p>
+ *
+ * <pre>
+ * javac -d out src/PointOperation.java src/PointOperations.java src/LookupTableOperation.java \
+ *         src/PixelKernels.java src/Tiling.java src/NeighbourhoodOperation.java \
+ *         src/ConvolutionKernel.java bench/TilingBenchmark.java
+ * java -cp out TilingBenchmark
+ * </pre>
+ * <p>
+ * Prefix the java command with {@code perf stat -e cache-misses,cache-references} to see the
+ * cache misses behind the timings.
+ * </p>
+ */
+public class TilingBenchmark {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int[] src = new int[WIDTH * HEIGHT];
+        int[] dst = new int[WIDTH * HEIGHT];
+        Random random = new Random(42);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        report("point, column-major", measure(new ColumnMajorGreyscale(src, dst)));
+        report("point, row-major", measure(new RowMajorGreyscale(src, dst)));
+
+        ConvolutionKernel kernel = new ConvolutionKernel(new double[][] {
+                {
+                        1, 2, 1
+                }, {
+                        2, 4, 2
+                }, {
+                        1, 2, 1
+                }
+        }, 16, 0);
+        report("3x3, full-width rows",
+                measure(new TiledConvolution(kernel, src, dst, new Tiling(WIDTH, 1))));
+        int[] cacheSizes = new int[] {
+                8 * 1024, 32 * 1024, 256 * 1024, 1024 * 1024
+        };
+        for (int cacheBytes : cacheSizes) {
+            Tiling tiling = Tiling.squares(cacheBytes);
+            report("3x3, " + tiling.getTileWidth() + "x" + tiling.getTileHeight() + " tiles",
+                    measure(new TiledConvolution(kernel, src, dst, tiling)));
+        }
+    }
+
+    /**
+     * Runs a task a few times to warm up the JIT and returns the best time of the measured runs.
+     */
+    private static long measure(Runnable task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%-28s %8.2f ms %6.2f ns/pixel", name, nanos / 1e6,
+                (double) nanos / (WIDTH * HEIGHT)));
+    }
+
+    /**
+     * The traversal order ImageFilters used before the tiling layer.
+     */
+    private static class ColumnMajorGreyscale implements Runnable {
+        private final int[] mSrc;
+        private final int[] mDst;
+
+        ColumnMajorGreyscale(int[] src, int[] dst) {
+            mSrc = src;
+            mDst = dst;
+        }
+
+        @Override
+        public void run() {
+            for (int x = 0; x < WIDTH; ++x) {
+                for (int y = 0; y < HEIGHT; ++y) {
+                    mDst[y * WIDTH + x] = grey(mSrc[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    private static class RowMajorGreyscale implements Runnable {
+        private final int[] mSrc;
+        private final int[] mDst;
+
+        RowMajorGreyscale(int[] src, int[] dst) {
+            mSrc = src;
+            mDst = dst;
+        }
+
+        @Override
+        public void run() {
+            for (int y = 0; y < HEIGHT; ++y) {
+                for (int x = 0; x < WIDTH; ++x) {
+                    mDst[y * WIDTH + x] = grey(mSrc[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    private static int grey(int pixel) {
+        int v = (int) (0.299 * ((pixel >> 16) & 0xff) + 0.587 * ((pixel >> 8) & 0xff) + 0.114
+                * (pixel & 0xff));
+        return (pixel & 0xff000000) | (v << 16) | (v << 8) | v;
+    }
+
+    private static class TiledConvolution implements Runnable {
+        private final ConvolutionKernel mKernel;
+        private final int[] mSrc;
+        private final int[] mDst;
+        private final Tiling mTiling;
+
+        TiledConvolution(ConvolutionKernel kernel, int[] src, int[] dst, Tiling tiling) {
+            mKernel = kernel;
+            mSrc = src;
+            mDst = dst;
+            mTiling = tiling;
+        }
+
+        @Override
+        public void run() {
+            mKernel.convolve(mSrc, mDst, WIDTH, HEIGHT, mTiling);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the vectorized {@link PixelKernels} against the scalar ones on a 4000x3000 ARGB
+ * buffer.
+ * <p>
+ * Compares the greyscale lookup of {@code enhanceImage}, the channel lookups of the contrast and
+ * brightness filters and the 3x3 convolution of the sharpen and mean removal kernels. Run it on a
+ * JVM of Java 17 or later together with the sources of the filter core and the server build:
+ * </p>
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out src/PointOperation.java \
+ *         src/PointOperations.java src/LookupTableOperation.java src/PixelKernels.java \
+ *         server/VectorPixelKernels.java bench/VectorKernelBenchmark.java
+ * java --add-modules jdk.incubator.vector -cp out VectorKernelBenchmark
+ * </pre>
+ * <p>
+ * The vector kernels use the widest vectors of the CPU. Add {@code -XX:UseAVX=2} to the java
+ * command to measure AVX2 on a CPU with AVX-512. The same kernels run as the JMH suite
+ * {@code jmh.PixelKernelsBenchmark} with {@code gradle jmh}, which measures the scalar kernels,
+ * the widest vectors and AVX2 in one run.
+ * </p>
+ */
+public class VectorKernelBenchmark {
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    /**
+     * One kernel over the whole buffer.
+     */
+    interface Kernel {
+
+        /**
+         * Runs the kernel with the scalar or the vector implementation.
+         *
+         * @param kernels
+         *            The implementation to run.
+         */
+        void run(PixelKernels kernels);
+    }
+
+    public static void main(String[] args) {
+        PixelKernels vector = PixelKernels.getInstance();
+        if (!vector.isAccelerated()) {
+            System.out.println("No vector kernels, add the server build and "
+                    + "--add-modules jdk.incubator.vector");
+            return;
+        }
+        Map<String, Kernel> kernels = createKernels();
+        for (final PixelKernels implementation : new PixelKernels[] {
+                PixelKernels.scalar(), vector
+        }) {
+            String name = implementation.isAccelerated() ? "vector" : "scalar";
+            for (Map.Entry<String, Kernel> kernel : kernels.entrySet()) {
+                final Kernel task = kernel.getValue();
+                report(kernel.getKey() + ", " + name, measure(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(implementation);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Creates the kernels with the tables and weights of the filters they come from, over a
+     * buffer of random pixels of {@link #WIDTH} by {@link #HEIGHT}.
+     */
+    static Map<String, Kernel> createKernels() {
+        final int[] src = new int[WIDTH * HEIGHT];
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        final int[] dst = new int[WIDTH * HEIGHT];
+        Random random = new Random(42);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        // the tables of enhanceImage(0, 3), contrast(50) and brightness(40)
+        final int[] grey = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] contrastRed = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] contrastGreen = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] contrastBlue = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] brightnessRed = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] brightnessGreen = new int[LookupTableOperation.TABLE_SIZE];
+        final int[] brightnessBlue = new int[LookupTableOperation.TABLE_SIZE];
+        double contrast = Math.pow((100 + 50) / 100.0, 2);
+        for (int i = 0; i < LookupTableOperation.TABLE_SIZE; i++) {
+            int value = PointOperations.clamp((int) (((i / 255.0 - 0.5) * 3 + 0.5) * 255.0));
+            grey[i] = (value << 16) | (value << 8) | value;
+            value = PointOperations.clamp((int) (((i / 255.0 - 0.5) * contrast + 0.5) * 255.0));
+            contrastRed[i] = value << 16;
+            contrastGreen[i] = value << 8;
+            contrastBlue[i] = value;
+            value = PointOperations.clamp(i + 40);
+            brightnessRed[i] = value << 16;
+            brightnessGreen[i] = value << 8;
+            brightnessBlue[i] = value;
+        }
+
+        Map<String, Kernel> tasks = new LinkedHashMap<String, Kernel>();
+        tasks.put("enhance", new Kernel() {
+            @Override
+            public void run(PixelKernels kernels) {
+                System.arraycopy(src, 0, pixels, 0, src.length);
+                kernels.lookupGreyscale(pixels, 0, pixels.length, grey);
+            }
+        });
+        tasks.put("contrast", new Kernel() {
+            @Override
+            public void run(PixelKernels kernels) {
+                System.arraycopy(src, 0, pixels, 0, src.length);
+                kernels.lookupChannels(pixels, 0, pixels.length, contrastRed, contrastGreen,
+                        contrastBlue);
+            }
+        });
+        tasks.put("brightness", new Kernel() {
+            @Override
+            public void run(PixelKernels kernels) {
+                System.arraycopy(src, 0, pixels, 0, src.length);
+                kernels.lookupChannels(pixels, 0, pixels.length, brightnessRed,
+                        brightnessGreen, brightnessBlue);
+            }
+        });
+        tasks.put("sharpen", new Kernel() {
+            @Override
+            public void run(PixelKernels kernels) {
+                // ConvolutionKernel.sharpen(11): the weights over 11 - 8, plus 1
+                convolve(kernels, src, dst, new int[] {
+                        0, -2, 0, -2, 11, -2, 0, -2, 0
+                }, 3, 3);
+            }
+        });
+        tasks.put("meanRemoval", new Kernel() {
+            @Override
+            public void run(PixelKernels kernels) {
+                convolve(kernels, src, dst, new int[] {
+                        -1, -1, -1, -1, 9, -1, -1, -1, -1
+                }, 0, 1);
+            }
+        });
+        return tasks;
+    }
+
+    private static void convolve(PixelKernels kernels, int[] src, int[] dst, int[] weights,
+            int bias, int divisor) {
+        for (int y = 1; y < HEIGHT - 1; y++) {
+            kernels.convolve3x3(src, y * WIDTH + 1, WIDTH, dst, y * WIDTH + 1, WIDTH - 2, weights,
+                    bias, divisor);
+        }
+    }
+
+    /**
+     * Runs a task a few times to warm up the JIT and returns the best time of the measured runs.
+     */
+    private static long measure(Runnable task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%-20s %8.2f ms %6.2f ns/pixel", name, nanos / 1e6,
+                (double) nanos / (WIDTH * HEIGHT)));
+    }
+}
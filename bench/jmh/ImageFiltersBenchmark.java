@@ -0,0 +1,136 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The filters of FilterBenchmark as a JMH suite, for every resolution and thread count.
+ * <p>
+ * Every invocation runs one filter over a whole image, like one run of FilterBenchmark. Next to
+ * the time per image, the {@code pixels} counter gives the time per pixel, and the {@code gc}
+ * profiler the bytes allocated per image and the number of garbage collections. Run it with the
+ * {@code jmh} task of the Gradle build, which writes the results as a JSON baseline:
+ * </p>
+ *
+ * <pre>
+ * gradle jmh
+ * gradle jmh -PjmhArgs="ImageFiltersBenchmark -p filter=enhanceImage,scan -p megapixels=12"
+ * </pre>
+ * <p>
+ * JMH does not accept benchmarks in the default package, and a class in a package cannot refer to
+ * the filter core in the default package, so the filters are run by a {@link Workload} that is
+ * loaded by name.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Xmx3g", "--add-modules", "jdk.incubator.vector"
+})
+@State(Scope.Benchmark)
+public class ImageFiltersBenchmark {
+    /**
+     * The workload that runs the filters of FilterBenchmark.
+     */
+    private static final String WORKLOAD_CLASS = "FilterWorkload";
+
+    /**
+     * One filter over one image.
+     */
+    public interface Workload {
+
+        /**
+         * Creates the filter, the image and the threads to run it on.
+         *
+         * @param filter
+         *            The name of the filter in FilterBenchmark.
+         * @param megapixels
+         *            The size of the image.
+         * @param threads
+         *            The number of threads to run the filter on.
+         */
+        void setUp(String filter, int megapixels, int threads);
+
+        /**
+         * Runs the filter over the whole image.
+         *
+         * @return The number of pixels filtered.
+         */
+        int run();
+
+        /**
+         * Stops the threads.
+         */
+        void tearDown();
+    }
+
+    /**
+     * Counts the pixels filtered in an iteration, which JMH reports as the time per pixel.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Pixels {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    @Param({
+            "applyInvertEffect", "applyGreyscaleEffect", "applyGammaEffect",
+            "applyColorFilterEffect", "applySepiaToningEffect", "applyDecreaseColorDepthEffect",
+            "applyContrastEffect", "applyBrightnessEffect", "applyGaussianBlurEffect",
+            "applyBoxBlurEffect", "applySharpenEffect", "applyUnsharpMaskEffect",
+            "applyAdaptiveThresholdEffect", "applyMeanRemovalEffect", "applySmoothEffect",
+            "applyEmbossEffect", "applyEngraveEffect", "applyBoostEffect", "applyTintEffect",
+            "applyFleaEffect", "applyBlackFilter", "applySnowEffect", "applyShadingFilter",
+            "applySaturationFilter", "applyHueFilter", "enhanceImage", "changeColorTransparancy",
+            "applyFilterPipeline", "scan"
+    })
+    public String filter;
+    @Param({
+            "1", "12", "48"
+    })
+    public int megapixels;
+    @Param({
+            "1", "4"
+    })
+    public int threads;
+
+    private Workload mWorkload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        mWorkload = (Workload) Class.forName(WORKLOAD_CLASS).getDeclaredConstructor()
+                .newInstance();
+        mWorkload.setUp(filter, megapixels, threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWorkload.tearDown();
+    }
+
+    @Benchmark
+    public void run(Pixels counter) {
+        counter.pixels += mWorkload.run();
+    }
+}
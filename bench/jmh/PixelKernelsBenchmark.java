@@ -0,0 +1,105 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The kernels of VectorKernelBenchmark as a JMH suite, scalar against vector.
+ * <p>
+ * {@link #run} uses the widest vectors of the CPU, AVX-512 where the JVM uses it, and
+ * {@link #runAvx2} forks a JVM limited to AVX2 with {@code -XX:UseAVX=2}, so one run of the
+ * {@code jmh} task of the Gradle build puts the scalar, AVX2 and widest vector numbers next to
+ * each other in the JSON baseline. The {@code pixels} counter gives the time per pixel:
+ * </p>
+ *
+ * <pre>
+ * gradle jmh -PjmhArgs="PixelKernelsBenchmark"
+ * gradle jmh -PjmhArgs="PixelKernelsBenchmark -p kernel=sharpen"
+ * </pre>
+ * <p>
+ * On a CPU without AVX-512 both benchmarks measure AVX2, and on a CPU that is not x86 the flag
+ * is ignored. The kernels are run by a {@link Workload} that is loaded by name, for the same
+ * reason as in {@link ImageFiltersBenchmark}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Xmx1g", "--add-modules", "jdk.incubator.vector"
+})
+@State(Scope.Benchmark)
+public class PixelKernelsBenchmark {
+    /**
+     * The workload that runs the kernels of VectorKernelBenchmark.
+     */
+    private static final String WORKLOAD_CLASS = "KernelWorkload";
+
+    /**
+     * One kernel over one buffer.
+     */
+    public interface Workload {
+
+        /**
+         * Creates the kernel and its buffer.
+         *
+         * @param kernel
+         *            The name of the kernel in VectorKernelBenchmark.
+         * @param vector
+         *            Whether to run the vector kernels instead of the scalar ones.
+         */
+        void setUp(String kernel, boolean vector);
+
+        /**
+         * Runs the kernel over the whole buffer.
+         *
+         * @return The number of pixels processed.
+         */
+        int run();
+    }
+
+    @Param({
+            "enhance", "contrast", "brightness", "sharpen", "meanRemoval"
+    })
+    public String kernel;
+    @Param({
+            "scalar", "vector"
+    })
+    public String kernels;
+
+    private Workload mWorkload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        mWorkload = (Workload) Class.forName(WORKLOAD_CLASS).getDeclaredConstructor()
+                .newInstance();
+        mWorkload.setUp(kernel, kernels.equals("vector"));
+    }
+
+    @Benchmark
+    public void run(ImageFiltersBenchmark.Pixels counter) {
+        counter.pixels += mWorkload.run();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {
+            "-Xmx1g", "--add-modules", "jdk.incubator.vector",
+            "-XX:+IgnoreUnrecognizedVMOptions", "-XX:UseAVX=2"
+    })
+    public void runAvx2(ImageFiltersBenchmark.Pixels counter) {
+        counter.pixels += mWorkload.run();
+    }
+}
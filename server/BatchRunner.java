@@ -0,0 +1,482 @@
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Crops and enhances archived photos on a server, with the filter core and the
+ * {@link ScanSettings} of {@link CropActivity}.
+ * <p>
+ * The jobs are a directory, whose JPEG and PNG files are enhanced as a whole, or a job list with
+ * one job per line: the path of the photo, relative to the list, optionally followed by the left,
+ * top, right and bottom of the crop. Empty lines and lines starting with {@code #} are skipped.
+ * Every result is written to the output directory as {@code <name>_cropped.jpg}, like on the
+ * device. When several jobs have the same name, like two crops of a photo, {@code a.jpg} next to
+ * {@code a.png}, or photos of the same name in different directories, the later jobs get a
+ * number appended to the name, {@code <name>_2_cropped.jpg} and so on, in the order of the jobs.
+ * </p>
+ * <p>
+ * The photos run through three pipelined stages: decoder threads decode the crops into
+ * {@link GreyImage}s, an {@link ImageProcessingService} sharpens or thresholds them in parallel
+ * strips, and encoder threads write the JPEG files. A bounded number of images is in flight over
+ * all stages, so the memory stays bounded however many jobs there are. At the end the throughput
+ * is printed in images/s and MP/s of cropped pixels, with the busy time of every stage. With
+ * {@code -trace} every photo is recorded in a {@link ScanTrace}, and the percentiles of every
+ * stage are printed as well.
+ * </p>
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -d out src/PointOperation.java \
+ *         src/PointOperations.java src/PixelKernels.java src/LookupTableOperation.java \
+ *         src/NeighbourhoodOperation.java src/BoxBlur.java src/UnsharpMask.java \
+ *         src/AdaptiveThreshold.java src/GreyImage.java src/StripPartitioner.java \
+ *         src/StripExecutor.java src/ImageProcessingService.java src/ScanSettings.java \
+ *         src/ScanTrace.java src/ScratchBuffers.java server/*.java
+ * java --add-modules jdk.incubator.vector -cp out BatchRunner [-threshold] [-trace] \
+ *         [-quality Q] [-threads N] [-decoders N] [-encoders N] [-images N] \
+ *         &lt;directory or job list&gt; &lt;output directory&gt;
+ * </pre>
+ */
+public final class BatchRunner {
+    private static final String SUFFIX = "_cropped.jpg";
+    /**
+     * The quality the processed images have always been stored with, as JpegWriter.
+     */
+    private static final int DEFAULT_QUALITY = 100;
+    private static final int DEFAULT_DECODERS = 2;
+    private static final int DEFAULT_ENCODERS = 2;
+    /**
+     * The number of images in flight, enough to keep every stage busy.
+     */
+    private static final int DEFAULT_IMAGES = 6;
+
+    /**
+     * A photo and the region to crop.
+     */
+    public static final class Job {
+        final File mFile;
+        final Rectangle mRegion;
+
+        /**
+         * Creates a job.
+         *
+         * @param file
+         *            The photo.
+         * @param region
+         *            The region to crop, or null for the whole photo.
+         */
+        public Job(File file, Rectangle region) {
+            mFile = file;
+            mRegion = region;
+        }
+
+        @Override
+        public String toString() {
+            return mRegion != null ? mFile + " " + mRegion : mFile.toString();
+        }
+    }
+
+    private final boolean mThreshold;
+    private final File mOutput;
+    private final ImageIoJpegWriter mWriter;
+    private final ExecutorService mDecoders;
+    private final ExecutorService mEncoders;
+    private final ImageProcessingService mService;
+    /**
+     * The permits of the images in flight, taken before a decode and given back after the
+     * encode.
+     */
+    private final Semaphore mImages;
+    private final ScanTrace mTrace;
+
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mPixels = new AtomicLong();
+    private final AtomicLong mDecodeNanos = new AtomicLong();
+    private final AtomicLong mFilterNanos = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+
+    /**
+     * Creates a runner.
+     *
+     * @param threshold
+     *            Whether to threshold the crops into black and white instead of enhancing the
+     *            contrast and sharpening them.
+     * @param quality
+     *            The JPEG quality, from 0 to 100.
+     * @param threads
+     *            The number of threads that filter the strips of the images.
+     * @param decoders
+     *            The number of threads that decode photos.
+     * @param encoders
+     *            The number of threads that encode and write the results.
+     * @param images
+     *            The number of images in flight, over all stages.
+     * @param output
+     *            The directory to write the results to.
+     * @param trace
+     *            Records the stages of every photo if it is enabled.
+     */
+    public BatchRunner(boolean threshold, int quality, int threads, int decoders, int encoders,
+            int images, File output, ScanTrace trace) {
+        mThreshold = threshold;
+        mOutput = output;
+        mWriter = new ImageIoJpegWriter(quality);
+        mDecoders = Executors.newFixedThreadPool(decoders);
+        mEncoders = Executors.newFixedThreadPool(encoders);
+        // every image in flight can be in the filter stage, so a submit is never rejected
+        mService = new ImageProcessingService(threads, images, mEncoders);
+        mImages = new Semaphore(images);
+        mTrace = trace;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean threshold = false;
+        boolean trace = false;
+        int quality = DEFAULT_QUALITY;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int decoders = DEFAULT_DECODERS;
+        int encoders = DEFAULT_ENCODERS;
+        int images = DEFAULT_IMAGES;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            String option = args[i];
+            if (option.equals("-threshold")) {
+                threshold = true;
+            } else if (option.equals("-trace")) {
+                trace = true;
+            } else if (i + 1 < args.length && option.equals("-quality")) {
+                quality = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && option.equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && option.equals("-decoders")) {
+                decoders = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && option.equals("-encoders")) {
+                encoders = Integer.parseInt(args[++i]);
+            } else if (i + 1 < args.length && option.equals("-images")) {
+                images = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (args.length - i != 2) {
+            usage();
+            return;
+        }
+        File input = new File(args[i]);
+        File output = new File(args[i + 1]);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Could not create " + output);
+        }
+
+        List<Job> jobs = input.isDirectory() ? listDirectory(input) : readJobs(input);
+        // keeps every photo, for the percentiles over the whole batch
+        ScanTrace scanTrace = new ScanTrace(Math.max(jobs.size(), 1));
+        if (trace) {
+            scanTrace.enable(new ManagementTraceProbe(), null);
+        }
+        BatchRunner runner = new BatchRunner(threshold, quality, threads, decoders, encoders,
+                images, output, scanTrace);
+        try {
+            long start = System.nanoTime();
+            runner.run(jobs);
+            runner.report(System.nanoTime() - start);
+        } finally {
+            runner.shutdown();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BatchRunner [-threshold] [-trace] [-quality Q] [-threads N] "
+                + "[-decoders N] [-encoders N] [-images N] <directory or job list> "
+                + "<output directory>");
+    }
+
+    /**
+     * Returns a job for every JPEG and PNG file of a directory, in the order of their names.
+     */
+    static List<Job> listDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        Arrays.sort(files);
+        List<Job> jobs = new ArrayList<Job>();
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")
+                    || name.endsWith(".png"))) {
+                jobs.add(new Job(file, null));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Reads a job list.
+     */
+    static List<Job> readJobs(File list) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader reader = new BufferedReader(new FileReader(list));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 1 && fields.length != 5) {
+                    throw new IOException(list + ":" + number + ": expected a path and "
+                            + "optionally left, top, right and bottom");
+                }
+                File file = new File(fields[0]);
+                if (!file.isAbsolute()) {
+                    file = new File(list.getAbsoluteFile().getParentFile(), fields[0]);
+                }
+                Rectangle region = null;
+                if (fields.length == 5) {
+                    try {
+                        int left = Integer.parseInt(fields[1]);
+                        int top = Integer.parseInt(fields[2]);
+                        region = new Rectangle(left, top, Integer.parseInt(fields[3]) - left,
+                                Integer.parseInt(fields[4]) - top);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(list + ":" + number + ": " + e.getMessage());
+                    }
+                }
+                jobs.add(new Job(file, region));
+            }
+        } finally {
+            reader.close();
+        }
+        return jobs;
+    }
+
+    /**
+     * Runs jobs and waits until all of them are written or failed.
+     *
+     * @param jobs
+     *            The jobs to run.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while it waits.
+     */
+    public void run(List<Job> jobs) throws InterruptedException {
+        List<File> outputs = getOutputFiles(jobs);
+        CountDownLatch finished = new CountDownLatch(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            // wait until an image has left the pipeline
+            mImages.acquire();
+            mDecoders.execute(new DecodeTask(jobs.get(i), outputs.get(i), finished));
+        }
+        finished.await();
+    }
+
+    /**
+     * Stops the threads of the runner.
+     */
+    public void shutdown() {
+        mDecoders.shutdown();
+        mService.shutdown();
+        mEncoders.shutdown();
+    }
+
+    private void report(long nanos) {
+        double seconds = nanos / 1e9;
+        double megapixels = mPixels.get() / 1e6;
+        int done = mDone.get();
+        System.out.println(String.format("%d images, %d failed, %.1f MP in %.2f s", done,
+                mFailed.get(), megapixels, seconds));
+        System.out.println(String.format("%.2f images/s, %.2f MP/s", done / seconds, megapixels
+                / seconds));
+        if (done > 0) {
+            System.out.println(String.format("per image: decode %.1f ms, filter %.1f ms, "
+                    + "encode %.1f ms", mDecodeNanos.get() / 1e6 / done, mFilterNanos.get()
+                    / 1e6 / done, mEncodeNanos.get() / 1e6 / done));
+        }
+        if (mTrace.isEnabled()) {
+            for (ScanTrace.Stage stage : ScanTrace.Stage.values()) {
+                ScanTrace.Summary summary = mTrace.getSummary(stage);
+                if (summary.getCount() > 0) {
+                    System.out.println(summary);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a different output file for every job, so no result overwrites another one.
+     */
+    private List<File> getOutputFiles(List<Job> jobs) {
+        List<File> outputs = new ArrayList<File>(jobs.size());
+        // the names taken, in lower case for file systems that ignore the case
+        Set<String> taken = new HashSet<String>();
+        for (Job job : jobs) {
+            String name = job.mFile.getName();
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String output = base + SUFFIX;
+            for (int number = 2; !taken.add(output.toLowerCase(Locale.ROOT)); number++) {
+                output = base + "_" + number + SUFFIX;
+            }
+            outputs.add(new File(mOutput, output));
+        }
+        return outputs;
+    }
+
+    private void finish(CountDownLatch finished) {
+        mImages.release();
+        finished.countDown();
+    }
+
+    private void fail(Job job, Throwable error, CountDownLatch finished) {
+        mFailed.incrementAndGet();
+        System.err.println("Could not process " + job + ": " + error);
+        finish(finished);
+    }
+
+    /**
+     * Decodes the crop of a job and hands it to the filter stage.
+     */
+    private final class DecodeTask implements Runnable {
+        private final Job mJob;
+        private final File mOutputFile;
+        private final CountDownLatch mFinished;
+
+        DecodeTask(Job job, File outputFile, CountDownLatch finished) {
+            mJob = job;
+            mOutputFile = outputFile;
+            mFinished = finished;
+        }
+
+        @Override
+        public void run() {
+            GreyImage image;
+            ScanTrace.Scan scan = mTrace.startScan();
+            long start = System.nanoTime();
+            scan.begin(ScanTrace.Stage.DECODE_REGION);
+            try {
+                image = ImageIoCropper.decodeGrey(mJob.mFile, mJob.mRegion, ScanSettings
+                        .getTone(mThreshold));
+            } catch (IOException e) {
+                fail(mJob, e, mFinished);
+                return;
+            } catch (RuntimeException e) {
+                fail(mJob, e, mFinished);
+                return;
+            } catch (OutOfMemoryError e) {
+                // a huge photo, the next ones may still fit
+                fail(mJob, e, mFinished);
+                return;
+            }
+            mDecodeNanos.addAndGet(System.nanoTime() - start);
+            scan.end(ScanTrace.Stage.DECODE_REGION, image.getByteCount());
+            try {
+                mService.submit(new FilterTask(image, scan), new EncodeCallback(mJob, mOutputFile,
+                        scan, mFinished));
+            } catch (RejectedExecutionException e) {
+                // the runner was shut down
+                fail(mJob, e, mFinished);
+            }
+        }
+    }
+
+    /**
+     * Sharpens or thresholds a crop, like the FilterImageTask of {@link CropActivity}.
+     */
+    private final class FilterTask implements Callable<GreyImage> {
+        private final GreyImage mImage;
+        private final ScanTrace.Scan mScan;
+
+        FilterTask(GreyImage image, ScanTrace.Scan scan) {
+            mImage = image;
+            mScan = scan;
+        }
+
+        @Override
+        public GreyImage call() {
+            long start = System.nanoTime();
+            mScan.begin(ScanTrace.Stage.ENHANCE);
+            StripExecutor executor = mService.getStripExecutor();
+            GreyImage result = mImage;
+            if (mThreshold) {
+                int radius = ScanSettings.getThresholdRadius(mImage.getWidth(), mImage
+                        .getHeight());
+                result = new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA, radius,
+                        ScanSettings.THRESHOLD_SENSITIVITY).threshold(mImage, executor);
+            } else {
+                new UnsharpMask(ScanSettings.SHARPEN_AMOUNT, ScanSettings.SHARPEN_RADIUS,
+                        ScanSettings.SHARPEN_THRESHOLD).sharpen(mImage, executor);
+            }
+            mFilterNanos.addAndGet(System.nanoTime() - start);
+            long bytes = mImage.getByteCount();
+            mScan.end(ScanTrace.Stage.ENHANCE, result != mImage ? 2 * bytes : bytes);
+            return result;
+        }
+    }
+
+    /**
+     * Writes a filtered crop, on an encoder thread.
+     */
+    private final class EncodeCallback implements ImageProcessingService.Callback<GreyImage> {
+        private final Job mJob;
+        private final File mOutputFile;
+        private final ScanTrace.Scan mScan;
+        private final CountDownLatch mFinished;
+
+        EncodeCallback(Job job, File outputFile, ScanTrace.Scan scan, CountDownLatch finished) {
+            mJob = job;
+            mOutputFile = outputFile;
+            mScan = scan;
+            mFinished = finished;
+        }
+
+        @Override
+        public void onResult(GreyImage image) {
+            long start = System.nanoTime();
+            mScan.begin(ScanTrace.Stage.ENCODE);
+            try {
+                mWriter.write(image, mOutputFile);
+            } catch (IOException e) {
+                fail(mJob, e, mFinished);
+                return;
+            } catch (RuntimeException e) {
+                fail(mJob, e, mFinished);
+                return;
+            } catch (OutOfMemoryError e) {
+                // a huge crop, the next ones may still fit
+                fail(mJob, e, mFinished);
+                return;
+            }
+            mEncodeNanos.addAndGet(System.nanoTime() - start);
+            mScan.end(ScanTrace.Stage.ENCODE, image.getByteCount());
+            mScan.finish();
+            mPixels.addAndGet((long) image.getWidth() * image.getHeight());
+            mDone.incrementAndGet();
+            finish(mFinished);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            fail(mJob, error, mFinished);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes a region of a photo into a {@link GreyImage} with ImageIO, the server counterpart of
+ * {@link RegionCropper}.
+ * <p>
+ * Only the region is decoded, in one pass since ImageIO decodes a JPEG from the start for every
+ * read. The decoded pixels are then converted a band of rows at a time with the same
+ * {@link LookupTableOperation} as on the device, so only the ARGB values of one band exist at a
+ * time.
+ * </p>
+ */
+public final class ImageIoCropper {
+    /**
+     * The number of rows converted to grey at a time.
+     */
+    private static final int BAND_ROWS = 64;
+
+    private ImageIoCropper() {
+    }
+
+    /**
+     * Decodes a region of a photo into a greyscale image.
+     *
+     * @param file
+     *            The JPEG or PNG file.
+     * @param region
+     *            The region in the coordinates of the photo, clipped to its bounds, or null for
+     *            the whole photo.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @return The greyscale region.
+     * @throws IOException
+     *             if the file cannot be read or is not a supported image.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo or the output of the tone curve is not
+     *             grey.
+     */
+    public static GreyImage decodeGrey(File file, Rectangle region, LookupTableOperation tone)
+            throws IOException {
+        if (!tone.isGrey()) {
+            throw new IllegalArgumentException("The output of the tone curve is not grey");
+        }
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException("Could not open " + file);
+        }
+        BufferedImage decoded;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException(file + " is not a supported image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                Rectangle bounds = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                Rectangle clipped = region != null ? region.intersection(bounds) : bounds;
+                if (clipped.isEmpty()) {
+                    throw new IllegalArgumentException("The region " + region
+                            + " is outside the photo");
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(clipped);
+                decoded = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        GreyImage image = new GreyImage(width, height);
+        int[] pixels = new int[Math.min(BAND_ROWS, height) * width];
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            int rows = Math.min(BAND_ROWS, height - top);
+            decoded.getRGB(0, top, width, rows, pixels, 0, width);
+            tone.toGrey(pixels, 0, image.getPixels(), top * width, rows * width);
+        }
+        return image;
+    }
+}
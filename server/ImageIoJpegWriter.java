@@ -0,0 +1,108 @@
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes greyscale images to JPEG files with ImageIO, the server counterpart of
+ * {@link JpegWriter}.
+ * <p>
+ * The image is encoded as a single channel JPEG straight from the array of the
+ * {@link GreyImage}, without a copy. Like on the device, every file is first written to a
+ * temporary file next to it and then renamed, so readers never see a partly written file. Unlike
+ * the NV21 encoder of the device, an odd last row or column is kept.
+ * </p>
+ * <p>
+ * A writer can be used from several threads at the same time.
+ * </p>
+ */
+public final class ImageIoJpegWriter {
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final ComponentColorModel GREY = new ComponentColorModel(ColorSpace
+            .getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE,
+            DataBuffer.TYPE_BYTE);
+
+    private final int mQuality;
+
+    /**
+     * Creates a writer.
+     *
+     * @param quality
+     *            The JPEG quality, from 0 to 100.
+     */
+    public ImageIoJpegWriter(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("The quality must be between 0 and 100");
+        }
+        mQuality = quality;
+    }
+
+    /**
+     * Encodes an image and writes it.
+     *
+     * @param image
+     *            The image to encode, is not changed.
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @throws IOException
+     *             if the file could not be written. The existing file is then left untouched.
+     */
+    public void write(GreyImage image, File file) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(image
+                .getPixels(), width * height), width, height, width, 1, new int[] {
+                0
+        }, null);
+        BufferedImage grey = new BufferedImage(GREY, raster, false, null);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG encoder");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(mQuality / 100f);
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        boolean renamed = false;
+        try {
+            // the stream writes into an existing file without truncating it
+            temp.delete();
+            ImageOutputStream stream = ImageIO.createImageOutputStream(temp);
+            if (stream == null) {
+                throw new IOException("Could not create " + temp);
+            }
+            try {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(grey, null, null), param);
+            } finally {
+                writer.dispose();
+                stream.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            renamed = true;
+        } finally {
+            if (!renamed) {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures a desktop or server JVM for the {@link ScanTrace}, with the management beans of the
+ * JDK.
+ * <p>
+ * The allocated bytes are the sum over the live threads, so the allocations of threads that ended
+ * during a stage are lost. The thread pools of the filter core live as long as the process, so
+ * this only matters for short lived threads. On a JVM without the {@code com.sun.management}
+ * extensions the metrics are unknown.
+ * </p>
+ */
+public final class ManagementTraceProbe implements ScanTrace.Probe {
+    private final OperatingSystemMXBean mSystem = ManagementFactory.getOperatingSystemMXBean();
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+    @Override
+    public long getCpuNanos() {
+        if (!(mSystem instanceof com.sun.management.OperatingSystemMXBean)) {
+            return ScanTrace.UNKNOWN;
+        }
+        long nanos = ((com.sun.management.OperatingSystemMXBean) mSystem).getProcessCpuTime();
+        return nanos >= 0 ? nanos : ScanTrace.UNKNOWN;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        if (!(mThreads instanceof com.sun.management.ThreadMXBean)) {
+            return ScanTrace.UNKNOWN;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) mThreads)
+                .getThreadAllocatedBytes(mThreads.getAllThreadIds())) {
+            // -1 for a thread that ended in the meantime
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
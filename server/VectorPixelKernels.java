@@ -0,0 +1,204 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@link PixelKernels} on the SIMD lanes of the JDK Vector API, for the desktop and server
+ * build of the filter core.
+ * <p>
+ * Every iteration handles as many pixels as the widest integer vector of the CPU holds, 8 with
+ * AVX2 and 16 with AVX-512; the pixels left over at the end of a run go through the scalar
+ * kernels. The lookups compute the luma or the channels of all lanes at once and gather the
+ * table entries. The 3x3 convolution loads the nine neighbourhoods of all lanes as nine shifted
+ * vectors, one channel at a time. There is no SIMD integer division, so the biased sums are
+ * divided in {@code float}, rounded to an integer by adding 1.5 * 2^23, and the quotient is
+ * corrected by one where the rounding went to the wrong side; the result equals the scalar
+ * {@code int} division for every sum that can clamp to a different value.
+ * </p>
+ * <p>
+ * The loops are written so that the JIT keeps every vector in registers, the kernels allocate
+ * nothing. Java 17 has no SIMD conversion of 512-bit floats to integers, and a vector that goes
+ * through one is allocated on the heap, hence the rounding by addition.
+ * </p>
+ * <p>
+ * The class needs Java 17 or later and the incubator module, compile and run it with
+ * {@code --add-modules jdk.incubator.vector}. Without the module {@link PixelKernels} falls back
+ * to the scalar kernels.
+ * </p>
+ */
+public final class VectorPixelKernels extends PixelKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    /**
+     * The fewest lanes worth the vector code, without real vector registers the Vector API falls
+     * back to slow Java code.
+     */
+    private static final int MIN_LANES = 4;
+    private static final int ALPHA = 0xff000000;
+    /**
+     * The largest divisor of the vector convolution, the products of the quotients and the
+     * divisor must not overflow. Larger ones go through the scalar kernel.
+     */
+    private static final int MAX_DIVISOR = 1 << 22;
+    /**
+     * 1.5 * 2^23, a float plus this has its integer part rounded to the nearest in its low bits.
+     */
+    private static final float ROUNDING = 12582912f;
+    private static final int ROUNDING_BITS = 0x4b400000;
+    /**
+     * The table indices of the lanes for the gathers of the lookups, one array per thread, since
+     * the strips of an image run the same kernels on several threads at once.
+     */
+    private static final ThreadLocal<int[]> INDICES = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[SPECIES.length()];
+        }
+    };
+
+    public VectorPixelKernels() {
+    }
+
+    @Override
+    public boolean isAccelerated() {
+        return SPECIES.length() >= MIN_LANES;
+    }
+
+    @Override
+    public void lookupGreyscale(int[] pixels, int offset, int length, int[] packed) {
+        final int lanes = SPECIES.length();
+        final int[] indices = INDICES.get();
+        int i = offset;
+        for (int bound = offset + SPECIES.loopBound(length); i < bound; i += lanes) {
+            IntVector pixel = IntVector.fromArray(SPECIES, pixels, i);
+            channel(pixel, 16).mul(LookupTableOperation.LUMA_RED)
+                    .add(channel(pixel, 8).mul(LookupTableOperation.LUMA_GREEN))
+                    .add(channel(pixel, 0).mul(LookupTableOperation.LUMA_BLUE))
+                    .lanewise(VectorOperators.LSHR, LookupTableOperation.LUMA_SHIFT)
+                    .intoArray(indices, 0);
+            IntVector.fromArray(SPECIES, packed, 0, indices, 0).or(pixel.and(ALPHA))
+                    .intoArray(pixels, i);
+        }
+        super.lookupGreyscale(pixels, i, offset + length - i, packed);
+    }
+
+    @Override
+    public void lookupChannels(int[] pixels, int offset, int length, int[] red, int[] green,
+            int[] blue) {
+        final int lanes = SPECIES.length();
+        final int[] indices = INDICES.get();
+        int i = offset;
+        for (int bound = offset + SPECIES.loopBound(length); i < bound; i += lanes) {
+            IntVector pixel = IntVector.fromArray(SPECIES, pixels, i);
+            channel(pixel, 16).intoArray(indices, 0);
+            IntVector result = IntVector.fromArray(SPECIES, red, 0, indices, 0);
+            channel(pixel, 8).intoArray(indices, 0);
+            result = result.or(IntVector.fromArray(SPECIES, green, 0, indices, 0));
+            channel(pixel, 0).intoArray(indices, 0);
+            result = result.or(IntVector.fromArray(SPECIES, blue, 0, indices, 0));
+            result.or(pixel.and(ALPHA)).intoArray(pixels, i);
+        }
+        super.lookupChannels(pixels, i, offset + length - i, red, green, blue);
+    }
+
+    @Override
+    public void convolve3x3(int[] src, int in, int width, int[] dst, int out, int length,
+            int[] weights, int bias, int divisor) {
+        int x = divisor <= MAX_DIVISOR ? SPECIES.loopBound(length) : 0;
+        if (x > 0) {
+            convolveChannel(src, in, width, dst, out, x, weights, bias, divisor, 16);
+            convolveChannel(src, in, width, dst, out, x, weights, bias, divisor, 8);
+            convolveChannel(src, in, width, dst, out, x, weights, bias, divisor, 0);
+        }
+        super.convolve3x3(src, in + x, width, dst, out + x, length - x, weights, bias, divisor);
+    }
+
+    /**
+     * Convolves one channel of the lanes of a run into the output, the red channel first, which
+     * also writes the alpha channel, then green and blue.
+     * <p>
+     * A channel at a time keeps the compiled loop small enough for the JIT to inline every vector
+     * operation and keep the vectors in registers. A vector that is carried through a loop of
+     * taps, merged from branches or returned from a method that is not inlined is allocated on
+     * the heap, for every lane group, so the two kinds of divisor have loops of their own.
+     * </p>
+     *
+     * @param length
+     *            The number of pixels, a multiple of the number of lanes.
+     * @param shift
+     *            The position of the channel in a pixel, 16, 8 or 0.
+     */
+    private static void convolveChannel(int[] src, int in, int width, int[] dst, int out,
+            int length, int[] weights, int bias, int divisor, int shift) {
+        final int lanes = SPECIES.length();
+        final int w00 = weights[0], w01 = weights[1], w02 = weights[2];
+        final int w10 = weights[3], w11 = weights[4], w12 = weights[5];
+        final int w20 = weights[6], w21 = weights[7], w22 = weights[8];
+        // the red channel replaces the output, the others are added to it
+        final int keep = shift == 16 ? 0 : 0xffffffff;
+        final int alpha = shift == 16 ? ALPHA : 0;
+        if (divisor == 0) {
+            final IntVector zero = IntVector.zero(SPECIES);
+            for (int x = 0; x < length; x += lanes) {
+                int center = in + x;
+                IntVector pixel = IntVector.fromArray(SPECIES, src, center);
+                IntVector sum = sum(src, center, width, pixel, shift, w00, w01, w02, w10, w11,
+                        w12, w20, w21, w22);
+                IntVector.fromArray(SPECIES, dst, out + x).and(keep).or(pixel.and(alpha))
+                        .or(zero.blend(0xff << shift, sum.compare(VectorOperators.GT, 0)))
+                        .intoArray(dst, out + x);
+            }
+            return;
+        }
+        // larger sums clamp to the same value, and their quotients fit the rounding below
+        final int limit = 256 * divisor;
+        final float floatDivisor = divisor;
+        for (int x = 0; x < length; x += lanes) {
+            int center = in + x;
+            IntVector pixel = IntVector.fromArray(SPECIES, src, center);
+            IntVector biased = sum(src, center, width, pixel, shift, w00, w01, w02, w10, w11, w12,
+                    w20, w21, w22).add(bias);
+            // truncating division divides the magnitude and gives the quotient the sign
+            IntVector sign = biased.lanewise(VectorOperators.ASHR, 31);
+            IntVector magnitude = biased.lanewise(VectorOperators.ABS).min(limit);
+            // adding 1.5 * 2^23 rounds the quotient into the low bits of the float
+            IntVector quotient = ((FloatVector) magnitude.convert(VectorOperators.I2F, 0))
+                    .div(floatDivisor).add(ROUNDING).reinterpretAsInts().sub(ROUNDING_BITS);
+            // the remainder must lie in [0, divisor), step the quotient down or up by one if not
+            IntVector remainder = magnitude.sub(quotient.mul(divisor));
+            quotient = quotient.add(remainder.lanewise(VectorOperators.ASHR, 31)).sub(
+                    remainder.neg().add(divisor - 1).lanewise(VectorOperators.ASHR, 31));
+            IntVector.fromArray(SPECIES, dst, out + x).and(keep).or(pixel.and(alpha))
+                    .or(quotient.lanewise(VectorOperators.XOR, sign).sub(sign).max(0).min(255)
+                            .lanewise(VectorOperators.LSHL, shift)).intoArray(dst, out + x);
+        }
+    }
+
+    /**
+     * Sums one channel of the nine neighbourhoods of the lanes. The taps are added in pairs; a
+     * chain of nine additions is more than the JIT unboxes and allocates a vector for every lane
+     * group.
+     */
+    private static IntVector sum(int[] src, int center, int width, IntVector pixel, int shift,
+            int w00, int w01, int w02, int w10, int w11, int w12, int w20, int w21, int w22) {
+        IntVector t00 = channel(src, center - width - 1, shift).mul(w00);
+        IntVector t01 = channel(src, center - width, shift).mul(w01);
+        IntVector t02 = channel(src, center - width + 1, shift).mul(w02);
+        IntVector t10 = channel(src, center - 1, shift).mul(w10);
+        IntVector t11 = channel(pixel, shift).mul(w11);
+        IntVector t12 = channel(src, center + 1, shift).mul(w12);
+        IntVector t20 = channel(src, center + width - 1, shift).mul(w20);
+        IntVector t21 = channel(src, center + width, shift).mul(w21);
+        IntVector t22 = channel(src, center + width + 1, shift).mul(w22);
+        return t00.add(t01).add(t02.add(t10)).add(t11.add(t12).add(t20.add(t21))).add(t22);
+    }
+
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+
+    private static IntVector channel(int[] src, int index, int shift) {
+        return IntVector.fromArray(SPECIES, src, index).lanewise(VectorOperators.LSHR, shift)
+                .and(0xff);
+    }
+}
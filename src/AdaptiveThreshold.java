@@ -0,0 +1,355 @@
+/**
+ * Turns a photographed document into black text on white paper, with a threshold that adapts to
+ * the lighting of every part of the page.
+ * <p>
+ * Every pixel is compared with the mean, and for Sauvola also the standard deviation, of the
+ * luma in the square around it. Those come from running sums of the luma and of its square: every
+ * column keeps the sum of the rows of the window of the current row, which slides down a row at a
+ * time, and the windows of a row are differences of the running sums along those column sums. So
+ * they cost the same for every radius, and the rows around a band are only summed once when the
+ * band starts, no matter how high the band is. The sums are kept in wrapping {@code int}s, which
+ * is correct as long as the sum of one window fits in 32 bits. ARGB pixels are reduced to their
+ * luma first, a {@link GreyImage} is thresholded as it is.
+ * </p>
+ * <p>
+ * Every thread that thresholds keeps four rows of {@code int}s of the width of the image, 16
+ * bytes per column, and for ARGB pixels also the luma of a band and the rows around it. They are
+ * shared by all thresholds, so a new threshold for every image allocates nothing more.
+ * </p>
+ * <p>
+ * The result is one byte per pixel, 0 for black and 255 for white, or one bit per pixel packed
+ * in rows of {@link #getPackedStride(int)} bytes, the leftmost pixel in the highest bit and 1 for
+ * black, like the PBM format.
+ * </p>
+ */
+public final class AdaptiveThreshold {
+
+    /**
+     * How the local threshold is computed.
+     */
+    public enum Method {
+        /**
+         * Black if the pixel is darker than the local mean by more than the sensitivity, a
+         * fraction from 0 to 1. Bradley and Roth, "Adaptive Thresholding Using the Integral
+         * Image".
+         */
+        BRADLEY,
+        /**
+         * Black if the pixel is darker than {@code mean * (1 + k * (deviation / 128 - 1))}, with
+         * the sensitivity as k, usually 0.2 to 0.5. Sauvola and Pietikainen, "Adaptive document
+         * image binarization".
+         */
+        SAUVOLA
+    }
+
+    /**
+     * The largest supported radius, the sums of the squares of larger windows would not fit in 32
+     * bits.
+     */
+    public static final int MAX_RADIUS = 100;
+    /**
+     * The dynamic range of the standard deviation in the Sauvola formula.
+     */
+    private static final double SAUVOLA_RANGE = 128;
+    /**
+     * The least number of rows of a band of ARGB pixels, besides the rows around it.
+     */
+    private static final int BAND_ROWS = 64;
+    /**
+     * The least height of a band of ARGB pixels in radii, so the rows around a band that are
+     * reduced to their luma stay a small part of it.
+     */
+    private static final int MIN_BAND_RADII = 8;
+    /**
+     * The column sums and their running sums, of the luma and of its square, and the luma of the
+     * bands of ARGB pixels of every thread, shared by all thresholds.
+     */
+    private static final ScratchBuffers SCRATCH = new ScratchBuffers(5);
+
+    private final Method mMethod;
+    private final int mRadius;
+    private final double mSensitivity;
+    /**
+     * The rows of a band of ARGB pixels, at least {@link #BAND_ROWS} and {@link #MIN_BAND_RADII}
+     * radii.
+     */
+    private final int mBandRows;
+
+    /**
+     * Creates a threshold.
+     *
+     * @param method
+     *            How the local threshold is computed.
+     * @param radius
+     *            The radius of the square around every pixel, about the height of a line of text,
+     *            from 1 up to {@link #MAX_RADIUS}.
+     * @param sensitivity
+     *            The fraction for {@link Method#BRADLEY} or k for {@link Method#SAUVOLA}.
+     */
+    public AdaptiveThreshold(Method method, int radius, double sensitivity) {
+        if (radius < 1 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("The radius must be between 1 and " + MAX_RADIUS);
+        }
+        mMethod = method;
+        mRadius = radius;
+        mSensitivity = sensitivity;
+        mBandRows = Math.max(BAND_ROWS, MIN_BAND_RADII * radius);
+    }
+
+    /**
+     * @return The number of rows above and below a band that are read to threshold it.
+     */
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * Returns the number of bytes of a row of packed output.
+     *
+     * @param width
+     *            The width of the image.
+     * @return The number of bytes of a packed row.
+     */
+    public static int getPackedStride(int width) {
+        return (width + 7) / 8;
+    }
+
+    /**
+     * Thresholds a whole image in parallel strips.
+     *
+     * @param pixels
+     *            The ARGB pixels of the image.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param packed
+     *            Whether to pack the result in one bit per pixel.
+     * @param executor
+     *            The executor to run the strips on.
+     * @return The thresholded image, one byte or one bit per pixel.
+     */
+    public byte[] threshold(final int[] pixels, final int width, final int height,
+            final boolean packed, StripExecutor executor) {
+        final byte[] out = new byte[(packed ? getPackedStride(width) : width) * height];
+        final int rows = mBandRows;
+        executor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                for (int bandTop = top; bandTop < bottom; bandTop += rows) {
+                    apply(pixels, 0, out, 0, width, height, bandTop, Math.min(bandTop + rows,
+                            bottom), packed);
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Thresholds a whole greyscale image in parallel strips.
+     *
+     * @param src
+     *            The image to threshold, is not changed.
+     * @param executor
+     *            The executor to run the strips on.
+     * @return A new image with 0 for black and 255 for white.
+     */
+    public GreyImage threshold(GreyImage src, StripExecutor executor) {
+        GreyImage dst = new GreyImage(src.getWidth(), src.getHeight());
+        threshold(src, dst, executor);
+        return dst;
+    }
+
+    /**
+     * Thresholds a whole greyscale image in parallel strips into another image. Every strip is
+     * thresholded in one pass, so the rows around it are summed only once.
+     *
+     * @param src
+     *            The image to threshold, is not changed.
+     * @param dst
+     *            The image of the same size to store 0 for black and 255 for white in. Must not
+     *            be the source.
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public void threshold(final GreyImage src, final GreyImage dst, StripExecutor executor) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        if (dst.getWidth() != width || dst.getHeight() != height) {
+            throw new IllegalArgumentException("The images must have the same size");
+        }
+        executor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                apply(src.getPixels(), 0, dst.getPixels(), 0, width, height, top, bottom, false);
+            }
+        });
+    }
+
+    /**
+     * Thresholds the rows of a band of ARGB pixels.
+     *
+     * @param src
+     *            The ARGB pixels, holding at least the rows of the band and {@link #getRadius()}
+     *            rows above and below it, as far as they are in the image.
+     * @param srcTop
+     *            The row of the image stored at the start of the source.
+     * @param dst
+     *            The output, one byte per pixel or {@link #getPackedStride(int)} bytes per row.
+     * @param dstTop
+     *            The row of the image stored at the start of the output.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param top
+     *            The first row of the band.
+     * @param bottom
+     *            The row after the last row of the band.
+     * @param packed
+     *            Whether to pack the output in one bit per pixel.
+     */
+    public void apply(int[] src, int srcTop, byte[] dst, int dstTop, int width, int height,
+            int top, int bottom, boolean packed) {
+        int first = Math.max(0, top - mRadius);
+        int last = Math.min(height, bottom + mRadius);
+        int length = (last - first) * width;
+        byte[] grey = SCRATCH.getBytes(4, length);
+        for (int i = 0, in = (first - srcTop) * width; i < length; i++, in++) {
+            grey[i] = (byte) LookupTableOperation.luma(src[in]);
+        }
+        apply(grey, first, dst, dstTop, width, height, top, bottom, packed);
+    }
+
+    /**
+     * Thresholds the rows of a band of grey values.
+     *
+     * @param src
+     *            The grey values, one byte per pixel, holding at least the rows of the band and
+     *            {@link #getRadius()} rows above and below it, as far as they are in the image.
+     * @param srcTop
+     *            The row of the image stored at the start of the source.
+     * @param dst
+     *            The output, one byte per pixel or {@link #getPackedStride(int)} bytes per row.
+     *            Must not be the source.
+     * @param dstTop
+     *            The row of the image stored at the start of the output.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param top
+     *            The first row of the band.
+     * @param bottom
+     *            The row after the last row of the band.
+     * @param packed
+     *            Whether to pack the output in one bit per pixel.
+     */
+    public void apply(byte[] src, int srcTop, byte[] dst, int dstTop, int width, int height,
+            int top, int bottom, boolean packed) {
+        final int radius = mRadius;
+        final int stride = width + 1;
+        final boolean sauvola = mMethod == Method.SAUVOLA;
+
+        // the sums of every column over the rows [windowTop, windowBottom) of the window of the
+        // current row, and the running sums along them, with a zero in front
+        int[] columns = SCRATCH.getInts(0, width);
+        int[] sums = SCRATCH.getInts(1, stride);
+        int[] columnSquares = sauvola ? SCRATCH.getInts(2, width) : null;
+        int[] squares = sauvola ? SCRATCH.getInts(3, stride) : null;
+        for (int x = 0; x < width; x++) {
+            columns[x] = 0;
+            if (sauvola) {
+                columnSquares[x] = 0;
+            }
+        }
+        sums[0] = 0;
+        if (sauvola) {
+            squares[0] = 0;
+        }
+        int windowTop = Math.max(0, top - radius);
+        int windowBottom = windowTop;
+
+        final int packedStride = getPackedStride(width);
+        final double sensitivity = mSensitivity;
+        for (int y = top; y < bottom; y++) {
+            for (int last = Math.min(y + radius + 1, height); windowBottom < last;
+                    windowBottom++) {
+                addRow(src, (windowBottom - srcTop) * width, width, columns, columnSquares, 1);
+            }
+            for (int first = Math.max(y - radius, 0); windowTop < first; windowTop++) {
+                addRow(src, (windowTop - srcTop) * width, width, columns, columnSquares, -1);
+            }
+            for (int x = 0; x < width; x++) {
+                sums[x + 1] = sums[x] + columns[x];
+                if (sauvola) {
+                    squares[x + 1] = squares[x] + columnSquares[x];
+                }
+            }
+
+            int in = (y - srcTop) * width;
+            int windowHeight = windowBottom - windowTop;
+            int out = (y - dstTop) * (packed ? packedStride : width);
+            int bits = 0;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - radius, 0);
+                int right = Math.min(x + radius + 1, width);
+                int area = (right - left) * windowHeight;
+                int sum = sums[right] - sums[left];
+                int luma = src[in + x] & 0xff;
+
+                boolean black;
+                if (sauvola) {
+                    int sumSquares = squares[right] - squares[left];
+                    double mean = (double) sum / area;
+                    // the sum of the squares of a window can exceed a signed int
+                    double variance = (double) (sumSquares & 0xffffffffL) / area - mean * mean;
+                    double deviation = Math.sqrt(Math.max(variance, 0));
+                    black = luma < mean * (1 + sensitivity * (deviation / SAUVOLA_RANGE - 1));
+                } else {
+                    black = (double) luma * area < sum * (1 - sensitivity);
+                }
+
+                if (packed) {
+                    bits = (bits << 1) | (black ? 1 : 0);
+                    if ((x & 7) == 7) {
+                        dst[out + (x >> 3)] = (byte) bits;
+                        bits = 0;
+                    }
+                } else {
+                    dst[out + x] = black ? 0 : (byte) 0xff;
+                }
+            }
+            if (packed && (width & 7) != 0) {
+                dst[out + (width >> 3)] = (byte) (bits << (8 - (width & 7)));
+            }
+        }
+    }
+
+    /**
+     * Adds a row to the column sums, or removes it.
+     *
+     * @param src
+     *            The grey values.
+     * @param in
+     *            The index of the row in the grey values.
+     * @param width
+     *            The width of the image.
+     * @param columns
+     *            The sums of the luma of every column.
+     * @param columnSquares
+     *            The sums of the squares of the luma of every column, or null if not needed.
+     * @param sign
+     *            1 to add the row, -1 to remove it.
+     */
+    private static void addRow(byte[] src, int in, int width, int[] columns, int[] columnSquares,
+            int sign) {
+        for (int x = 0; x < width; x++) {
+            int luma = src[in + x] & 0xff;
+            columns[x] += sign * luma;
+            if (columnSquares != null) {
+                columnSquares[x] += sign * luma * luma;
+            }
+        }
+    }
+}
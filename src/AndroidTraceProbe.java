@@ -0,0 +1,35 @@
+import android.os.Build;
+import android.os.Debug;
+import android.os.Process;
+
+/**
+ * Measures the app process for the {@link ScanTrace}.
+ * <p>
+ * The CPU time has a resolution of a millisecond. The allocated bytes are read from the runtime
+ * statistics of ART, which exist from Marshmallow on; before that they are unknown.
+ * </p>
+ */
+public final class AndroidTraceProbe implements ScanTrace.Probe {
+    /**
+     * The runtime statistic of the bytes allocated since the process started.
+     */
+    private static final String BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    @Override
+    public long getCpuNanos() {
+        return Process.getElapsedCpuTime() * 1000000L;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return ScanTrace.UNKNOWN;
+        }
+        String bytes = Debug.getRuntimeStat(BYTES_ALLOCATED);
+        try {
+            return bytes != null ? Long.parseLong(bytes) : ScanTrace.UNKNOWN;
+        } catch (NumberFormatException e) {
+            return ScanTrace.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,772 @@
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+/**
+ * Runs {@link PointOperation}s, {@link NeighbourhoodOperation}s and {@link FilterPipeline}s over
+ * bitmaps, and converts bitmaps to and from {@link GreyImage}s.
+ * <p>
+ * Instead of crossing into native code for every {@code getPixel}/{@code setPixel} call, the
+ * engine copies a band of rows or a tile into an {@code int[]} with one {@code getPixels} call,
+ * lets the operation work on the primitive array and writes it back with one {@code setPixels}.
+ * </p>
+ * <p>
+ * The bitmap is split into strips that run in parallel on a {@link StripExecutor}. Neighbourhood
+ * operations read every band together with a halo of rows around it, as many as the radius of
+ * the operation, so the strips join without seams and the result is the same as on one thread.
+ * </p>
+ * <p>
+ * With a {@link BufferPool} the output bitmaps, greyscale images and full frame scratch buffers
+ * come from the pool, and intermediate buffers go back to it.
+ * </p>
+ */
+public final class BitmapPixelEngine {
+    /**
+     * The number of bytes copied per band of rows.
+     */
+    private static final int BAND_BYTES = 64 * 1024;
+    /**
+     * The number of bytes copied per band for neighbourhood operations. The bands are larger, so
+     * the extra rows read around every band stay a small part of the work.
+     */
+    private static final int NEIGHBOURHOOD_BAND_BYTES = 256 * 1024;
+    /**
+     * The smallest height of a band for neighbourhood operations, in radii of the operation. Keeps
+     * the halo rows a small part of the work for operations with a large radius.
+     */
+    private static final int MIN_BAND_RADII = 8;
+
+    /**
+     * Copies the pixels unchanged.
+     */
+    private static final PointOperation COPY = new PointOperation() {
+        @Override
+        public void apply(int[] pixels, int offset, int length) {
+        }
+    };
+
+    private final StripExecutor mExecutor;
+    /**
+     * The pool of the output and scratch buffers, or null to allocate them.
+     */
+    private final BufferPool mPool;
+
+    /**
+     * Creates an engine that runs on the calling thread.
+     */
+    public BitmapPixelEngine() {
+        this(StripExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Creates an engine that splits the bitmaps into parallel strips.
+     *
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public BitmapPixelEngine(StripExecutor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Creates an engine that splits the bitmaps into parallel strips and reuses buffers.
+     *
+     * @param executor
+     *            The executor to run the strips on.
+     * @param pool
+     *            The pool of the output and scratch buffers, or null to allocate them.
+     */
+    public BitmapPixelEngine(StripExecutor executor, BufferPool pool) {
+        mExecutor = executor;
+        mPool = pool;
+    }
+
+    /**
+     * Gives a bitmap that is no longer used back to the pool, or recycles it without a pool.
+     *
+     * @param bitmap
+     *            The bitmap, must no longer be used by the caller.
+     */
+    public void release(Bitmap bitmap) {
+        if (mPool != null) {
+            mPool.release(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Gives the pixels of a greyscale image that is no longer used back to the pool.
+     *
+     * @param image
+     *            The image, must no longer be used by the caller.
+     */
+    public void release(GreyImage image) {
+        if (mPool != null) {
+            mPool.release(image);
+        }
+    }
+
+    /**
+     * Applies an operation to a copy of the source bitmap.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param operation
+     *            The operation to apply.
+     * @return A new bitmap with the same size and config as the source.
+     */
+    public Bitmap apply(Bitmap src, PointOperation operation) {
+        Bitmap bmOut = createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
+        apply(src, bmOut, operation);
+        return bmOut;
+    }
+
+    /**
+     * Applies an operation to the source bitmap and stores the result in the destination.
+     *
+     * @param src
+     *            The source bitmap.
+     * @param dst
+     *            The mutable destination bitmap, at least as large as the source. Can be the
+     *            source bitmap itself.
+     * @param operation
+     *            The operation to apply.
+     */
+    public void apply(Bitmap src, Bitmap dst, PointOperation operation) {
+        apply(src, dst, operation, Tiling.rows(src.getWidth(), BAND_BYTES));
+    }
+
+    /**
+     * Applies an operation to the source bitmap tile by tile and stores the result in the
+     * destination.
+     *
+     * @param src
+     *            The source bitmap.
+     * @param dst
+     *            The mutable destination bitmap, at least as large as the source. Can be the
+     *            source bitmap itself.
+     * @param operation
+     *            The operation to apply.
+     * @param tiling
+     *            The tiles to copy out of the bitmap, one at a time.
+     */
+    public void apply(final Bitmap src, final Bitmap dst, final PointOperation operation,
+            final Tiling tiling) {
+        final int width = src.getWidth();
+        final int tileLength = Math.min(tiling.getTileWidth(), width)
+                * Math.min(tiling.getTileHeight(), src.getHeight());
+
+        mExecutor.execute(src.getHeight(), new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                final int[] tile = obtainInts(tileLength);
+                tiling.forEachTile(0, top, width, bottom, new Tiling.TileVisitor() {
+                    @Override
+                    public void visitTile(int left, int tileTop, int right, int tileBottom) {
+                        int tileWidth = right - left;
+                        int tileHeight = tileBottom - tileTop;
+                        src.getPixels(tile, 0, tileWidth, left, tileTop, tileWidth, tileHeight);
+                        operation.apply(tile, 0, tileWidth * tileHeight);
+                        dst.setPixels(tile, 0, tileWidth, left, tileTop, tileWidth, tileHeight);
+                    }
+                });
+                releaseInts(tile);
+            }
+        });
+    }
+
+    /**
+     * Applies a neighbourhood operation to a copy of the source bitmap.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param operation
+     *            The operation to apply.
+     * @return A new bitmap with the same size and config as the source.
+     */
+    public Bitmap apply(Bitmap src, NeighbourhoodOperation operation) {
+        Bitmap bmOut = createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
+        apply(src, bmOut, null, operation);
+        return bmOut;
+    }
+
+    /**
+     * Applies a neighbourhood operation to a mutable bitmap in place, so no second full frame is
+     * needed. See {@link #applyInPlace(int[], int, int, NeighbourhoodOperation)}.
+     *
+     * @param bitmap
+     *            The mutable bitmap, overwritten with the result.
+     * @param operation
+     *            The operation to apply.
+     */
+    public void applyInPlace(Bitmap bitmap, NeighbourhoodOperation operation) {
+        applyInPlace(bitmap, null, operation);
+    }
+
+    /**
+     * Applies a neighbourhood operation to pixels in place.
+     * <p>
+     * Every strip keeps the output of its last band in a buffer until the next band has read the
+     * rows above it, and the rows around every strip are read before any strip writes. Besides
+     * those rows only a window and two bands of rows are used per strip, which grow with the
+     * width and the radius of the operation but not with the height of the image.
+     * </p>
+     *
+     * @param pixels
+     *            The ARGB pixels, overwritten with the result.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param operation
+     *            The operation to apply.
+     */
+    public void applyInPlace(final int[] pixels, final int width, int height,
+            NeighbourhoodOperation operation) {
+        applyInPlace(new RowStore() {
+            @Override
+            public void read(int[] rows, int offset, int top, int bottom) {
+                System.arraycopy(pixels, top * width, rows, offset, (bottom - top) * width);
+            }
+
+            @Override
+            public void write(int[] rows, int top, int bottom) {
+                System.arraycopy(rows, 0, pixels, top * width, (bottom - top) * width);
+            }
+        }, width, height, null, operation);
+    }
+
+    /**
+     * Applies a point operation to pixels in place, in parallel strips.
+     *
+     * @param pixels
+     *            The ARGB pixels, overwritten with the result.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param operation
+     *            The operation to apply.
+     */
+    public void applyInPlace(final int[] pixels, final int width, int height,
+            final PointOperation operation) {
+        mExecutor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                operation.apply(pixels, top * width, (bottom - top) * width);
+            }
+        });
+    }
+
+    /**
+     * Blurs a copy of the source bitmap as a whole frame, so the cost does not grow with the
+     * radius of the blur.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param blur
+     *            The blur to apply.
+     * @return A new bitmap with the same size and config as the source.
+     */
+    public Bitmap blur(Bitmap src, BoxBlur blur) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] pixels = obtainInts(width * height);
+        int[] scratch = obtainInts(width * height);
+        src.getPixels(pixels, 0, width, 0, 0, width, height);
+        blur.blur(pixels, scratch, width, height, mExecutor);
+
+        Bitmap bmOut = createBitmap(width, height, src.getConfig());
+        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
+        releaseInts(pixels);
+        releaseInts(scratch);
+        return bmOut;
+    }
+
+    /**
+     * Converts the source bitmap to a greyscale image with one byte per pixel.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @return The greyscale image.
+     */
+    public GreyImage toGrey(final Bitmap src, final LookupTableOperation tone) {
+        if (!tone.isGrey()) {
+            throw new IllegalArgumentException("The output of the tone curve is not grey");
+        }
+        final int width = src.getWidth();
+        final GreyImage image = createGreyImage(width, src.getHeight());
+        final int rows = Math.max(1, BAND_BYTES / 4 / width);
+        mExecutor.execute(src.getHeight(), new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                int[] band = obtainInts(rows * width);
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    src.getPixels(band, 0, width, 0, top, width, bottom - top);
+                    tone.toGrey(band, 0, image.getPixels(), top * width, (bottom - top) * width);
+                }
+                releaseInts(band);
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Converts a greyscale image to an opaque bitmap, for showing it.
+     *
+     * @param image
+     *            The greyscale image.
+     * @return A new ARGB_8888 bitmap.
+     */
+    public Bitmap toBitmap(final GreyImage image) {
+        final int width = image.getWidth();
+        final Bitmap bmOut = createBitmap(width, image.getHeight(), Bitmap.Config.ARGB_8888);
+        final int rows = Math.max(1, BAND_BYTES / 4 / width);
+        mExecutor.execute(image.getHeight(), new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                byte[] grey = image.getPixels();
+                int[] band = obtainInts(rows * width);
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    for (int i = 0, in = top * width, end = (bottom - top) * width; i < end;
+                            i++, in++) {
+                        band[i] = 0xff000000 | (grey[in] & 0xff) * 0x010101;
+                    }
+                    bmOut.setPixels(band, 0, width, 0, top, width, bottom - top);
+                }
+                releaseInts(band);
+            }
+        });
+        return bmOut;
+    }
+
+    /**
+     * Sharpens a greyscale image in place.
+     *
+     * @param image
+     *            The image to sharpen.
+     * @param sharpen
+     *            The unsharp mask to apply.
+     */
+    public void sharpen(GreyImage image, UnsharpMask sharpen) {
+        sharpen.sharpen(image, mExecutor);
+    }
+
+    /**
+     * Thresholds a greyscale image into black and white.
+     *
+     * @param image
+     *            The image to threshold, is not changed.
+     * @param threshold
+     *            The threshold to apply.
+     * @return A new image with 0 for black and 255 for white.
+     */
+    public GreyImage threshold(GreyImage image, AdaptiveThreshold threshold) {
+        GreyImage dst = createGreyImage(image.getWidth(), image.getHeight());
+        threshold.threshold(image, dst, mExecutor);
+        return dst;
+    }
+
+    /**
+     * Thresholds the source bitmap into black and white, one byte or one bit per pixel.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param threshold
+     *            The threshold to apply.
+     * @param packed
+     *            Whether to pack the result in one bit per pixel.
+     * @return The thresholded image, as described by {@link AdaptiveThreshold}.
+     */
+    public byte[] threshold(final Bitmap src, final AdaptiveThreshold threshold,
+            final boolean packed) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        final int stride = packed ? AdaptiveThreshold.getPackedStride(width) : width;
+        final byte[] out = new byte[stride * height];
+        forEachThresholdBand(src, threshold, new ThresholdBandVisitor() {
+            @Override
+            public void visitBand(int[] window, byte[] band, int windowTop, int top,
+                    int bottom) {
+                threshold.apply(window, windowTop, out, 0, width, height, top, bottom, packed);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Thresholds a copy of the source bitmap into opaque black and white pixels.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param threshold
+     *            The threshold to apply.
+     * @return A new bitmap with the same size and config as the source.
+     */
+    public Bitmap apply(Bitmap src, final AdaptiveThreshold threshold) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        final Bitmap bmOut = createBitmap(width, height, src.getConfig());
+        forEachThresholdBand(src, threshold, new ThresholdBandVisitor() {
+            @Override
+            public void visitBand(int[] window, byte[] band, int windowTop, int top,
+                    int bottom) {
+                threshold.apply(window, windowTop, band, top, width, height, top, bottom, false);
+                // the window has been read, so it can hold the output
+                int length = (bottom - top) * width;
+                for (int i = 0; i < length; i++) {
+                    window[i] = 0xff000000 | (band[i] & 0xff) * 0x010101;
+                }
+                bmOut.setPixels(window, 0, width, 0, top, width, bottom - top);
+            }
+        });
+        return bmOut;
+    }
+
+    /**
+     * Receives the bands read by {@link #forEachThresholdBand}.
+     */
+    private interface ThresholdBandVisitor {
+        /**
+         * @param window
+         *            The pixels of the band and the rows around it.
+         * @param band
+         *            A buffer of one byte per pixel of the band, owned by the strip.
+         * @param windowTop
+         *            The row of the image stored at the start of the window.
+         * @param top
+         *            The first row of the band.
+         * @param bottom
+         *            The row after the last row of the band.
+         */
+        void visitBand(int[] window, byte[] band, int windowTop, int top, int bottom);
+    }
+
+    /**
+     * Reads the source bitmap in parallel strips of bands, every band together with the rows
+     * around it that the threshold needs. The visitor is called from the threads of all strips.
+     */
+    private void forEachThresholdBand(final Bitmap src, AdaptiveThreshold threshold,
+            final ThresholdBandVisitor visitor) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        final int radius = threshold.getRadius();
+        final int rows = Math.max(Math.max(1, NEIGHBOURHOOD_BAND_BYTES / 4 / width),
+                MIN_BAND_RADII * radius);
+
+        mExecutor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                int[] window = obtainInts((rows + 2 * radius) * width);
+                byte[] band = obtainBytes(rows * width);
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    int windowTop = Math.max(0, top - radius);
+                    int windowBottom = Math.min(height, bottom + radius);
+                    src.getPixels(window, 0, width, 0, windowTop, width, windowBottom
+                            - windowTop);
+                    visitor.visitBand(window, band, windowTop, top, bottom);
+                }
+                releaseInts(window);
+                releaseBytes(band);
+            }
+        });
+    }
+
+    /**
+     * Runs a pipeline over a copy of the source bitmap.
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param pipeline
+     *            The pipeline to run.
+     * @return A new bitmap with the same size and config as the source.
+     */
+    public Bitmap apply(Bitmap src, FilterPipeline pipeline) {
+        Bitmap bmOut = createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
+        apply(src, bmOut, pipeline);
+        return bmOut;
+    }
+
+    /**
+     * Runs a pipeline over the source bitmap and stores the result in the destination.
+     * <p>
+     * Every stage of the pipeline is one banded pass from one bitmap into the next. The stages
+     * alternate between the destination and at most one intermediate bitmap, chosen so the last
+     * stage writes its rows straight into the destination at their final position.
+     * </p>
+     *
+     * @param src
+     *            The source bitmap, is not changed.
+     * @param dst
+     *            The mutable destination bitmap, at least as large as the source. Must not be the
+     *            source bitmap.
+     * @param pipeline
+     *            The pipeline to run.
+     */
+    public void apply(Bitmap src, Bitmap dst, FilterPipeline pipeline) {
+        List<FilterPipeline.Stage> stages = pipeline.getStages();
+        if (stages.isEmpty()) {
+            apply(src, dst, COPY);
+            return;
+        }
+        // the neighbourhood passes still to come, the last point operations run in place
+        int passes = 0;
+        for (FilterPipeline.Stage stage : stages) {
+            if (stage.getNeighbourhoodOperation() != null) {
+                passes++;
+            }
+        }
+
+        Bitmap input = src;
+        Bitmap intermediate = null;
+        for (FilterPipeline.Stage stage : stages) {
+            NeighbourhoodOperation neighbourhoodOperation = stage.getNeighbourhoodOperation();
+            if (neighbourhoodOperation == null) {
+                apply(input, dst, stage.getPointOperation());
+                break;
+            }
+            passes--;
+            Bitmap output;
+            if (passes % 2 == 0) {
+                output = dst;
+            } else {
+                if (intermediate == null) {
+                    intermediate = createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
+                }
+                output = intermediate;
+            }
+            apply(input, output, stage.getPointOperation(), neighbourhoodOperation);
+            input = output;
+        }
+        if (intermediate != null) {
+            release(intermediate);
+        }
+    }
+
+    /**
+     * Runs a pipeline over a mutable bitmap in place. Every stage runs like
+     * {@link #applyInPlace(Bitmap, NeighbourhoodOperation)}, so the pipeline never needs a second
+     * full frame.
+     *
+     * @param bitmap
+     *            The mutable bitmap, overwritten with the result.
+     * @param pipeline
+     *            The pipeline to run.
+     */
+    public void applyInPlace(Bitmap bitmap, FilterPipeline pipeline) {
+        for (FilterPipeline.Stage stage : pipeline.getStages()) {
+            if (stage.getNeighbourhoodOperation() == null) {
+                apply(bitmap, bitmap, stage.getPointOperation());
+            } else {
+                applyInPlace(bitmap, stage.getPointOperation(), stage.getNeighbourhoodOperation());
+            }
+        }
+    }
+
+    /**
+     * Applies point operations followed by a neighbourhood operation, band by band. Every band
+     * is read together with the halo rows around it that the neighbourhood operation needs, and
+     * the point operations are applied to those rows as they are read.
+     *
+     * @param src
+     *            The source bitmap.
+     * @param dst
+     *            The mutable destination bitmap, must not be the source bitmap.
+     * @param pointOperation
+     *            The point operation to apply first, or null.
+     * @param neighbourhoodOperation
+     *            The neighbourhood operation to apply.
+     */
+    private void apply(final Bitmap src, final Bitmap dst, final PointOperation pointOperation,
+            final NeighbourhoodOperation neighbourhoodOperation) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        final int radius = neighbourhoodOperation.getRadius();
+        final int rows = Math.max(Math.max(1, NEIGHBOURHOOD_BAND_BYTES / 4 / width),
+                MIN_BAND_RADII * radius);
+
+        mExecutor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                int[] window = obtainInts((rows + 2 * radius) * width);
+                int[] band = obtainInts(rows * width);
+
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    int windowTop = Math.max(0, top - radius);
+                    int windowBottom = Math.min(height, bottom + radius);
+                    src.getPixels(window, 0, width, 0, windowTop, width, windowBottom
+                            - windowTop);
+                    if (pointOperation != null) {
+                        pointOperation.apply(window, 0, (windowBottom - windowTop) * width);
+                    }
+                    neighbourhoodOperation.apply(window, windowTop, band, top, width, height,
+                            top, bottom);
+                    dst.setPixels(band, 0, width, 0, top, width, bottom - top);
+                }
+                releaseInts(window);
+                releaseInts(band);
+            }
+        });
+    }
+
+    /**
+     * Reads and writes whole rows of an image.
+     */
+    private interface RowStore {
+        /**
+         * Copies the rows {@code [top, bottom)} to the buffer, starting at the offset.
+         */
+        void read(int[] rows, int offset, int top, int bottom);
+
+        /**
+         * Copies the start of the buffer to the rows {@code [top, bottom)}.
+         */
+        void write(int[] rows, int top, int bottom);
+    }
+
+    private void applyInPlace(final Bitmap bitmap, PointOperation pointOperation,
+            NeighbourhoodOperation neighbourhoodOperation) {
+        final int width = bitmap.getWidth();
+        applyInPlace(new RowStore() {
+            @Override
+            public void read(int[] rows, int offset, int top, int bottom) {
+                bitmap.getPixels(rows, offset, width, 0, top, width, bottom - top);
+            }
+
+            @Override
+            public void write(int[] rows, int top, int bottom) {
+                bitmap.setPixels(rows, 0, width, 0, top, width, bottom - top);
+            }
+        }, width, bitmap.getHeight(), pointOperation, neighbourhoodOperation);
+    }
+
+    /**
+     * Applies point operations followed by a neighbourhood operation in place, band by band,
+     * writing every band only once the rows it covers have been read for the next band.
+     *
+     * @param store
+     *            The rows of the image, read and overwritten with the result.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param pointOperation
+     *            The point operation to apply first, or null.
+     * @param neighbourhoodOperation
+     *            The neighbourhood operation to apply.
+     */
+    private void applyInPlace(final RowStore store, final int width, final int height,
+            final PointOperation pointOperation,
+            final NeighbourhoodOperation neighbourhoodOperation) {
+        final int radius = neighbourhoodOperation.getRadius();
+        final int rows = Math.max(Math.max(1, NEIGHBOURHOOD_BAND_BYTES / 4 / width),
+                MIN_BAND_RADII * radius);
+        final StripPartitioner partitioner = mExecutor.getPartitioner();
+        final int strips = partitioner.getStripCount(height);
+
+        // the rows around every strip belong to its neighbours, which may write them first
+        final int[][] above = new int[strips][];
+        final int[][] below = new int[strips][];
+        for (int strip = 0; strip < strips; strip++) {
+            int top = partitioner.getTop(height, strip);
+            int bottom = partitioner.getBottom(height, strip);
+            int aboveTop = Math.max(0, top - radius);
+            int belowBottom = Math.min(height, bottom + radius);
+            above[strip] = new int[(top - aboveTop) * width];
+            below[strip] = new int[(belowBottom - bottom) * width];
+            if (top > aboveTop) {
+                store.read(above[strip], 0, aboveTop, top);
+            }
+            if (belowBottom > bottom) {
+                store.read(below[strip], 0, bottom, belowBottom);
+            }
+        }
+
+        mExecutor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                int strip = 0;
+                while (partitioner.getTop(height, strip) != stripTop) {
+                    strip++;
+                }
+                int[] window = obtainInts((rows + 2 * radius) * width);
+                int[] band = obtainInts(rows * width);
+                int[] pending = obtainInts(rows * width);
+                int pendingTop = stripTop;
+
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    int windowTop = Math.max(0, top - radius);
+                    int windowBottom = Math.min(height, bottom + radius);
+                    int[] rowsAbove = above[strip];
+                    int[] rowsBelow = below[strip];
+                    int readTop = Math.max(windowTop, stripTop);
+                    int readBottom = Math.min(windowBottom, stripBottom);
+                    if (windowTop < stripTop) {
+                        System.arraycopy(rowsAbove, 0, window, 0, rowsAbove.length);
+                    }
+                    store.read(window, (readTop - windowTop) * width, readTop, readBottom);
+                    if (windowBottom > stripBottom) {
+                        // a band that ends short of the strip needs only the first rows below it
+                        System.arraycopy(rowsBelow, 0, window, (stripBottom - windowTop) * width,
+                                (windowBottom - stripBottom) * width);
+                    }
+                    if (pointOperation != null) {
+                        pointOperation.apply(window, 0, (windowBottom - windowTop) * width);
+                    }
+                    neighbourhoodOperation.apply(window, windowTop, band, top, width, height,
+                            top, bottom);
+
+                    // this band has read the rows of the previous one, which can be written now
+                    if (top > stripTop) {
+                        store.write(pending, pendingTop, top);
+                    }
+                    int[] written = pending;
+                    pending = band;
+                    band = written;
+                    pendingTop = top;
+                }
+                store.write(pending, pendingTop, stripBottom);
+                releaseInts(window);
+                releaseInts(band);
+                releaseInts(pending);
+            }
+        });
+    }
+
+    private Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+        return mPool != null ? mPool.obtainBitmap(width, height, config) : Bitmap.createBitmap(
+                width, height, config);
+    }
+
+    private GreyImage createGreyImage(int width, int height) {
+        return mPool != null ? mPool.obtainGreyImage(width, height) : new GreyImage(width, height);
+    }
+
+    private int[] obtainInts(int length) {
+        return mPool != null ? mPool.obtainInts(length) : new int[length];
+    }
+
+    private byte[] obtainBytes(int length) {
+        return mPool != null ? mPool.obtainBytes(length) : new byte[length];
+    }
+
+    private void releaseInts(int[] array) {
+        if (mPool != null) {
+            mPool.release(array);
+        }
+    }
+
+    private void releaseBytes(byte[] array) {
+        if (mPool != null) {
+            mPool.release(array);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * A blur whose cost per pixel does not depend on its radius.
+ * <p>
+ * Every pass is a box blur computed with running sums: moving the box one pixel adds the pixel
+ * that enters it and subtracts the one that leaves it. Three passes in each direction approximate
+ * a Gaussian blur with a standard deviation of {@code sqrt(radius * (radius + 1))}. Pixels outside
+ * the image repeat the pixels at its edges, and all four channels are blurred.
+ * </p>
+ * <p>
+ * As a {@link NeighbourhoodOperation} the blur reads three radii of rows around every band. For a
+ * whole frame, {@link #blur(int[], int[], int, int, StripExecutor)} blurs the rows in strips of
+ * rows and the columns in strips of columns, so it needs no halo at all, and
+ * {@link #blur(byte[], byte[], int, int, StripExecutor)} does the same for one byte per pixel.
+ * {@link #apply(byte[], int, byte[], int, int, int, int, int)} blurs a band of grey values like
+ * a band of pixels. The buffers of every band and strip are scratch buffers of the thread that
+ * runs it, so the blur allocates nothing once they have grown to the largest band.
+ * </p>
+ */
+public final class BoxBlur implements NeighbourhoodOperation {
+    /**
+     * The number of box blurs in each direction.
+     */
+    public static final int PASSES = 3;
+    /**
+     * The largest supported radius.
+     */
+    public static final int MAX_RADIUS = 1000;
+    /**
+     * The number of fraction bits of the reciprocal the sums are scaled with.
+     */
+    private static final int SHIFT = 23;
+    /**
+     * The buffers of every thread, shared by all blurs: the window, blurred rows and line of the
+     * grey values, the column sums, and the window, blurred rows and line of the pixels.
+     */
+    private static final ScratchBuffers SCRATCH = new ScratchBuffers(7);
+
+    private final int mRadius;
+    /**
+     * {@code 2^SHIFT / (2 * radius + 1)}, so a sum is averaged with a multiplication.
+     */
+    private final int mScale;
+
+    /**
+     * Creates a blur.
+     *
+     * @param radius
+     *            The radius of every box, from 1 up to {@link #MAX_RADIUS}.
+     */
+    public BoxBlur(int radius) {
+        if (radius < 1 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("The radius must be between 1 and "
+                    + MAX_RADIUS);
+        }
+        mRadius = radius;
+        mScale = Math.round((float) (1 << SHIFT) / (2 * radius + 1));
+    }
+
+    /**
+     * Creates the blur that comes closest to a Gaussian blur.
+     *
+     * @param sigma
+     *            The standard deviation of the Gaussian blur.
+     * @return The blur.
+     */
+    public static BoxBlur forSigma(double sigma) {
+        // three boxes of width w have a variance of (w * w - 1) / 4
+        double width = Math.sqrt(4 * sigma * sigma + 1);
+        return new BoxBlur(Math.max(1, (int) Math.round((width - 1) / 2)));
+    }
+
+    /**
+     * @return The radius of every box.
+     */
+    public int getBoxRadius() {
+        return mRadius;
+    }
+
+    @Override
+    public int getRadius() {
+        return PASSES * mRadius;
+    }
+
+    /**
+     * Blurs a whole image in place. The rows are blurred in parallel strips of rows, the columns
+     * in parallel strips of columns.
+     *
+     * @param pixels
+     *            The ARGB pixels of the image, overwritten with the result.
+     * @param scratch
+     *            A buffer as large as the image, overwritten.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public void blur(final int[] pixels, final int[] scratch, final int width, final int height,
+            StripExecutor executor) {
+        executor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                int[] line = SCRATCH.getInts(6, width);
+                for (int y = top; y < bottom; y++) {
+                    int row = y * width;
+                    blurLine(pixels, row, line, 0, width);
+                    blurLine(line, 0, pixels, row, width);
+                    blurLine(pixels, row, line, 0, width);
+                    System.arraycopy(line, 0, pixels, row, width);
+                }
+            }
+        });
+        executor.execute(width, new StripExecutor.StripTask() {
+            @Override
+            public void run(int left, int right) {
+                int[] sums = SCRATCH.getInts(3, (right - left) * 4);
+                blurColumns(pixels, scratch, 0, width, height, left, right, 0, height, sums);
+                blurColumns(scratch, pixels, 0, width, height, left, right, 0, height, sums);
+                blurColumns(pixels, scratch, 0, width, height, left, right, 0, height, sums);
+                for (int row = 0; row < width * height; row += width) {
+                    System.arraycopy(scratch, row + left, pixels, row + left, right - left);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blurs a whole greyscale image in place, like {@link #blur(int[], int[], int, int,
+     * StripExecutor)}.
+     *
+     * @param pixels
+     *            The grey values of the image, one byte per pixel, overwritten with the result.
+     * @param scratch
+     *            A buffer of at least one byte per pixel, overwritten.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public void blur(final byte[] pixels, final byte[] scratch, final int width, final int height,
+            StripExecutor executor) {
+        executor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int top, int bottom) {
+                byte[] line = SCRATCH.getBytes(2, width);
+                for (int y = top; y < bottom; y++) {
+                    int row = y * width;
+                    blurLine(pixels, row, line, 0, width);
+                    blurLine(line, 0, pixels, row, width);
+                    blurLine(pixels, row, line, 0, width);
+                    System.arraycopy(line, 0, pixels, row, width);
+                }
+            }
+        });
+        executor.execute(width, new StripExecutor.StripTask() {
+            @Override
+            public void run(int left, int right) {
+                int[] sums = SCRATCH.getInts(3, right - left);
+                blurColumns(pixels, scratch, 0, width, height, left, right, 0, height, sums);
+                blurColumns(scratch, pixels, 0, width, height, left, right, 0, height, sums);
+                blurColumns(pixels, scratch, 0, width, height, left, right, 0, height, sums);
+                for (int row = 0; row < width * height; row += width) {
+                    System.arraycopy(scratch, row + left, pixels, row + left, right - left);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void apply(int[] src, int srcTop, int[] dst, int dstTop, int width, int height,
+            int top, int bottom) {
+        // blur the band with all rows around it that reach it within three passes
+        int first = Math.max(0, top - getRadius());
+        int last = Math.min(height, bottom + getRadius());
+        int rows = last - first;
+        int[] window = SCRATCH.getInts(4, rows * width);
+        int[] blurred = SCRATCH.getInts(5, rows * width);
+        int[] line = SCRATCH.getInts(6, width);
+        int[] sums = SCRATCH.getInts(3, width * 4);
+
+        for (int y = 0; y < rows; y++) {
+            int row = y * width;
+            blurLine(src, (first + y - srcTop) * width, window, row, width);
+            blurLine(window, row, line, 0, width);
+            blurLine(line, 0, window, row, width);
+        }
+        // rows outside the window repeat its edge rows, which only matters within three radii of
+        // the window edge, and those rows are not written
+        blurColumns(window, blurred, 0, width, rows, 0, width, 0, rows, sums);
+        blurColumns(blurred, window, 0, width, rows, 0, width, 0, rows, sums);
+        blurColumns(window, dst, (first - dstTop) * width, width, rows, 0, width, top - first,
+                bottom - first, sums);
+    }
+
+    /**
+     * Blurs a band of grey values, like {@link #apply(int[], int, int[], int, int, int, int, int)}
+     * blurs a band of pixels.
+     *
+     * @param src
+     *            The grey values of the input rows, one byte per pixel, starting with row
+     *            {@code srcTop}. Contains at least {@link #getRadius()} rows above and below the
+     *            band, as far as the image reaches.
+     * @param srcTop
+     *            The row of the image the first row of {@code src} belongs to.
+     * @param dst
+     *            The grey values of the output rows, starting with row {@code dstTop}.
+     * @param dstTop
+     *            The row of the image the first row of {@code dst} belongs to.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param top
+     *            The first row of the band.
+     * @param bottom
+     *            The row after the last row of the band.
+     */
+    public void apply(byte[] src, int srcTop, byte[] dst, int dstTop, int width, int height,
+            int top, int bottom) {
+        int first = Math.max(0, top - getRadius());
+        int last = Math.min(height, bottom + getRadius());
+        int rows = last - first;
+        byte[] window = SCRATCH.getBytes(0, rows * width);
+        byte[] blurred = SCRATCH.getBytes(1, rows * width);
+        byte[] line = SCRATCH.getBytes(2, width);
+        int[] sums = SCRATCH.getInts(3, width);
+
+        for (int y = 0; y < rows; y++) {
+            int row = y * width;
+            blurLine(src, (first + y - srcTop) * width, window, row, width);
+            blurLine(window, row, line, 0, width);
+            blurLine(line, 0, window, row, width);
+        }
+        blurColumns(window, blurred, 0, width, rows, 0, width, 0, rows, sums);
+        blurColumns(blurred, window, 0, width, rows, 0, width, 0, rows, sums);
+        blurColumns(window, dst, (first - dstTop) * width, width, rows, 0, width, top - first,
+                bottom - first, sums);
+    }
+
+    /**
+     * Box blurs one line of pixels.
+     */
+    private void blurLine(int[] in, int inOffset, int[] out, int outOffset, int length) {
+        final int radius = mRadius;
+        final int end = inOffset + length - 1;
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int pixel = in[Math.min(Math.max(inOffset + i, inOffset), end)];
+            sumA += pixel >>> 24;
+            sumR += (pixel >> 16) & 0xff;
+            sumG += (pixel >> 8) & 0xff;
+            sumB += pixel & 0xff;
+        }
+        for (int x = 0; x < length; x++) {
+            out[outOffset + x] = average(sumA, sumR, sumG, sumB);
+            int entering = in[Math.min(inOffset + x + radius + 1, end)];
+            int leaving = in[Math.max(inOffset + x - radius, inOffset)];
+            sumA += (entering >>> 24) - (leaving >>> 24);
+            sumR += ((entering >> 16) & 0xff) - ((leaving >> 16) & 0xff);
+            sumG += ((entering >> 8) & 0xff) - ((leaving >> 8) & 0xff);
+            sumB += (entering & 0xff) - (leaving & 0xff);
+        }
+    }
+
+    /**
+     * Box blurs columns vertically, walking the rows in order so the columns of a row are read
+     * together. Row {@code y} of the input is at {@code y * width}, of the output at
+     * {@code outOffset + y * width}.
+     */
+    private void blurColumns(int[] in, int[] out, int outOffset, int width, int rows, int left,
+            int right, int top, int bottom, int[] sums) {
+        final int radius = mRadius;
+        final int columns = right - left;
+        for (int c = 0; c < columns * 4; c++) {
+            sums[c] = 0;
+        }
+        for (int i = top - radius; i <= top + radius; i++) {
+            int row = Math.min(Math.max(i, 0), rows - 1) * width + left;
+            for (int c = 0, s = 0; c < columns; c++, s += 4) {
+                int pixel = in[row + c];
+                sums[s] += pixel >>> 24;
+                sums[s + 1] += (pixel >> 16) & 0xff;
+                sums[s + 2] += (pixel >> 8) & 0xff;
+                sums[s + 3] += pixel & 0xff;
+            }
+        }
+        for (int y = top; y < bottom; y++) {
+            int row = outOffset + y * width + left;
+            int entering = Math.min(y + radius + 1, rows - 1) * width + left;
+            int leaving = Math.max(y - radius, 0) * width + left;
+            for (int c = 0, s = 0; c < columns; c++, s += 4) {
+                out[row + c] = average(sums[s], sums[s + 1], sums[s + 2], sums[s + 3]);
+                int add = in[entering + c];
+                int remove = in[leaving + c];
+                sums[s] += (add >>> 24) - (remove >>> 24);
+                sums[s + 1] += ((add >> 16) & 0xff) - ((remove >> 16) & 0xff);
+                sums[s + 2] += ((add >> 8) & 0xff) - ((remove >> 8) & 0xff);
+                sums[s + 3] += (add & 0xff) - (remove & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Box blurs one line of grey values.
+     */
+    private void blurLine(byte[] in, int inOffset, byte[] out, int outOffset, int length) {
+        final int radius = mRadius;
+        final int end = inOffset + length - 1;
+        int sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            sum += in[Math.min(Math.max(inOffset + i, inOffset), end)] & 0xff;
+        }
+        for (int x = 0; x < length; x++) {
+            out[outOffset + x] = (byte) average(sum);
+            sum += (in[Math.min(inOffset + x + radius + 1, end)] & 0xff)
+                    - (in[Math.max(inOffset + x - radius, inOffset)] & 0xff);
+        }
+    }
+
+    /**
+     * Box blurs columns of grey values vertically, like
+     * {@link #blurColumns(int[], int[], int, int, int, int, int, int, int, int[])}.
+     */
+    private void blurColumns(byte[] in, byte[] out, int outOffset, int width, int rows, int left,
+            int right, int top, int bottom, int[] sums) {
+        final int radius = mRadius;
+        final int columns = right - left;
+        for (int c = 0; c < columns; c++) {
+            sums[c] = 0;
+        }
+        for (int i = top - radius; i <= top + radius; i++) {
+            int row = Math.min(Math.max(i, 0), rows - 1) * width + left;
+            for (int c = 0; c < columns; c++) {
+                sums[c] += in[row + c] & 0xff;
+            }
+        }
+        for (int y = top; y < bottom; y++) {
+            int row = outOffset + y * width + left;
+            int entering = Math.min(y + radius + 1, rows - 1) * width + left;
+            int leaving = Math.max(y - radius, 0) * width + left;
+            for (int c = 0; c < columns; c++) {
+                out[row + c] = (byte) average(sums[c]);
+                sums[c] += (in[entering + c] & 0xff) - (in[leaving + c] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Returns the rounded average of the sum of one channel of a box.
+     */
+    private int average(int sum) {
+        return (sum * mScale + (1 << (SHIFT - 1))) >>> SHIFT;
+    }
+
+    /**
+     * Packs the rounded averages of the channel sums of a box into a pixel.
+     */
+    private int average(int sumA, int sumR, int sumG, int sumB) {
+        final int scale = mScale;
+        final int half = 1 << (SHIFT - 1);
+        // the products can exceed a signed int, but not an unsigned one
+        return ((sumA * scale + half) >>> SHIFT) << 24 | ((sumR * scale + half) >>> SHIFT) << 16
+                | ((sumG * scale + half) >>> SHIFT) << 8 | ((sumB * scale + half) >>> SHIFT);
+    }
+}
@@ -0,0 +1,301 @@
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps released bitmaps and pixel arrays for reuse, so repeated scans do not allocate and
+ * garbage collect full frames every time.
+ * <p>
+ * A bitmap is reused for a request of the same size and config. From KitKat on, a larger bitmap
+ * of the same config is reconfigured to the requested size instead. An array is reused for a
+ * request of at most its length, the smallest fitting one is taken. A buffer is not handed out
+ * for a request of less than half its size, so a small request does not hold on to a full frame.
+ * The buffers in the pool
+ * take at most a fixed number of bytes; the ones released longest ago are evicted first, and
+ * evicted bitmaps are recycled.
+ * </p>
+ * <p>
+ * Reused buffers keep their old contents. All methods are thread safe.
+ * </p>
+ */
+public final class BufferPool {
+    /**
+     * The part of the maximum heap the shared pool may keep.
+     */
+    private static final int SHARED_HEAP_DIVISOR = 4;
+    /**
+     * How many times larger than the request a reused buffer may be.
+     */
+    private static final int MAX_OVERSIZE = 2;
+
+    private static BufferPool sInstance;
+
+    /**
+     * The buffers in the pool, the one released longest ago first.
+     */
+    private final LinkedList<Object> mBuffers = new LinkedList<Object>();
+    private final long mMaxBytes;
+    private long mBytes;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxBytes
+     *            The number of bytes the buffers in the pool may take together.
+     */
+    public BufferPool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The budget must not be negative");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The pool shared by the activities, which may keep a quarter of the heap.
+     */
+    public static synchronized BufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BufferPool(Runtime.getRuntime().maxMemory() / SHARED_HEAP_DIVISOR);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a mutable bitmap from the pool, or a new one if none fits.
+     *
+     * @param width
+     *            The width of the bitmap.
+     * @param height
+     *            The height of the bitmap.
+     * @param config
+     *            The config of the bitmap.
+     * @return The bitmap, with undefined pixels if it is reused.
+     */
+    public Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        synchronized (this) {
+            Bitmap larger = null;
+            for (Iterator<Object> it = mBuffers.iterator(); it.hasNext();) {
+                Object buffer = it.next();
+                if (!(buffer instanceof Bitmap)) {
+                    continue;
+                }
+                Bitmap bitmap = (Bitmap) buffer;
+                if (bitmap.getConfig() != config) {
+                    continue;
+                }
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    it.remove();
+                    mBytes -= getBytes(bitmap);
+                    return bitmap;
+                }
+                if (canReconfigure(bitmap, width, height)
+                        && (larger == null || getBytes(bitmap) < getBytes(larger))) {
+                    larger = bitmap;
+                }
+            }
+            if (larger != null) {
+                mBuffers.remove(larger);
+                mBytes -= getBytes(larger);
+                larger.reconfigure(width, height, config);
+                return larger;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns an {@code int} array from the pool, or a new one if none fits.
+     *
+     * @param length
+     *            The smallest length of the array.
+     * @return The array, at least as long as requested, with undefined contents if it is reused.
+     */
+    public int[] obtainInts(int length) {
+        int[] array = (int[]) obtainArray(int[].class, length);
+        return array != null ? array : new int[length];
+    }
+
+    /**
+     * Returns a {@code byte} array from the pool, or a new one if none fits.
+     *
+     * @param length
+     *            The smallest length of the array.
+     * @return The array, at least as long as requested, with undefined contents if it is reused.
+     */
+    public byte[] obtainBytes(int length) {
+        byte[] array = (byte[]) obtainArray(byte[].class, length);
+        return array != null ? array : new byte[length];
+    }
+
+    /**
+     * Returns a greyscale image whose pixels come from the pool.
+     *
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @return The image, with undefined pixels if they are reused.
+     */
+    public GreyImage obtainGreyImage(int width, int height) {
+        return new GreyImage(width, height, obtainBytes(GreyImage.getLength(width, height)));
+    }
+
+    /**
+     * Puts a bitmap in the pool. Immutable and recycled bitmaps cannot be reused, they are
+     * recycled.
+     *
+     * @param bitmap
+     *            The bitmap, must no longer be used by the caller.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+        add(bitmap, getBytes(bitmap));
+    }
+
+    /**
+     * Puts an array in the pool.
+     *
+     * @param array
+     *            The array, must no longer be used by the caller.
+     */
+    public void release(int[] array) {
+        add(array, getBytes(array));
+    }
+
+    /**
+     * Puts an array in the pool.
+     *
+     * @param array
+     *            The array, must no longer be used by the caller.
+     */
+    public void release(byte[] array) {
+        add(array, getBytes(array));
+    }
+
+    /**
+     * Puts the pixels of a greyscale image in the pool.
+     *
+     * @param image
+     *            The image, must no longer be used by the caller.
+     */
+    public void release(GreyImage image) {
+        release(image.getPixels());
+    }
+
+    /**
+     * Empties the pool and recycles its bitmaps.
+     */
+    public synchronized void clear() {
+        while (!mBuffers.isEmpty()) {
+            evict();
+        }
+    }
+
+    /**
+     * @return The number of bytes the buffers in the pool take.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Takes the smallest array of a type that is at least as long as requested.
+     */
+    private synchronized Object obtainArray(Class<?> type, int length) {
+        Object best = null;
+        int bestLength = Integer.MAX_VALUE;
+        for (Object buffer : mBuffers) {
+            if (buffer.getClass() == type) {
+                int bufferLength = getLength(buffer);
+                if (bufferLength >= length && bufferLength < bestLength
+                        && bufferLength / MAX_OVERSIZE <= length) {
+                    best = buffer;
+                    bestLength = bufferLength;
+                }
+            }
+        }
+        if (best != null) {
+            mBuffers.remove(best);
+            mBytes -= getBytes(best);
+        }
+        return best;
+    }
+
+    private synchronized void add(Object buffer, long bytes) {
+        if (bytes > mMaxBytes) {
+            discard(buffer);
+            return;
+        }
+        mBuffers.addLast(buffer);
+        mBytes += bytes;
+        while (mBytes > mMaxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the buffer that was released longest ago.
+     */
+    private void evict() {
+        Object buffer = mBuffers.removeFirst();
+        mBytes -= getBytes(buffer);
+        discard(buffer);
+    }
+
+    private static void discard(Object buffer) {
+        if (buffer instanceof Bitmap) {
+            ((Bitmap) buffer).recycle();
+        }
+    }
+
+    private static long getBytes(Object buffer) {
+        if (buffer instanceof Bitmap) {
+            Bitmap bitmap = (Bitmap) buffer;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // a reconfigured bitmap keeps its larger allocation
+                return bitmap.getAllocationByteCount();
+            }
+            return (long) bitmap.getRowBytes() * bitmap.getHeight();
+        } else if (buffer instanceof int[]) {
+            return 4L * ((int[]) buffer).length;
+        } else {
+            return ((byte[]) buffer).length;
+        }
+    }
+
+    private static int getLength(Object array) {
+        return array instanceof int[] ? ((int[]) array).length : ((byte[]) array).length;
+    }
+
+    /**
+     * Checks if a bitmap can be reconfigured to a size, which needs KitKat.
+     */
+    private static boolean canReconfigure(Bitmap bitmap, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        long bytes = (long) width * height * getBytesPerPixel(bitmap.getConfig());
+        long allocated = bitmap.getAllocationByteCount();
+        return allocated >= bytes && allocated / MAX_OVERSIZE <= bytes;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+        case ALPHA_8:
+            return 1;
+        case RGB_565:
+        case ARGB_4444:
+            return 2;
+        default:
+            return 4;
+        }
+    }
+}
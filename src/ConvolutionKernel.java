@@ -0,0 +1,575 @@
+/**
+ * An NxN convolution over ARGB {@code int} buffers, for any odd N.
+ * <p>
+ * Gives the same result as {@code ConvolutionMatrix.computeConvolution3x3} for 3x3 kernels: the
+ * matrix is indexed as {@code matrix[column][row]} of the neighbourhood, the alpha channel is
+ * copied from the center pixel and a border as wide as the radius of the kernel is left
+ * transparent.
+ * </p>
+ * <p>
+ * The kernel is compiled into integer weights in a flat array, a bias and a divisor, so every
+ * pixel is computed with integer arithmetic only. Kernels with integer weights, factor and
+ * offset, like all kernels of ImageFilters, give exactly the result of the {@code double}
+ * computation. Other kernels are scaled to fixed-point weights with up to
+ * {@link #FRACTION_BITS} fraction bits.
+ * </p>
+ * <p>
+ * A kernel whose integer weights are the product of a column and a row vector, like the Gaussian
+ * blur, is separable and runs as a horizontal and a vertical 1-D pass, which takes 2N instead of
+ * N*N multiplications per channel. Other kernels are convolved directly, tile by tile.
+ * </p>
+ */
+public final class ConvolutionKernel implements NeighbourhoodOperation {
+    /**
+     * The number of fraction bits of the weights of kernels that are not integer.
+     */
+    public static final int FRACTION_BITS = 16;
+
+    private static final ConvolutionKernel GAUSSIAN_BLUR = new ConvolutionKernel(new double[][] {
+            {
+                    1, 2, 1
+            }, {
+                    2, 4, 2
+            }, {
+                    1, 2, 1
+            }
+    }, 16, 0);
+    private static final ConvolutionKernel MEAN_REMOVAL = new ConvolutionKernel(new double[][] {
+            {
+                    -1, -1, -1
+            }, {
+                    -1, 9, -1
+            }, {
+                    -1, -1, -1
+            }
+    }, 1, 0);
+    private static final ConvolutionKernel EMBOSS = new ConvolutionKernel(new double[][] {
+            {
+                    -1, 0, -1
+            }, {
+                    0, 4, 0
+            }, {
+                    -1, 0, -1
+            }
+    }, 1, 127);
+    private static final ConvolutionKernel ENGRAVE = new ConvolutionKernel(new double[][] {
+            {
+                    -2, 0, 0
+            }, {
+                    0, 2, 0
+            }, {
+                    0, 0, 0
+            }
+    }, 1, 95);
+
+    /**
+     * The largest radius of {@link #gaussianBlur(int)}, the weighted sums of larger ones would not
+     * fit in an int.
+     */
+    public static final int MAX_GAUSSIAN_RADIUS = 5;
+
+    private final int mSize;
+    /**
+     * The weights, {@code mWeights[row * mSize + column]}.
+     */
+    private final int[] mWeights;
+    /**
+     * The horizontal and vertical weights of a separable kernel, or null.
+     */
+    private final int[] mRowWeights;
+    private final int[] mColumnWeights;
+    /**
+     * Added to the weighted sum before it is divided.
+     */
+    private final int mBias;
+    /**
+     * The positive value the biased sum is divided by, or 0 if the factor of the kernel is 0.
+     */
+    private final int mDivisor;
+    private final Tiling mTiling = Tiling.squares(Tiling.DEFAULT_CACHE_BYTES);
+    private final PixelKernels mKernels = PixelKernels.getInstance();
+    /**
+     * The tile visitor of every thread, reused by every band.
+     */
+    private final ThreadLocal<TileConvolver> mConvolvers = new ThreadLocal<TileConvolver>() {
+        @Override
+        protected TileConvolver initialValue() {
+            return new TileConvolver();
+        }
+    };
+
+    /**
+     * Creates a kernel.
+     *
+     * @param matrix
+     *            The NxN weights, copied. N must be odd.
+     * @param factor
+     *            The value the weighted sum is divided by.
+     * @param offset
+     *            The value added to the divided sum.
+     */
+    public ConvolutionKernel(double[][] matrix, double factor, double offset) {
+        mSize = matrix.length;
+        if (mSize % 2 == 0) {
+            throw new IllegalArgumentException("Only kernels with an odd size are supported");
+        }
+        mWeights = new int[mSize * mSize];
+        double[] weights = new double[mSize * mSize];
+        boolean integer = isInteger(factor) && isInteger(offset);
+        for (int i = 0; i < mSize; i++) {
+            if (matrix[i].length != mSize) {
+                throw new IllegalArgumentException("Only square kernels are supported");
+            }
+            for (int j = 0; j < mSize; j++) {
+                weights[j * mSize + i] = matrix[i][j];
+                integer &= isInteger(matrix[i][j]);
+            }
+        }
+
+        int divisor;
+        long bias;
+        if (integer && factor != 0 && fits(weights, 1, Math.abs(offset * factor))) {
+            // (int) (sum / factor + offset) == (sum + offset * factor) / factor for integers
+            for (int k = 0; k < weights.length; k++) {
+                mWeights[k] = (int) weights[k];
+            }
+            divisor = (int) factor;
+            bias = (long) offset * (long) factor;
+        } else {
+            // a sum divided by a factor of 0 is infinite, only the sign of the sum matters
+            double divide = factor == 0 ? 1 : factor;
+            double scale = 1 << FRACTION_BITS;
+            while (!fits(weights, scale / Math.abs(divide), Math.abs(offset) * scale)) {
+                if (scale == 1) {
+                    throw new IllegalArgumentException("The weights of the kernel are too large");
+                }
+                scale /= 2;
+            }
+            for (int k = 0; k < weights.length; k++) {
+                mWeights[k] = (int) Math.round(weights[k] / divide * scale);
+            }
+            divisor = factor == 0 ? 0 : (int) scale;
+            bias = Math.round(offset * scale);
+        }
+        if (divisor < 0) {
+            // truncating division gives the same quotient with both signs flipped
+            for (int k = 0; k < mWeights.length; k++) {
+                mWeights[k] = -mWeights[k];
+            }
+            divisor = -divisor;
+            bias = -bias;
+        }
+        mDivisor = divisor;
+        mBias = (int) bias;
+
+        int[][] vectors = separate(mWeights, mSize);
+        mRowWeights = vectors != null ? vectors[0] : null;
+        mColumnWeights = vectors != null ? vectors[1] : null;
+    }
+
+    private static boolean isInteger(double value) {
+        return value == Math.rint(value) && Math.abs(value) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Splits integer weights into a row vector and a column vector whose product they are.
+     *
+     * @return The row and the column vector, or null if the weights are not separable.
+     */
+    private static int[][] separate(int[] weights, int size) {
+        int pivot = 0;
+        while (pivot < weights.length && weights[pivot] == 0) {
+            pivot++;
+        }
+        if (pivot == weights.length) {
+            return null;
+        }
+        int pivotRow = pivot / size * size;
+        int pivotColumn = pivot % size;
+
+        // the row vector is the pivot row divided by the gcd of its weights
+        int gcd = 0;
+        for (int i = 0; i < size; i++) {
+            gcd = gcd(gcd, Math.abs(weights[pivotRow + i]));
+        }
+        if (weights[pivot] < 0) {
+            gcd = -gcd;
+        }
+        int[] row = new int[size];
+        for (int i = 0; i < size; i++) {
+            row[i] = weights[pivotRow + i] / gcd;
+        }
+        int[] column = new int[size];
+        for (int j = 0; j < size; j++) {
+            if (weights[j * size + pivotColumn] % row[pivotColumn] != 0) {
+                return null;
+            }
+            column[j] = weights[j * size + pivotColumn] / row[pivotColumn];
+        }
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                if (weights[j * size + i] != column[j] * row[i]) {
+                    return null;
+                }
+            }
+        }
+        return new int[][] {
+                row, column
+        };
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Checks that the scaled weighted sum of any neighbourhood plus the bias fits in an int.
+     */
+    private static boolean fits(double[] weights, double scale, double bias) {
+        double max = bias;
+        for (double weight : weights) {
+            max += Math.abs(weight) * scale * 255;
+        }
+        return max < Integer.MAX_VALUE / 2;
+    }
+
+    /**
+     * @return The 3x3 Gaussian blur kernel of ImageFilters.
+     */
+    public static ConvolutionKernel gaussianBlur() {
+        return GAUSSIAN_BLUR;
+    }
+
+    /**
+     * Creates a Gaussian blur out of binomial weights, which are separable.
+     *
+     * @param radius
+     *            The radius of the kernel, from 1 up to {@link #MAX_GAUSSIAN_RADIUS}. A radius of 1
+     *            gives the 3x3 Gaussian blur of ImageFilters.
+     * @return The (2 * radius + 1) square Gaussian blur kernel.
+     */
+    public static ConvolutionKernel gaussianBlur(int radius) {
+        if (radius < 1 || radius > MAX_GAUSSIAN_RADIUS) {
+            throw new IllegalArgumentException("The radius must be between 1 and "
+                    + MAX_GAUSSIAN_RADIUS);
+        }
+        int size = 2 * radius + 1;
+        double[] binomial = new double[size];
+        binomial[0] = 1;
+        for (int k = 1; k < size; k++) {
+            binomial[k] = binomial[k - 1] * (size - k) / k;
+        }
+        double[][] matrix = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrix[i][j] = binomial[i] * binomial[j];
+            }
+        }
+        double sum = Math.pow(2, size - 1);
+        return new ConvolutionKernel(matrix, sum * sum, 0);
+    }
+
+    /**
+     * @param weight
+     *            The weight of the center pixel.
+     * @return The sharpen kernel of ImageFilters.
+     */
+    public static ConvolutionKernel sharpen(double weight) {
+        return new ConvolutionKernel(new double[][] {
+                {
+                        0, -2, 0
+                }, {
+                        -2, weight, -2
+                }, {
+                        0, -2, 0
+                }
+        }, weight - 8, 1);
+    }
+
+    /**
+     * @return The mean removal kernel of ImageFilters.
+     */
+    public static ConvolutionKernel meanRemoval() {
+        return MEAN_REMOVAL;
+    }
+
+    /**
+     * @param value
+     *            The weight of the center pixel.
+     * @return The smooth kernel of ImageFilters.
+     */
+    public static ConvolutionKernel smooth(double value) {
+        return new ConvolutionKernel(new double[][] {
+                {
+                        1, 1, 1
+                }, {
+                        1, value, 1
+                }, {
+                        1, 1, 1
+                }
+        }, value + 8, 1);
+    }
+
+    /**
+     * @return The emboss kernel of ImageFilters.
+     */
+    public static ConvolutionKernel emboss() {
+        return EMBOSS;
+    }
+
+    /**
+     * @return The engrave kernel of ImageFilters.
+     */
+    public static ConvolutionKernel engrave() {
+        return ENGRAVE;
+    }
+
+    @Override
+    public int getRadius() {
+        return mSize / 2;
+    }
+
+    /**
+     * @return The width and height of the kernel.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return Whether the kernel runs as two 1-D passes.
+     */
+    public boolean isSeparable() {
+        return mRowWeights != null;
+    }
+
+    /**
+     * Convolves a whole image, tile by tile.
+     *
+     * @param src
+     *            The source pixels.
+     * @param dst
+     *            The destination pixels, must not be the source buffer.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     */
+    public void convolve(int[] src, int[] dst, int width, int height) {
+        convolve(src, dst, width, height, mTiling);
+    }
+
+    /**
+     * Convolves a whole image, tile by tile.
+     *
+     * @param src
+     *            The source pixels.
+     * @param dst
+     *            The destination pixels, must not be the source buffer.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param tiling
+     *            The tiling to walk through the image with.
+     */
+    public void convolve(int[] src, int[] dst, int width, int height, Tiling tiling) {
+        apply(src, 0, dst, 0, width, height, 0, height, tiling);
+    }
+
+    @Override
+    public void apply(int[] src, int srcTop, int[] dst, int dstTop, int width, int height,
+            int top, int bottom) {
+        apply(src, srcTop, dst, dstTop, width, height, top, bottom, mTiling);
+    }
+
+    private void apply(int[] src, int srcTop, int[] dst, int dstTop, int width, int height,
+            int top, int bottom, Tiling tiling) {
+        final int radius = getRadius();
+        // the border is not convolved and stays transparent
+        for (int y = top; y < bottom; y++) {
+            int row = (y - dstTop) * width;
+            if (y < radius || y >= height - radius || width < mSize) {
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = 0;
+                }
+            } else {
+                for (int x = 0; x < radius; x++) {
+                    dst[row + x] = 0;
+                    dst[row + width - 1 - x] = 0;
+                }
+            }
+        }
+        if (width < mSize || height < mSize) {
+            return;
+        }
+        TileConvolver convolver = mConvolvers.get();
+        convolver.start(src, srcTop, dst, dstTop, width, isSeparable() ? Math.min(
+                tiling.getTileWidth(), width) * (Math.min(tiling.getTileHeight(), height) + 2
+                * radius) * 3 : 0);
+        try {
+            tiling.forEachTile(radius, Math.max(top, radius), width - radius, Math.min(bottom,
+                    height - radius), convolver);
+        } finally {
+            convolver.finish();
+        }
+    }
+
+    /**
+     * Convolves the tiles of one band. Every thread has its own, which keeps the horizontal sums
+     * of a separable kernel between bands.
+     */
+    private final class TileConvolver implements Tiling.TileVisitor {
+        private int[] mSrc;
+        private int mSrcTop;
+        private int[] mDst;
+        private int mDstTop;
+        private int mWidth;
+        /**
+         * The horizontal sums of a separable kernel, three channels for every pixel of a tile.
+         */
+        private int[] mSums = new int[0];
+
+        /**
+         * Prepares the visitor for the tiles of a band.
+         */
+        void start(int[] src, int srcTop, int[] dst, int dstTop, int width, int sums) {
+            mSrc = src;
+            mSrcTop = srcTop;
+            mDst = dst;
+            mDstTop = dstTop;
+            mWidth = width;
+            if (mSums.length < sums) {
+                mSums = new int[sums];
+            }
+        }
+
+        /**
+         * Lets go of the pixels of the band.
+         */
+        void finish() {
+            mSrc = null;
+            mDst = null;
+        }
+
+        @Override
+        public void visitTile(int left, int top, int right, int bottom) {
+            if (isSeparable()) {
+                convolveSeparable(mSrc, mSrcTop, mDst, mDstTop, mWidth, left, top, right, bottom,
+                        mSums);
+            } else if (mSize == 3) {
+                convolveTile(mSrc, mSrcTop, mDst, mDstTop, mWidth, left, top, right, bottom);
+            } else {
+                convolveDirect(mSrc, mSrcTop, mDst, mDstTop, mWidth, left, top, right, bottom);
+            }
+        }
+    }
+
+    /**
+     * Convolves the pixels of one tile with a 3x3 kernel, row by row with the
+     * {@link PixelKernels}. The tile must not touch the border of the image.
+     */
+    private void convolveTile(int[] src, int srcTop, int[] dst, int dstTop, int width, int left,
+            int top, int right, int bottom) {
+        final PixelKernels kernels = mKernels;
+        for (int y = top; y < bottom; y++) {
+            kernels.convolve3x3(src, (y - srcTop) * width + left, width, dst, (y - dstTop) * width
+                    + left, right - left, mWeights, mBias, mDivisor);
+        }
+    }
+
+    /**
+     * Convolves the pixels of one tile with a separable kernel: the rows of the tile and the rows
+     * around it are summed horizontally first, and those sums are then summed vertically. Both
+     * passes are exact integer sums, so the result is the same as that of the direct convolution.
+     */
+    private void convolveSeparable(int[] src, int srcTop, int[] dst, int dstTop, int width,
+            int left, int top, int right, int bottom, int[] sums) {
+        final int size = mSize;
+        final int radius = getRadius();
+        final int[] rowWeights = mRowWeights;
+        final int[] columnWeights = mColumnWeights;
+        final int stride = (right - left) * 3;
+
+        int sum = 0;
+        for (int y = top - radius; y < bottom + radius; y++) {
+            int row = (y - srcTop) * width - radius;
+            for (int x = left; x < right; x++) {
+                int sumR = 0, sumG = 0, sumB = 0;
+                for (int i = 0; i < size; i++) {
+                    int pixel = src[row + x + i];
+                    int weight = rowWeights[i];
+                    sumR += weight * ((pixel >> 16) & 0xff);
+                    sumG += weight * ((pixel >> 8) & 0xff);
+                    sumB += weight * (pixel & 0xff);
+                }
+                sums[sum++] = sumR;
+                sums[sum++] = sumG;
+                sums[sum++] = sumB;
+            }
+        }
+
+        for (int y = top; y < bottom; y++) {
+            int out = (y - dstTop) * width;
+            int center = (y - srcTop) * width;
+            int first = (y - top) * stride;
+            for (int x = left; x < right; x++, first += 3) {
+                int sumR = 0, sumG = 0, sumB = 0;
+                for (int j = 0, s = first; j < size; j++, s += stride) {
+                    int weight = columnWeights[j];
+                    sumR += weight * sums[s];
+                    sumG += weight * sums[s + 1];
+                    sumB += weight * sums[s + 2];
+                }
+                dst[out + x] = (src[center + x] & 0xff000000) | (scale(sumR) << 16)
+                        | (scale(sumG) << 8) | scale(sumB);
+            }
+        }
+    }
+
+    /**
+     * Convolves the pixels of one tile with a kernel of any size. The tile must not touch the
+     * border of the image.
+     */
+    private void convolveDirect(int[] src, int srcTop, int[] dst, int dstTop, int width,
+            int left, int top, int right, int bottom) {
+        final int size = mSize;
+        final int radius = getRadius();
+        final int[] weights = mWeights;
+
+        for (int y = top; y < bottom; y++) {
+            int out = (y - dstTop) * width;
+            int first = (y - radius - srcTop) * width - radius;
+            for (int x = left; x < right; x++) {
+                int sumR = 0, sumG = 0, sumB = 0;
+                for (int j = 0, k = 0; j < size; j++) {
+                    int row = first + j * width + x;
+                    for (int i = 0; i < size; i++, k++) {
+                        int pixel = src[row + i];
+                        int weight = weights[k];
+                        sumR += weight * ((pixel >> 16) & 0xff);
+                        sumG += weight * ((pixel >> 8) & 0xff);
+                        sumB += weight * (pixel & 0xff);
+                    }
+                }
+                int alpha = src[first + radius * width + x + radius] & 0xff000000;
+                dst[out + x] = alpha | (scale(sumR) << 16) | (scale(sumG) << 8) | scale(sumB);
+            }
+        }
+    }
+
+    /**
+     * Turns a weighted sum into a channel value.
+     */
+    private int scale(int sum) {
+        if (mDivisor == 0) {
+            return sum > 0 ? 255 : 0;
+        }
+        return PointOperations.clamp((sum + mBias) / mDivisor);
+    }
+}
@@ -4,28 +4,52 @@ import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CropActivity extends Activity {
     private final static String TAG = CropActivity.class.getSimpleName();
     private final static String EXTENSION = ".jpg";
+    /**
+     * How the cropped image is made readable, chosen with the "enhanceMode" extra.
+     */
+    enum EnhanceMode {
+        /**
+         * A global contrast curve and sharpening, keeps the photo look of the page.
+         */
+        CONTRAST,
+        /**
+         * Black text on white paper, with a threshold that follows the lighting of the page.
+         */
+        ADAPTIVE_THRESHOLD
+    }
+
     private CropView mCropView;
-    private BitmapDrawable mBitmapDrawable;
+    /**
+     * Decodes the preview and the cropped region of the picture.
+     */
+    private RegionCropper mCropper;
+    /**
+     * The downsampled picture shown in mCropView.
+     */
+    private Bitmap mPreview;
     private Button mCropButton;
     private Button mNewPictureButton;
     private Context mContext;
@@ -33,22 +57,53 @@ public class CropActivity extends Activity {
     private File mNewFile;
     private ProgressDialog mProgressDialog;
     /**
-     * A list for splitted bitmaps, to divide between multiple AsyncTasks.
+     * The number of available cores, determines the number of threads that process an image.
      */
-    private ArrayList<Bitmap> mBitmaps;
-    @SuppressWarnings("rawtypes")
+    private int mNumberOfCores;
     /**
-     * A list of AsyncTasks, process the bitmaps in mBitmaps.
+     * The ImageFilter object for applying filters to an image.
      */
-    private ArrayList<AsyncTask> mTasks;
+    private ImageFilters mFilter;
     /**
-     * The number of available cores, determines the size of mTasks and mBitmaps.
+     * The buffers of the scans, shared with the next activity.
      */
-    private int mNumberOfCores;
+    private BufferPool mPool;
     /**
-     * The ImageFilter object for applying filters to an image.
+     * The service that enhances and sharpens the cropped image.
      */
-    private ImageFilters mFilter;
+    private ImageProcessingService mProcessingService;
+    /**
+     * The image being processed, or null when the user is not waiting for one.
+     */
+    private Future<ProcessedScan> mScanFuture;
+    /**
+     * The task of the image being processed, which frees the decoder when it is cancelled before
+     * it starts.
+     */
+    private FilterImageTask mScanTask;
+    /**
+     * The thread that encodes and writes the processed images.
+     */
+    private ExecutorService mIoExecutor;
+    /**
+     * Writes the processed image, with the JPEG quality from the "jpegQuality" extra.
+     */
+    private JpegWriter mJpegWriter;
+    private EnhanceMode mEnhanceMode;
+    /**
+     * Whether the enhanced crop is shown at a low resolution right away and filled in at full
+     * resolution, instead of behind a progress dialog. Set with the "progressive" extra.
+     */
+    private boolean mProgressive;
+    private Handler mMainHandler;
+    /**
+     * Enhances the preview inside the crop while it is moved, with the "livePreview" extra.
+     */
+    private LivePreview mLivePreview;
+    /**
+     * The stages of the scan of this picture, recorded when the "traceScans" extra is set.
+     */
+    private ScanTrace.Scan mScan;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -57,16 +112,33 @@ public class CropActivity extends Activity {
         mContext = this;
         mCropView = new CropView(this);
         mFile = new File(getIntent().getStringExtra("imgpath"));
-        mBitmaps = new ArrayList<Bitmap>();
-        mTasks = new ArrayList();
         mNumberOfCores = Runtime.getRuntime().availableProcessors();
+        // one full-size image at a time, the callbacks run on the main thread
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mProcessingService = new ImageProcessingService(mNumberOfCores, 1, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mMainHandler.post(command);
+            }
+        });
+        // repeated scans reuse the buffers of the previous ones
+        mPool = BufferPool.getInstance();
+        mFilter = new ImageFilters(mProcessingService.getStripExecutor(), mPool);
+        mIoExecutor = Executors.newSingleThreadExecutor();
+        mJpegWriter = new JpegWriter(mIoExecutor, getIntent().getIntExtra("jpegQuality",
+                JpegWriter.DEFAULT_QUALITY), false);
+        String enhanceMode = getIntent().getStringExtra("enhanceMode");
+        mEnhanceMode = enhanceMode != null ? EnhanceMode.valueOf(enhanceMode)
+                : EnhanceMode.CONTRAST;
+        mProgressive = getIntent().getBooleanExtra("progressive", false);
         mProgressDialog = new ProgressDialog(mContext);
         mProgressDialog.setTitle("Enhancing image");
-        mBitmapDrawable = null;
-        mBitmapDrawable = (BitmapDrawable) Drawable.createFromPath(mFile.getAbsolutePath());
-
+        if (getIntent().getBooleanExtra("traceScans", false)) {
+            ScanTrace.getInstance().enable(new AndroidTraceProbe(), new LogExporter());
+        }
+        mScan = ScanTrace.getInstance().startScan();
         mCropView = (CropView) findViewById(R.id.image_preview);
-        mCropView.setImageDrawable(mBitmapDrawable);
+        openPicture();
 
         mCropButton = (Button) findViewById(R.id.button_crop);
 
@@ -74,51 +146,40 @@ public class CropActivity extends Activity {
 
             @Override
             public void onClick(View v) {
+                if (mCropper == null) {
+                    // the picture could not be opened, or is being scanned
+                    return;
+                }
                 try {
-                    // gets the cropped image and puts it in a bytearray.
-                    byte[] mByteArray = mCropView.getCroppedImage(mBitmapDrawable,
-                            mCropView.getWidth(), mCropView.getHeight());
-                    FileOutputStream output = null;
-                    try {
-                        mNewFile = new File(mFile.getParentFile().getAbsolutePath()
-                                + File.separator
-                                + mFile.getName().substring(0, mFile.getName().length() - 4)
-                                + "_cropped" + EXTENSION);
-                        // creates the file to store the cropped image in
-                        mNewFile.createNewFile();
-                        if (mNewFile != null) {
-                            // write the bytearray to the file
-                            output = new FileOutputStream(mNewFile);
-                            output.write(mByteArray);
-                            Log.d(TAG, "file cropped and created");
-                            // free the memory used by the bitmap
-                            mBitmapDrawable.getBitmap().recycle();
-                            // create a bitmap from the created file.
-                            Bitmap mBitmap = BitmapFactory.decodeFile(mNewFile.getAbsolutePath());
-
-                            mCropView.setImageBitmap(null);
-                            mFilter = new ImageFilters();
-                            int y;
-                            // split the bitmap into the number of availabe cores
-                            for (int i = 0; i < mNumberOfCores; i++) {
-                                y = (mBitmap.getHeight() / mNumberOfCores) * i;
-                                mBitmaps.add(Bitmap.createBitmap(mBitmap, 0, y, mBitmap.getWidth(),
-                                        mBitmap.getHeight() / mNumberOfCores));
-                                // assign a FilterImageTasks to each splitted bitmap
-                                mTasks.add(new FilterImageTask().executeOnExecutor(
-                                        AsyncTask.THREAD_POOL_EXECUTOR, mBitmaps.get(i)));
-                            }
-                            // show a dialog that the image is being processed
-                            mProgressDialog
-                                    .setMessage("Please wait while we enhance and crop your image");
-                            mProgressDialog.show();
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    // the region is decoded on the processing thread straight into one byte per
+                    // pixel, the file is only written once the image is enhanced
+                    Rect region = mCropView.getCropRect(mCropper.getWidth(),
+                            mCropper.getHeight());
+                    mNewFile = new File(mFile.getParentFile().getAbsolutePath() + File.separator
+                            + mFile.getName().substring(0, mFile.getName().length() - 4)
+                            + "_cropped" + EXTENSION);
+                    // enhance and sharpen the whole image in parallel strips
+                    FilterImageTask task = new FilterImageTask(mCropper, region, mScan);
+                    mScanFuture = mProcessingService.submit(task, new FilterImageCallback(mScan));
+                    mScanTask = task;
+                    // the task frees the decoder once the region is decoded, or cancelScan if the
+                    // task never starts, until it is submitted the activity still frees it
+                    mCropper = null;
+                    if (mProgressive) {
+                        // the picture is shown until the preview of the result replaces it
+                        mCropView.setCropEnabled(false);
+                        mCropButton.setEnabled(false);
+                    } else {
+                        // free the memory used by the preview
+                        mCropView.setImageBitmap(null);
+                        recyclePicture();
+                        // show a dialog that the image is being processed
+                        mProgressDialog.setMessage(
+                                "Please wait while we enhance and crop your image");
+                        mProgressDialog.show();
                     }
-
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.e(TAG, "Could not start the scan", e);
                 }
             }
         });
@@ -128,8 +189,9 @@ public class CropActivity extends Activity {
 
             @Override
             public void onClick(View v) {
+                cancelScan();
                 mCropView.setImageBitmap(null);
-                mBitmapDrawable = null;
+                recyclePicture();
                 mFile.delete();
                 NotificationManagerModule.getInstance().showToast(
                         getString(R.string.picture_deleted));
@@ -139,76 +201,265 @@ public class CropActivity extends Activity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        cancelScan();
+        mProcessingService.shutdown();
+        // the image that is being written is shown by the next activity, let it finish
+        mIoExecutor.shutdown();
+        recyclePicture();
+    }
+
     // sends the user back so he can take a picture
     @Override
     public void onBackPressed() {
+        cancelScan();
         mCropView.setImageBitmap(null);
-        mBitmapDrawable = null;
+        recyclePicture();
         mFile.delete();
         NotificationManagerModule.getInstance().showToast(getString(R.string.picture_deleted));
         Intent intent = new Intent(mContext, ScannerActivity.class);
         startActivity(intent);
     }
 
-    public class FilterImageTask extends AsyncTask<Bitmap, Void, Bitmap> {
-        @Override
-        protected Bitmap doInBackground(Bitmap... params) {
-            params[0] = mFilter.enhanceImage(params[0], 0, 3);
-            return params[0];
+    /**
+     * Opens the picture and shows a preview of it about the size of the screen.
+     *
+     * @return Whether the preview could be decoded.
+     */
+    private boolean openPicture() {
+        // only a preview about the size of the screen is decoded
+        mScan.begin(ScanTrace.Stage.DECODE_PREVIEW);
+        try {
+            mCropper = new RegionCropper(mFile.getAbsolutePath());
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            mPreview = mCropper.decodePreview(metrics.widthPixels, metrics.heightPixels);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the picture", e);
+        }
+        mScan.end(ScanTrace.Stage.DECODE_PREVIEW, mPreview != null ? mPreview.getByteCount() : 0);
+
+        mCropView.setImageBitmap(mPreview);
+        if (getIntent().getBooleanExtra("livePreview", false) && mPreview != null) {
+            mLivePreview = new LivePreview(mPreview, (float) mCropper.getWidth()
+                    / mPreview.getWidth(), mEnhanceMode == EnhanceMode.ADAPTIVE_THRESHOLD,
+                    new LivePreview.Listener() {
+                        @Override
+                        public void onPreviewUpdated() {
+                            mCropView.postInvalidateCrop();
+                        }
+                    });
+            mCropView.setLivePreview(mLivePreview);
+        }
+        return mPreview != null;
+    }
+
+    /**
+     * Frees the preview and the decoder of the picture.
+     */
+    private void recyclePicture() {
+        if (mLivePreview != null) {
+            // it reads the preview
+            mCropView.setLivePreview(null);
+            mLivePreview.release();
+            mLivePreview = null;
+        }
+        if (mPreview != null) {
+            mPreview.recycle();
+            mPreview = null;
+        }
+        if (mCropper != null) {
+            mCropper.recycle();
+            mCropper = null;
+        }
+    }
+
+    /**
+     * Stops processing the image the user is no longer waiting for.
+     */
+    private void cancelScan() {
+        if (mScanFuture != null) {
+            mScanFuture.cancel(true);
+            mScanFuture = null;
+            mProgressDialog.dismiss();
+        }
+        if (mScanTask != null) {
+            // a task that has not started never runs, nor does one the shutdown drops
+            mScanTask.discard();
+            mScanTask = null;
+        }
+    }
+
+    /**
+     * A processed image, with the bitmap the next activity shows while it is written.
+     */
+    private static class ProcessedScan {
+        final GreyImage mImage;
+        final Bitmap mBitmap;
+
+        ProcessedScan(GreyImage image, Bitmap bitmap) {
+            mImage = image;
+            mBitmap = bitmap;
+        }
+    }
+
+    /**
+     * Decodes the cropped region into a greyscale image with the contrast curve applied and
+     * sharpens it, or thresholds it into black and white.
+     * <p>
+     * A {@link GreyImage} takes 1.5 bytes per pixel, one of grey and half a byte of room for the
+     * chroma of the encoder. The sharpen runs in place, so the contrast mode holds 1.5 bytes per
+     * pixel until the bitmap for the next activity is created. The threshold holds its source and
+     * its result, 3 bytes per pixel. Creating the bitmap adds 4 bytes per pixel to the result, so
+     * the peak of both modes is 5.5 bytes per pixel, against about 8 for the ARGB source and
+     * result bitmaps of the old pipeline.
+     * </p>
+     */
+    private class FilterImageTask implements Callable<ProcessedScan> {
+        private final RegionCropper mRegionCropper;
+        private final Rect mRegion;
+        private final ScanTrace.Scan mTrace;
+        /**
+         * Whether the decoder is taken, by the task when it starts or by {@link #discard()}.
+         * Whoever takes it frees it.
+         */
+        private final AtomicBoolean mCropperTaken = new AtomicBoolean();
+
+        FilterImageTask(RegionCropper cropper, Rect region, ScanTrace.Scan trace) {
+            mRegionCropper = cropper;
+            mRegion = region;
+            mTrace = trace;
+        }
+
+        /**
+         * Frees the decoder if the task has not started, for a scan that is cancelled or dropped
+         * before it runs. A task that has started frees it itself.
+         */
+        void discard() {
+            if (mCropperTaken.compareAndSet(false, true)) {
+                mRegionCropper.recycle();
+            }
         }
 
         @Override
-        protected void onPostExecute(Bitmap result) {
-            // wait for all the partial bitmaps to complete their enhancement
-            for (int i = 0; i < mTasks.size(); i++) {
-                if (mTasks.get(i) == this) {
-                    mBitmaps.set(i, result);
-                }
+        public ProcessedScan call() {
+            if (!mCropperTaken.compareAndSet(false, true)) {
+                // cancelled right as the frame thread started it
+                throw new CancellationException("The scan was cancelled before it started");
             }
-            for (AsyncTask task : mTasks) {
-                if (task.getStatus() != AsyncTask.Status.FINISHED && task != this) {
-                    return;
+            boolean threshold = mEnhanceMode == EnhanceMode.ADAPTIVE_THRESHOLD;
+            if (mProgressive) {
+                ProgressiveScan scan = new ProgressiveScan(mRegionCropper, mRegion, threshold,
+                        ProgressiveScan.DEFAULT_SAMPLE_SIZE, mProcessingService
+                                .getStripExecutor(), mPool);
+                try {
+                    GreyImage image = scan.run(new PreviewListener(), mTrace);
+                    return new ProcessedScan(image, scan.getBitmap());
+                } finally {
+                    mRegionCropper.recycle();
                 }
             }
-
-            // paste all the bitmaps back together in one big picture
-            int height = 0;
-            for (Bitmap map : mBitmaps) {
-                height += map.getHeight();
+            GreyImage image;
+            mTrace.begin(ScanTrace.Stage.DECODE_REGION);
+            try {
+                image = mRegionCropper.decodeGrey(mRegion, ScanSettings.getTone(threshold),
+                        mPool);
+            } finally {
+                mRegionCropper.recycle();
             }
-            Bitmap temp = Bitmap.createBitmap(mBitmaps.get(0).getWidth(), height,
-                    Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(temp);
-            int top = 0;
-            for (int i = 0; i < mBitmaps.size(); i++) {
-                top = (i == 0 ? 0 : top + mBitmaps.get(i).getHeight());
-                canvas.drawBitmap(mBitmaps.get(i), 0f, top, null);
+            long greyBytes = image.getByteCount();
+            mTrace.end(ScanTrace.Stage.DECODE_REGION, greyBytes);
+            mTrace.begin(ScanTrace.Stage.ENHANCE);
+            if (threshold) {
+                int radius = ScanSettings.getThresholdRadius(image.getWidth(), image.getHeight());
+                GreyImage grey = image;
+                image = mFilter.applyAdaptiveThresholdEffect(grey,
+                        AdaptiveThreshold.Method.SAUVOLA, radius,
+                        ScanSettings.THRESHOLD_SENSITIVITY);
+                mFilter.release(grey);
+                // the source and the result
+                mTrace.end(ScanTrace.Stage.ENHANCE, 2 * greyBytes);
+            } else {
+                mFilter.applyUnsharpMaskEffect(image, ScanSettings.SHARPEN_AMOUNT,
+                        ScanSettings.SHARPEN_RADIUS, ScanSettings.SHARPEN_THRESHOLD);
+                mTrace.end(ScanTrace.Stage.ENHANCE, greyBytes);
             }
-            // sharpen the big bitmap
-            new SharpenImageTask().executeOnExecutor(THREAD_POOL_EXECUTOR, temp);
-            // refresh the dialog
-            mProgressDialog.setMessage("Sharpening the image for you.");
-
+            // the next activity shows a bitmap, the file is encoded from the grey values
+            mTrace.begin(ScanTrace.Stage.TO_BITMAP);
+            Bitmap bitmap = mFilter.toBitmap(image);
+            mTrace.end(ScanTrace.Stage.TO_BITMAP, greyBytes + bitmap.getByteCount());
+            return new ProcessedScan(image, bitmap);
         }
     }
 
-    public class SharpenImageTask extends AsyncTask<Bitmap, Void, Bitmap> {
+    /**
+     * Shows the result of a progressive scan in the crop view while it is filled in.
+     */
+    private class PreviewListener implements ProgressiveScan.Listener {
 
         @Override
-        protected Bitmap doInBackground(Bitmap... params) {
-            params[0] = mFilter.applySharpenEffect(params[0], 3);
-            return params[0];
+        public void onPreview(final Bitmap bitmap) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mScanFuture == null) {
+                        // the user backed out in the meantime
+                        return;
+                    }
+                    mCropView.setImageBitmap(bitmap);
+                    // the picture is no longer shown
+                    recyclePicture();
+                }
+            });
         }
 
         @Override
-        protected void onPostExecute(Bitmap result) {
-            FileOutputStream mStream;
-            try {
-                mStream = new FileOutputStream(mNewFile);
-                result.compress(Bitmap.CompressFormat.JPEG, 100, mStream);
-            } catch (FileNotFoundException e) {
-                Log.d(TAG, "Could not find file Exception: " + e.toString());
+        public void onRowsReady(int top, int bottom) {
+            mCropView.postInvalidate();
+        }
+    }
+
+    /**
+     * Stores the processed image and shows it to the user.
+     */
+    private class FilterImageCallback implements ImageProcessingService.Callback<ProcessedScan> {
+        private final ScanTrace.Scan mTrace;
+
+        FilterImageCallback(ScanTrace.Scan trace) {
+            mTrace = trace;
+        }
+
+        @Override
+        public void onResult(ProcessedScan result) {
+            if (mScanFuture == null) {
+                // the user backed out in the meantime
+                mFilter.release(result.mBitmap);
+                mFilter.release(result.mImage);
+                return;
             }
+            mScanFuture = null;
+            mScanTask = null;
+            // encode in the background, the next activity shows the bitmap in the meantime
+            final GreyImage image = result.mImage;
+            // the I/O thread runs one task at a time, so the encode is timed by the tasks around
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTrace.begin(ScanTrace.Stage.ENCODE);
+                }
+            });
+            Future<File> write = mJpegWriter.writeAsync(image, mNewFile);
+            // the I/O thread runs this once the image is written
+            mIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTrace.end(ScanTrace.Stage.ENCODE, image.getByteCount());
+                    mTrace.finish();
+                    mPool.release(image);
+                }
+            });
+            ImageHandoff.post(new ImageHandoff(mNewFile, result.mBitmap, write));
             // dismiss the dialog
             mProgressDialog.dismiss();
             // show the user the cropped image by starting a new activity
@@ -216,5 +467,42 @@ public class CropActivity extends Activity {
             intent.putExtra("imagePath", mNewFile.getAbsolutePath());
             startActivity(intent);
         }
+
+        @Override
+        public void onError(Throwable error) {
+            mScanFuture = null;
+            mScanTask = null;
+            mProgressDialog.dismiss();
+            Log.e(TAG, "Could not process the image", error);
+            NotificationManagerModule.getInstance().showToast(
+                    "Could not enhance the image, please try again");
+            // the scan freed the picture, open it again so the user can crop once more
+            mCropView.setImageBitmap(null);
+            recyclePicture();
+            mScan = ScanTrace.getInstance().startScan();
+            if (!openPicture()) {
+                finish();
+                return;
+            }
+            mCropView.setCropEnabled(true);
+            mCropButton.setEnabled(true);
+        }
+    }
+
+    /**
+     * Logs every traced scan with the percentiles of its stages over the recent scans.
+     */
+    static class LogExporter implements ScanTrace.Exporter {
+
+        @Override
+        public void export(ScanTrace trace, ScanTrace.Scan scan) {
+            Log.d(TAG, scan.toString());
+            for (ScanTrace.Stage stage : ScanTrace.Stage.values()) {
+                ScanTrace.Summary summary = trace.getSummary(stage);
+                if (summary.getCount() > 0) {
+                    Log.d(TAG, summary.toString());
+                }
+            }
+        }
     }
 }
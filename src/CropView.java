@@ -6,17 +6,19 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Point;
-import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.MotionEvent;
 import android.widget.ImageView;
 
-import java.io.ByteArrayOutputStream;
-
 public class CropView extends ImageView {
+    /**
+     * The width of the lines of the rectangle and the handles.
+     */
+    private static final int STROKE_WIDTH = 5;
 
     private Paint mPaint = new Paint();
     private Paint mCirclePaint = new Paint();
@@ -31,10 +33,6 @@ public class CropView extends ImageView {
     private Point mLeftTop;
     private Point mRightBottom;
     private Point mCenter;
-    /**
-     * Points to check if the cropping rectangle does not leave the image.
-     */
-    private Point mScreenCenter;
     private Point mPrevious;
     private DisplayMetrics mMetrics = getResources().getDisplayMetrics();
     /**
@@ -42,6 +40,35 @@ public class CropView extends ImageView {
      */
     private int mMinimumSize;
     private int mTouchBuffer;
+    /**
+     * The radius of the handles in the corners.
+     */
+    private int mHandleRadius;
+    /**
+     * Whether the cropping rectangle is shown and can be changed.
+     */
+    private boolean mCropEnabled = true;
+    /**
+     * The enhanced preview drawn inside the rectangle, or null.
+     */
+    private LivePreview mLivePreview;
+    private Paint mLivePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /**
+     * Maps the rectangle to the coordinates of the drawable for the live preview.
+     */
+    private Matrix mLiveInverse = new Matrix();
+    private RectF mLiveRect = new RectF();
+    /**
+     * The bounds of the shown image in this view, to check if the cropping rectangle does not
+     * leave the image. They are updated when the image or its matrix changes, not on every touch.
+     */
+    private RectF mImageBounds = new RectF();
+    private boolean mImageBoundsValid;
+    private float[] mMatrixValues = new float[9];
+    /**
+     * The bounds of a handle, reused for every handle that is drawn.
+     */
+    private RectF mHandle = new RectF();
 
     /**
      * The possible grabpoint of the rectangle.
@@ -50,11 +77,6 @@ public class CropView extends ImageView {
         DRAG, LEFTTOP, RIGHTTOP, RIGHTBOTTOM, LEFTBOTTOM, LEFTSIDE, RIGHTSIDE, BOTTOMSIDE, TOPSIDE
     }
 
-    /**
-     * Variables to check if the cropping rectangle does not leave the image.
-     */
-    private int mImageScaledWidth, mImageScaledHeight;
-
     // adding parent class constructors
     public CropView(Context context) {
         super(context);
@@ -76,14 +98,13 @@ public class CropView extends ImageView {
      */
     protected void initCropView() {
         mPaint.setStyle(Style.STROKE);
-        mPaint.setStrokeWidth(5);
+        mPaint.setStrokeWidth(STROKE_WIDTH);
         mCirclePaint.setStyle(Style.FILL);
         mCirclePaint.setColor(Color.WHITE);
-        mCirclePaint.setStrokeWidth(5);
+        mCirclePaint.setStrokeWidth(STROKE_WIDTH);
         mLeftTop = new Point();
         mRightBottom = new Point();
         mCenter = new Point();
-        mScreenCenter = new Point();
         mPrevious = new Point();
 
         mPaint.setColor(Color.WHITE);
@@ -91,30 +112,125 @@ public class CropView extends ImageView {
         mInitialHeightSize = mMetrics.heightPixels / 4;
         mMinimumSize = mMetrics.densityDpi;
         mTouchBuffer = mMetrics.densityDpi / 3;
+        mHandleRadius = mMetrics.densityDpi / 12;
+    }
+
+    /**
+     * Shows or hides the cropping rectangle, for instance to show the result of the crop in this
+     * view. A hidden rectangle keeps its position and does not react to touches.
+     * 
+     * @param enabled
+     *            Whether the rectangle is shown.
+     */
+    public void setCropEnabled(boolean enabled) {
+        mCropEnabled = enabled;
+        invalidate();
+    }
+
+    public boolean isCropEnabled() {
+        return mCropEnabled;
+    }
+
+    /**
+     * Shows the enhanced drawable inside the rectangle, filtered by a live preview while the
+     * rectangle is moved.
+     * 
+     * @param preview
+     *            The live preview of the drawable of this view, or null to show the drawable as
+     *            it is.
+     */
+    public void setLivePreview(LivePreview preview) {
+        mLivePreview = preview;
+        requestLivePreview();
+        invalidate();
+    }
+
+    /**
+     * Redraws the inside of the rectangle, from any thread, for instance when the live preview
+     * has filtered new tiles.
+     */
+    public void postInvalidateCrop() {
+        postInvalidate(mLeftTop.x, mLeftTop.y, mRightBottom.x, mRightBottom.y);
+    }
+
+    /**
+     * Redraws only the part of the view the rectangle moved over, so the cost of a move follows
+     * the movement and not the size of the view.
+     * 
+     * @param left
+     *            The left side of the rectangle before it moved.
+     * @param top
+     *            The top side of the rectangle before it moved.
+     * @param right
+     *            The right side of the rectangle before it moved.
+     * @param bottom
+     *            The bottom side of the rectangle before it moved.
+     */
+    private void invalidateRectangle(int left, int top, int right, int bottom) {
+        // the handles and the lines stick out of the rectangle
+        int margin = mHandleRadius + STROKE_WIDTH;
+        invalidate(Math.min(left, mLeftTop.x) - margin, Math.min(top, mLeftTop.y) - margin,
+                Math.max(right, mRightBottom.x) + margin, Math.max(bottom, mRightBottom.y)
+                        + margin);
+    }
+
+    /**
+     * Asks the live preview for the part of the drawable inside the rectangle.
+     */
+    private void requestLivePreview() {
+        if (mLivePreview == null || getDrawable() == null || mLeftTop.equals(0, 0)) {
+            return;
+        }
+        getImageMatrix().invert(mLiveInverse);
+        mLiveRect.set(mLeftTop.x, mLeftTop.y, mRightBottom.x, mRightBottom.y);
+        mLiveInverse.mapRect(mLiveRect);
+        mLivePreview.request((int) Math.floor(mLiveRect.left), (int) Math.floor(mLiveRect.top),
+                (int) Math.ceil(mLiveRect.right), (int) Math.ceil(mLiveRect.bottom));
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mLeftTop.equals(0, 0))
+        if (!mCropEnabled) {
+            return;
+        }
+        if (mLeftTop.equals(0, 0)) {
             resetPoints();
+            requestLivePreview();
+        }
+        Bitmap enhanced = mLivePreview != null ? mLivePreview.getBitmap() : null;
+        if (enhanced != null) {
+            // the enhanced drawable has the size of the drawable, so it is mapped the same way
+            canvas.save();
+            canvas.clipRect(mLeftTop.x, mLeftTop.y, mRightBottom.x, mRightBottom.y);
+            canvas.concat(getImageMatrix());
+            canvas.drawBitmap(enhanced, 0, 0, mLivePaint);
+            canvas.restore();
+        }
         // draw the points on the screen; one in every corner and one in the center
-        int radius = mMetrics.densityDpi / 12;
+        int radius = mHandleRadius;
 
         canvas.drawRect(mLeftTop.x, mLeftTop.y, mRightBottom.x, mRightBottom.y, mPaint);
-        canvas.drawArc(new RectF(mLeftTop.x - radius, mLeftTop.y - radius, mLeftTop.x + radius,
-                mLeftTop.y + radius), 90, 270, true, mCirclePaint);
-        canvas.drawArc(new RectF(mRightBottom.x - radius, mLeftTop.y - radius, mRightBottom.x
-                + radius, mLeftTop.y + radius), -180, 270, true, mCirclePaint);
-        canvas.drawArc(new RectF(mRightBottom.x - radius, mRightBottom.y - radius, mRightBottom.x
-                + radius, mRightBottom.y + radius), -90, 270, true, mCirclePaint);
-        canvas.drawArc(new RectF(mLeftTop.x - radius, mRightBottom.y - radius, mLeftTop.x + radius,
-                mRightBottom.y + radius), 0, 270, true, mCirclePaint);
+        mHandle.set(mLeftTop.x - radius, mLeftTop.y - radius, mLeftTop.x + radius, mLeftTop.y
+                + radius);
+        canvas.drawArc(mHandle, 90, 270, true, mCirclePaint);
+        mHandle.set(mRightBottom.x - radius, mLeftTop.y - radius, mRightBottom.x + radius,
+                mLeftTop.y + radius);
+        canvas.drawArc(mHandle, -180, 270, true, mCirclePaint);
+        mHandle.set(mRightBottom.x - radius, mRightBottom.y - radius, mRightBottom.x + radius,
+                mRightBottom.y + radius);
+        canvas.drawArc(mHandle, -90, 270, true, mCirclePaint);
+        mHandle.set(mLeftTop.x - radius, mRightBottom.y - radius, mLeftTop.x + radius,
+                mRightBottom.y + radius);
+        canvas.drawArc(mHandle, 0, 270, true, mCirclePaint);
         canvas.drawCircle(mCenter.x, mCenter.y, mMetrics.densityDpi / 22, mPaint);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (!mCropEnabled) {
+            return false;
+        }
         int eventaction = event.getAction();
         switch (eventaction) {
         // set the touch point
@@ -124,6 +240,10 @@ public class CropView extends ImageView {
             case MotionEvent.ACTION_MOVE:
                 // check if the touch was inside the rectangle
                 if (isActionInsideRectangle(event.getX(), event.getY())) {
+                    int left = mLeftTop.x;
+                    int top = mLeftTop.y;
+                    int right = mRightBottom.x;
+                    int bottom = mRightBottom.y;
                     // get where the touchevent happened
                     switch (getTouchAction(event.getX(), event.getY())) {
                         case LEFTTOP:
@@ -162,12 +282,15 @@ public class CropView extends ImageView {
                             break;
 
                     }
-                    invalidate(); // redraw rectangle
+                    if (!mLeftTop.equals(left, top) || !mRightBottom.equals(right, bottom)) {
+                        invalidateRectangle(left, top, right, bottom);
+                        requestLivePreview();
+                    }
                     mPrevious.set((int) event.getX(), (int) event.getY());
                 }
                 break;
             case MotionEvent.ACTION_UP:
-                mPrevious = new Point();
+                mPrevious.set(0, 0);
                 break;
         }
 
@@ -260,7 +383,6 @@ public class CropView extends ImageView {
      */
     public void resetPoints() {
         mCenter.set(getWidth() / 2, getHeight() / 2);
-        mScreenCenter.set(getWidth() / 2, getHeight() / 2);
         mLeftTop.set((getWidth() - mInitialWidthSize) / 2, (getHeight() - mInitialHeightSize) / 2);
         mRightBottom.set(mLeftTop.x + mInitialWidthSize, mLeftTop.y + mInitialHeightSize);
     }
@@ -288,23 +410,55 @@ public class CropView extends ImageView {
     /**
      * Checks if the movement of the rectangle will force it out of the image.
      * 
-     * @param point
-     *            The new rightBottom Point.
+     * @param x
+     *            The new X coordinate of a corner.
+     * @param y
+     *            The new Y coordinate of a corner.
      * @return A boolean to indicate if the rectangle is still in the image or not.
      */
-    protected boolean isInImageRange(PointF point) {
-        // Get image matrix values and place them in an array
-        float[] f = new float[9];
-        getImageMatrix().getValues(f);
-
-        // Calculate the scaled dimensions
-        mImageScaledWidth = Math.round(getDrawable().getIntrinsicWidth() * f[Matrix.MSCALE_X]);
-        mImageScaledHeight = Math.round(getDrawable().getIntrinsicHeight() * f[Matrix.MSCALE_Y]);
-
-        return (point.x >= (mScreenCenter.x - (mImageScaledWidth / 2))
-                && point.x <= (mScreenCenter.x + (mImageScaledWidth / 2))
-                && point.y >= (mScreenCenter.y - (mImageScaledHeight / 2)) && point.y <= (mScreenCenter.y + (mImageScaledHeight / 2))) ? true
-                : false;
+    protected boolean isInImageRange(float x, float y) {
+        if (!mImageBoundsValid) {
+            updateImageBounds();
+        }
+        return x >= mImageBounds.left && x <= mImageBounds.right && y >= mImageBounds.top
+                && y <= mImageBounds.bottom;
+    }
+
+    /**
+     * Maps the drawable through the image matrix to find where the image is shown.
+     */
+    private void updateImageBounds() {
+        Drawable drawable = getDrawable();
+        if (drawable == null) {
+            mImageBounds.set(0, 0, 0, 0);
+        } else {
+            getImageMatrix().getValues(mMatrixValues);
+            float left = mMatrixValues[Matrix.MTRANS_X];
+            float top = mMatrixValues[Matrix.MTRANS_Y];
+            mImageBounds.set(left, top, left + Math.round(drawable.getIntrinsicWidth()
+                    * mMatrixValues[Matrix.MSCALE_X]), top
+                    + Math.round(drawable.getIntrinsicHeight() * mMatrixValues[Matrix.MSCALE_Y]));
+        }
+        mImageBoundsValid = true;
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        // the image matrix is configured for the new size
+        mImageBoundsValid = false;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        mImageBoundsValid = false;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        mImageBoundsValid = false;
     }
 
     /**
@@ -330,7 +484,7 @@ public class CropView extends ImageView {
         switch (action) {
             case LEFTSIDE:
                 movement = x - mLeftTop.x;
-                if (isInImageRange(new PointF(mLeftTop.x + movement, mLeftTop.y))) {
+                if (isInImageRange(mLeftTop.x + movement, mLeftTop.y)) {
                     if (mLeftTop.x + movement < mRightBottom.x - mMinimumSize) {
                         mLeftTop.set(mLeftTop.x + movement, mLeftTop.y);
                     }
@@ -338,7 +492,7 @@ public class CropView extends ImageView {
                 break;
             case RIGHTSIDE:
                 movement = x - mRightBottom.x;
-                if (isInImageRange(new PointF(mRightBottom.x + movement, mRightBottom.y))) {
+                if (isInImageRange(mRightBottom.x + movement, mRightBottom.y)) {
                     if (mRightBottom.x + movement > mLeftTop.x + mMinimumSize) {
                         mRightBottom.set(mRightBottom.x + movement, mRightBottom.y);
                     }
@@ -346,7 +500,7 @@ public class CropView extends ImageView {
                 break;
             case BOTTOMSIDE:
                 movement = y - mRightBottom.y;
-                if (isInImageRange(new PointF(mRightBottom.x, mRightBottom.y + movement))) {
+                if (isInImageRange(mRightBottom.x, mRightBottom.y + movement)) {
                     if (mRightBottom.y + movement > mLeftTop.y + mMinimumSize) {
                         mRightBottom.set(mRightBottom.x, mRightBottom.y + movement);
                     }
@@ -354,7 +508,7 @@ public class CropView extends ImageView {
                 break;
             case TOPSIDE:
                 movement = y - mLeftTop.y;
-                if (isInImageRange(new PointF(mLeftTop.x, mLeftTop.y + movement))) {
+                if (isInImageRange(mLeftTop.x, mLeftTop.y + movement)) {
                     if (mLeftTop.y + movement < mRightBottom.y - mMinimumSize) {
                         mLeftTop.set(mLeftTop.x, mLeftTop.y + movement);
                     }
@@ -362,7 +516,7 @@ public class CropView extends ImageView {
                 break;
             case LEFTTOP:
                 movement = x - mLeftTop.x;
-                if (isInImageRange(new PointF(mLeftTop.x + movement, mLeftTop.y + movement))) {
+                if (isInImageRange(mLeftTop.x + movement, mLeftTop.y + movement)) {
                     if (mLeftTop.y + movement < mRightBottom.y - mMinimumSize
                             && mLeftTop.x + movement < mRightBottom.x - mMinimumSize) {
                         mLeftTop.set(mLeftTop.x + movement, mLeftTop.y + movement);
@@ -371,7 +525,7 @@ public class CropView extends ImageView {
                 break;
             case RIGHTTOP:
                 movement = x - mRightBottom.x;
-                if (isInImageRange(new PointF(mRightBottom.x + movement, mLeftTop.y + movement))) {
+                if (isInImageRange(mRightBottom.x + movement, mLeftTop.y + movement)) {
                     if (mRightBottom.x + movement > mLeftTop.x + mMinimumSize
                             && mLeftTop.y - movement < mRightBottom.y - mMinimumSize) {
                         mRightBottom.set(mRightBottom.x + movement, mRightBottom.y);
@@ -381,7 +535,7 @@ public class CropView extends ImageView {
                 break;
             case RIGHTBOTTOM:
                 movement = x - mRightBottom.x;
-                if (isInImageRange(new PointF(mRightBottom.x + movement, mRightBottom.y + movement))) {
+                if (isInImageRange(mRightBottom.x + movement, mRightBottom.y + movement)) {
                     if (mRightBottom.y + movement > mLeftTop.y + mMinimumSize
                             && mRightBottom.x + movement > mLeftTop.x + mMinimumSize) {
                         mRightBottom.set(mRightBottom.x + movement, mRightBottom.y + movement);
@@ -390,7 +544,7 @@ public class CropView extends ImageView {
                 break;
             case LEFTBOTTOM:
                 movement = x - mLeftTop.x;
-                if (isInImageRange(new PointF(mLeftTop.x + movement, mRightBottom.y + movement))) {
+                if (isInImageRange(mLeftTop.x + movement, mRightBottom.y + movement)) {
                     if (mRightBottom.y - movement > mLeftTop.y + mMinimumSize
                             && mLeftTop.x + movement < mRightBottom.x - mMinimumSize) {
                         mRightBottom.set(mRightBottom.x, mRightBottom.y - movement);
@@ -401,9 +555,8 @@ public class CropView extends ImageView {
             case DRAG:
                 movement = x - mPrevious.x;
                 int movementY = y - mPrevious.y;
-                if (isInImageRange(new PointF(mLeftTop.x + movement, mLeftTop.y + movementY))
-                        && isInImageRange(new PointF(mRightBottom.x + movement, mRightBottom.y
-                                + movementY))) {
+                if (isInImageRange(mLeftTop.x + movement, mLeftTop.y + movementY)
+                        && isInImageRange(mRightBottom.x + movement, mRightBottom.y + movementY)) {
                     mLeftTop.set(mLeftTop.x + movement, mLeftTop.y + movementY);
                     mRightBottom.set(mRightBottom.x + movement, mRightBottom.y + movementY);
                 }
@@ -417,40 +570,45 @@ public class CropView extends ImageView {
     }
 
     /**
-     * Crops the image to the size of the cropping rectangle.
+     * Maps the cropping rectangle to the coordinates of the full resolution image.
+     * <p>
+     * The rectangle is mapped back through the image matrix to the coordinates of the shown
+     * drawable, which can be a downsampled preview, and then scaled up to the size of the full
+     * image.
+     * </p>
+     * 
+     * @param sourceWidth
+     *            The width of the full resolution image.
+     * @param sourceHeight
+     *            The height of the full resolution image.
+     * @return The cropping rectangle in the full resolution image, clipped to its bounds.
+     */
+    public Rect getCropRect(int sourceWidth, int sourceHeight) {
+        Matrix inverse = new Matrix();
+        getImageMatrix().invert(inverse);
+        RectF rect = new RectF(mLeftTop.x, mLeftTop.y, mRightBottom.x, mRightBottom.y);
+        inverse.mapRect(rect);
+
+        // scale from the shown drawable to the full resolution image
+        float scaleWidth = (float) sourceWidth / (float) getDrawable().getIntrinsicWidth();
+        float scaleHeight = (float) sourceHeight / (float) getDrawable().getIntrinsicHeight();
+        Rect crop = new Rect(Math.round(rect.left * scaleWidth), Math.round(rect.top
+                * scaleHeight), Math.round(rect.right * scaleWidth), Math.round(rect.bottom
+                * scaleHeight));
+        crop.intersect(0, 0, sourceWidth, sourceHeight);
+        return crop;
+    }
+
+    /**
+     * Crops the image to the size of the cropping rectangle. Only the cropped region is decoded
+     * at full resolution.
      * 
-     * @param bitmapDrawable
-     *            The original bitmap from which the cropped image will be created.
-     * @param viewWidth
-     *            The width of the View element, needed to calculate rescaling.
-     * @param viewHeight
-     *            The height of the View element, needed to calculate rescaling.
-     * @return A Byte array of the cropped bitmap.
+     * @param cropper
+     *            The cropper of the original image, which is shown in this view as a preview.
+     * @return The cropped bitmap.
      */
-    public byte[] getCroppedImage(BitmapDrawable bitmapDrawable, int viewWidth, int viewHeight) {
-        // calculate the scaling for the image to the screen
-
-        // int correctWidth = this.getWidth() - viewWidth;
-        float scaleWidth = (float) bitmapDrawable.getBitmap().getWidth() / (float) viewWidth;
-        float scaleHeight = (float) bitmapDrawable.getBitmap().getHeight() / (float) viewHeight;
-
-        // calculate the points of the cropped image
-        int startWidth = (int) ((bitmapDrawable.getBitmap().getWidth() - (bitmapDrawable
-                .getBitmap().getWidth() - mLeftTop.x)) * scaleWidth);
-        int startHeight = (int) ((bitmapDrawable.getBitmap().getHeight() - (bitmapDrawable
-                .getBitmap().getHeight() - mLeftTop.y)) * scaleHeight);
-        int endWidth = (int) ((bitmapDrawable.getBitmap().getWidth() - (bitmapDrawable.getBitmap()
-                .getWidth() - mRightBottom.x)) * scaleWidth);
-        int endHeight = (int) ((bitmapDrawable.getBitmap().getHeight() - (bitmapDrawable
-                .getBitmap().getHeight() - mRightBottom.y)) * scaleHeight);
-
-        // create the cropped bitmap
-        Bitmap cropped = Bitmap.createBitmap(bitmapDrawable.getBitmap(), startWidth, startHeight,
-                endWidth - startWidth, endHeight - startHeight);
-
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        cropped.compress(Bitmap.CompressFormat.JPEG, 100, stream);
-        return stream.toByteArray();
+    public Bitmap getCroppedImage(RegionCropper cropper) {
+        return cropper.decodeRegion(getCropRect(cropper.getWidth(), cropper.getHeight()));
     }
 
 }
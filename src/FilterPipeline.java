@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered chain of filters that runs with as few passes over the image as possible.
+ * <p>
+ * Adjacent point operations are fused: consecutive {@link LookupTableOperation}s are compiled
+ * into one table, and the remaining point operations run one after another on a small block of
+ * pixels while it is in the cache. Every {@link NeighbourhoodOperation} is a stage boundary; the
+ * point operations before it are applied to its input while it is read. A chain of point
+ * operations with one convolution therefore only needs the source and the output frame.
+ * </p>
+ */
+public final class FilterPipeline {
+    /**
+     * The number of pixels every fused point operation processes at a time.
+     */
+    private static final int BLOCK_PIXELS = Tiling.DEFAULT_CACHE_BYTES / 4;
+
+    /**
+     * One pass over the image: point operations applied to the input, optionally followed by a
+     * neighbourhood operation.
+     */
+    public static final class Stage {
+        private final PointOperation mPointOperation;
+        private final NeighbourhoodOperation mNeighbourhoodOperation;
+
+        Stage(PointOperation pointOperation, NeighbourhoodOperation neighbourhoodOperation) {
+            mPointOperation = pointOperation;
+            mNeighbourhoodOperation = neighbourhoodOperation;
+        }
+
+        /**
+         * @return The fused point operations applied to the input, or null.
+         */
+        public PointOperation getPointOperation() {
+            return mPointOperation;
+        }
+
+        /**
+         * @return The neighbourhood operation that ends the stage, or null for the last stage.
+         */
+        public NeighbourhoodOperation getNeighbourhoodOperation() {
+            return mNeighbourhoodOperation;
+        }
+    }
+
+    /**
+     * Collects the filters of a pipeline in order.
+     */
+    public static final class Builder {
+        private final List<Stage> mStages = new ArrayList<Stage>();
+        private final List<PointOperation> mPending = new ArrayList<PointOperation>();
+
+        /**
+         * Adds a point operation to the end of the pipeline.
+         *
+         * @param operation
+         *            The operation to add.
+         * @return This builder.
+         */
+        public Builder add(PointOperation operation) {
+            int last = mPending.size() - 1;
+            if (last >= 0 && mPending.get(last) instanceof LookupTableOperation
+                    && operation instanceof LookupTableOperation) {
+                LookupTableOperation previous = (LookupTableOperation) mPending.get(last);
+                LookupTableOperation next = (LookupTableOperation) operation;
+                if (previous.canFuse(next)) {
+                    mPending.set(last, previous.fuse(next));
+                    return this;
+                }
+            }
+            mPending.add(operation);
+            return this;
+        }
+
+        /**
+         * Adds a neighbourhood operation to the end of the pipeline.
+         *
+         * @param operation
+         *            The operation to add.
+         * @return This builder.
+         */
+        public Builder add(NeighbourhoodOperation operation) {
+            mStages.add(new Stage(takePending(), operation));
+            return this;
+        }
+
+        /**
+         * Creates the pipeline out of the filters added so far.
+         *
+         * @return The pipeline.
+         */
+        public FilterPipeline build() {
+            List<Stage> stages = new ArrayList<Stage>(mStages);
+            PointOperation pending = takePending();
+            if (pending != null) {
+                stages.add(new Stage(pending, null));
+            }
+            return new FilterPipeline(stages);
+        }
+
+        private PointOperation takePending() {
+            PointOperation operation;
+            if (mPending.isEmpty()) {
+                operation = null;
+            } else if (mPending.size() == 1) {
+                operation = mPending.get(0);
+            } else {
+                operation = new FusedOperation(mPending.toArray(new PointOperation[mPending
+                        .size()]));
+            }
+            mPending.clear();
+            return operation;
+        }
+    }
+
+    /**
+     * Runs several point operations block by block, so every block only travels through the
+     * memory bus once.
+     */
+    private static final class FusedOperation implements PointOperation {
+        private final PointOperation[] mOperations;
+
+        FusedOperation(PointOperation[] operations) {
+            mOperations = operations;
+        }
+
+        @Override
+        public void apply(int[] pixels, int offset, int length) {
+            for (int start = offset, end = offset + length; start < end; start += BLOCK_PIXELS) {
+                int blockLength = Math.min(BLOCK_PIXELS, end - start);
+                for (PointOperation operation : mOperations) {
+                    operation.apply(pixels, start, blockLength);
+                }
+            }
+        }
+    }
+
+    private final List<Stage> mStages;
+
+    private FilterPipeline(List<Stage> stages) {
+        mStages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return The passes this pipeline makes over the image, in order.
+     */
+    public List<Stage> getStages() {
+        return mStages;
+    }
+
+    /**
+     * Runs the pipeline over a whole image. The buffer is overwritten, and at most one extra
+     * frame is allocated for the neighbourhood operations.
+     *
+     * @param pixels
+     *            The ARGB pixels of the image.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @return The buffer holding the result, either the input buffer or a new one.
+     */
+    public int[] run(int[] pixels, int width, int height) {
+        return run(pixels, width, height, StripExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Runs the pipeline over a whole image, every stage in parallel strips. The strips of a
+     * neighbourhood operation read the rows around them from the shared input frame, so the
+     * result is the same as on one thread.
+     *
+     * @param pixels
+     *            The ARGB pixels of the image.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param executor
+     *            The executor to run the strips on.
+     * @return The buffer holding the result, either the input buffer or a new one.
+     */
+    public int[] run(int[] pixels, final int width, final int height, StripExecutor executor) {
+        int[] input = pixels;
+        int[] output = null;
+        for (Stage stage : mStages) {
+            final int[] stageInput = input;
+            final PointOperation pointOperation = stage.mPointOperation;
+            if (pointOperation != null) {
+                executor.execute(height, new StripExecutor.StripTask() {
+                    @Override
+                    public void run(int top, int bottom) {
+                        pointOperation.apply(stageInput, top * width, (bottom - top) * width);
+                    }
+                });
+            }
+            final NeighbourhoodOperation neighbourhoodOperation = stage.mNeighbourhoodOperation;
+            if (neighbourhoodOperation != null) {
+                if (output == null) {
+                    output = new int[width * height];
+                }
+                final int[] stageOutput = output;
+                executor.execute(height, new StripExecutor.StripTask() {
+                    @Override
+                    public void run(int top, int bottom) {
+                        neighbourhoodOperation.apply(stageInput, 0, stageOutput, 0, width,
+                                height, top, bottom);
+                    }
+                });
+                input = stageOutput;
+                output = stageInput;
+            }
+        }
+        return input;
+    }
+}
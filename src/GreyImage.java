@@ -0,0 +1,101 @@
+/**
+ * An image with one byte of grey per pixel.
+ * <p>
+ * Once a scan is greyscale its red, green and blue values are equal, so the rest of the pipeline
+ * works on this format. Row {@code y} starts at {@code y * width} in the pixel array. The array
+ * has room after the pixels for the chroma of an NV21 frame, so {@link JpegWriter} encodes the
+ * image without copying it. With that room an image takes 1.5 bytes per pixel, 3/8 of the memory
+ * of an ARGB_8888 bitmap.
+ * </p>
+ */
+public final class GreyImage {
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mPixels;
+
+    /**
+     * Creates a black image.
+     *
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     */
+    public GreyImage(int width, int height) {
+        this(width, height, new byte[getLength(width, height)]);
+    }
+
+    /**
+     * Creates an image on an existing array, for instance one from a {@link BufferPool}.
+     *
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param pixels
+     *            The array to store the image in, at least {@link #getLength(int, int)} bytes.
+     *            Its contents become the pixels.
+     */
+    public GreyImage(int width, int height, byte[] pixels) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("The image must be at least one pixel");
+        }
+        if (pixels.length < getLength(width, height)) {
+            throw new IllegalArgumentException("The array is too short for the image");
+        }
+        mWidth = width;
+        mHeight = height;
+        mPixels = pixels;
+    }
+
+    /**
+     * Returns the length of the array of an image, the pixels and the room for the chroma.
+     *
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @return The number of bytes of the array.
+     */
+    public static int getLength(int width, int height) {
+        return width * height + getChromaLength(width, height);
+    }
+
+    /**
+     * Returns the number of bytes of the interleaved chroma of an NV21 frame, every pair of bytes
+     * covering two by two pixels.
+     *
+     * @param width
+     *            The width of the frame.
+     * @param height
+     *            The height of the frame.
+     * @return The length of the chroma.
+     */
+    static int getChromaLength(int width, int height) {
+        return 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The bytes of the image, the grey values and the room for the chroma, without the
+     *         rest of a longer array.
+     */
+    public int getByteCount() {
+        return getLength(mWidth, mHeight);
+    }
+
+    /**
+     * @return The grey values, row after row, followed by the room for the NV21 chroma and any
+     *         other bytes of the array. Changes to the array change the image.
+     */
+    public byte[] getPixels() {
+        return mPixels;
+    }
+}
@@ -15,10 +15,85 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader;
 
-import java.util.Random;
-
 
 public class ImageFilters {
+    /**
+     * The engine that runs the pixel operations over the bitmaps.
+     */
+    private final BitmapPixelEngine mEngine;
+    /**
+     * Whether the filters overwrite mutable source bitmaps instead of returning a new bitmap.
+     */
+    private boolean mInPlace;
+
+    /**
+     * Creates filters that run on the calling thread.
+     */
+    public ImageFilters() {
+        this(StripExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Creates filters that split the bitmaps into strips, which run in parallel.
+     * 
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public ImageFilters(StripExecutor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Creates filters that split the bitmaps into parallel strips and take their output and
+     * scratch buffers from a pool. Give the outputs back with {@link #release(Bitmap)} and
+     * {@link #release(GreyImage)} once they are no longer used.
+     * 
+     * @param executor
+     *            The executor to run the strips on.
+     * @param pool
+     *            The pool of the buffers, or null to allocate them.
+     */
+    public ImageFilters(StripExecutor executor, BufferPool pool) {
+        mEngine = new BitmapPixelEngine(executor, pool);
+    }
+
+    /**
+     * Lets the point and neighbourhood filters overwrite mutable source bitmaps and return them,
+     * instead of returning a new bitmap. The neighbourhood filters then keep only a few bands of
+     * rows besides the image, so the source and the result never exist as two full frames. The
+     * filters that do not run on the pixel engine, like the ones that draw on a canvas, and the
+     * adaptive threshold always return a new bitmap.
+     * 
+     * @param inPlace
+     *            Whether to filter mutable bitmaps in place.
+     */
+    public void setInPlace(boolean inPlace) {
+        mInPlace = inPlace;
+    }
+
+    public boolean isInPlace() {
+        return mInPlace;
+    }
+
+    /**
+     * Gives an output bitmap back to the pool of the filters, or recycles it without a pool.
+     * 
+     * @param bitmap
+     *            The bitmap, must no longer be used.
+     */
+    public void release(Bitmap bitmap) {
+        mEngine.release(bitmap);
+    }
+
+    /**
+     * Gives an output image back to the pool of the filters.
+     * 
+     * @param image
+     *            The image, must no longer be used.
+     */
+    public void release(GreyImage image) {
+        mEngine.release(image);
+    }
 
     public Bitmap applyHighlightEffect(Bitmap src) {
 
@@ -52,470 +127,209 @@ public class ImageFilters {
     }
 
     public Bitmap applyInvertEffect(Bitmap src) {
-        // create new bitmap with the same settings as source bitmap
-        Bitmap bmOut = Bitmap.createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
-        // color info
-        int A, R, G, B;
-        int pixelColor;
-        // image size
-        int height = src.getHeight();
-        int width = src.getWidth();
-
-        // scan through every pixel
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // get one pixel
-                pixelColor = src.getPixel(x, y);
-                // saving alpha channel
-                A = Color.alpha(pixelColor);
-                // inverting byte for each R/G/B channel
-                R = 255 - Color.red(pixelColor);
-                G = 255 - Color.green(pixelColor);
-                B = 255 - Color.blue(pixelColor);
-                // set newly-inverted pixel to output image
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final bitmap
-        return bmOut;
+        return filter(src, PointOperations.invert());
     }
 
     public Bitmap applyGreyscaleEffect(Bitmap src) {
-        // constant factors
-        final double GS_RED = 0.299;
-        final double GS_GREEN = 0.587;
-        final double GS_BLUE = 0.114;
-
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
-        // pixel information
-        int A, R, G, B;
-        int pixel;
-
-        // get image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-
-        // scan through every single pixel
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get one pixel color
-                pixel = src.getPixel(x, y);
-                // retrieve color of all channels
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-                // take conversion up to one single value
-                R = G = B = (int) (GS_RED * R + GS_GREEN * G + GS_BLUE * B);
-                // set new pixel color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.greyscale());
     }
 
     // Gamma Image (R, G, B) = (1.8, 1.8, 1.8)
     public Bitmap applyGammaEffect(Bitmap src, double red, double green, double blue) {
-        // create output image
-        Bitmap bmOut = Bitmap.createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
-        // get image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // color information
-        int A, R, G, B;
-        int pixel;
-        // constant value curve
-        final int MAX_SIZE = 256;
-        final double MAX_VALUE_DBL = 255.0;
-        final int MAX_VALUE_INT = 255;
-        final double REVERSE = 1.0;
-
-        // gamma arrays
-        int[] gammaR = new int[MAX_SIZE];
-        int[] gammaG = new int[MAX_SIZE];
-        int[] gammaB = new int[MAX_SIZE];
-
-        // setting values for every gamma channels
-        for (int i = 0; i < MAX_SIZE; ++i) {
-            gammaR[i] = (int) Math.min(MAX_VALUE_INT,
-                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / red)) + 0.5));
-            gammaG[i] = (int) Math.min(MAX_VALUE_INT,
-                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / green)) + 0.5));
-            gammaB[i] = (int) Math.min(MAX_VALUE_INT,
-                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / blue)) + 0.5));
-        }
-
-        // apply gamma table
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                A = Color.alpha(pixel);
-                // look up gamma
-                R = gammaR[Color.red(pixel)];
-                G = gammaG[Color.green(pixel)];
-                B = gammaB[Color.blue(pixel)];
-                // set new color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.gamma(red, green, blue));
     }
 
     public Bitmap applyColorFilterEffect(Bitmap src, double red, double green, double blue) {
-        // image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-        // color information
-        int A, R, G, B;
-        int pixel;
-
-        // scan through all pixels
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                // apply filtering on each channel R, G, B
-                A = Color.alpha(pixel);
-                R = (int) (Color.red(pixel) * red);
-                G = (int) (Color.green(pixel) * green);
-                B = (int) (Color.blue(pixel) * blue);
-                // set new color pixel to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.colorFilter(red, green, blue));
     }
 
     public Bitmap applySepiaToningEffect(Bitmap src, int depth, double red, double green,
             double blue) {
-        // image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-        // constant grayscale
-        final double GS_RED = 0.3;
-        final double GS_GREEN = 0.59;
-        final double GS_BLUE = 0.11;
-        // color information
-        int A, R, G, B;
-        int pixel;
-
-        // scan through all pixels
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                // get color on each channel
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-                // apply grayscale sample
-                B = G = R = (int) (GS_RED * R + GS_GREEN * G + GS_BLUE * B);
-
-                // apply intensity level for sepid-toning on each channel
-                R += (depth * red);
-                if (R > 255) {
-                    R = 255;
-                }
-
-                G += (depth * green);
-                if (G > 255) {
-                    G = 255;
-                }
-
-                B += (depth * blue);
-                if (B > 255) {
-                    B = 255;
-                }
-
-                // set new pixel color to output image
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.sepiaToning(depth, red, green, blue));
     }
 
     public Bitmap applyDecreaseColorDepthEffect(Bitmap src, int bitOffset) {
-        // get image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-        // color information
-        int A, R, G, B;
-        int pixel;
-
-        // scan through all pixels
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-
-                // round-off color offset
-                R = ((R + (bitOffset / 2)) - ((R + (bitOffset / 2)) % bitOffset) - 1);
-                if (R < 0) {
-                    R = 0;
-                }
-                G = ((G + (bitOffset / 2)) - ((G + (bitOffset / 2)) % bitOffset) - 1);
-                if (G < 0) {
-                    G = 0;
-                }
-                B = ((B + (bitOffset / 2)) - ((B + (bitOffset / 2)) % bitOffset) - 1);
-                if (B < 0) {
-                    B = 0;
-                }
-
-                // set pixel color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.decreaseColorDepth(bitOffset));
     }
 
     public Bitmap applyContrastEffect(Bitmap src, double value) {
-        // image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-        // color information
-        int A, R, G, B;
-        int pixel;
-        // get contrast value
-        double contrast = Math.pow((100 + value) / 100, 2);
-
-        // scan through all pixels
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-
-                // apply filter contrast for every channel R, G, B
-                R = (int) (((((R / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-                if (R < 0) {
-                    R = 0;
-                } else if (R > 255) {
-                    R = 255;
-                }
-
-                G = (int) (((((G / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-                if (G < 0) {
-                    G = 0;
-                } else if (G > 255) {
-                    G = 255;
-                }
-
-                B = (int) (((((B / 255.0) - 0.5) * contrast) + 0.5) * 255.0);
-                if (B < 0) {
-                    B = 0;
-                } else if (B > 255) {
-                    B = 255;
-                }
-
-                // set new pixel color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.contrast(value));
     }
 
     public Bitmap applyBrightnessEffect(Bitmap src, int value) {
-        // image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-        // create output bitmap
-
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-        // color information
-        int A, R, G, B;
-        int pixel;
-
-        // scan through all pixels
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get pixel color
-                pixel = src.getPixel(x, y);
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-
-                // increase/decrease each channel
-                R += value;
-                if (R > 255) {
-                    R = 255;
-                } else if (R < 0) {
-                    R = 0;
-                }
-
-                G += value;
-                if (G > 255) {
-                    G = 255;
-                } else if (G < 0) {
-                    G = 0;
-                }
-
-                B += value;
-                if (B > 255) {
-                    B = 255;
-                } else if (B < 0) {
-                    B = 0;
-                }
-
-                // apply new pixel color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-
-        // return final image
-        return bmOut;
+        return filter(src, PointOperations.brightness(value));
     }
 
     public Bitmap applyGaussianBlurEffect(Bitmap src) {
-        double[][] GaussianBlurConfig = new double[][] {
-                {
-                        1, 2, 1
-                }, {
-                        2, 4, 2
-                }, {
-                        1, 2, 1
-                }
-        };
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.applyConfig(GaussianBlurConfig);
-        convMatrix.Factor = 16;
-        convMatrix.Offset = 0;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.gaussianBlur());
+    }
+
+    /**
+     * Blurs the image with three box blurs, which approximate a Gaussian blur with a standard
+     * deviation of {@code sqrt(radius * (radius + 1))}. The cost does not depend on the radius.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param radius
+     *            The radius of the box blurs, from 1 up to {@link BoxBlur#MAX_RADIUS}.
+     * @return The blurred bitmap.
+     */
+    public Bitmap applyBoxBlurEffect(Bitmap src, int radius) {
+        BoxBlur blur = new BoxBlur(radius);
+        if (isInPlace(src)) {
+            mEngine.applyInPlace(src, blur);
+            return src;
+        }
+        return mEngine.blur(src, blur);
     }
 
     public Bitmap applySharpenEffect(Bitmap src, double weight) {
-        double[][] SharpConfig = new double[][] {
-                {
-                        0, -2, 0
-                }, {
-                        -2, weight, -2
-                }, {
-                        0, -2, 0
-                }
-        };
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.applyConfig(SharpConfig);
-        convMatrix.Factor = weight - 8;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.sharpen(weight));
+    }
+
+    /**
+     * Sharpens the image with an unsharp mask.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param amount
+     *            How much of the difference with the blurred image is added.
+     * @param radius
+     *            The radius of the blur, about the width of the edges to sharpen.
+     * @param threshold
+     *            The smallest difference of a channel that is sharpened, from 0 to 255.
+     * @return The sharpened bitmap.
+     */
+    public Bitmap applyUnsharpMaskEffect(Bitmap src, double amount, int radius, int threshold) {
+        return filter(src, new UnsharpMask(amount, radius, threshold));
+    }
+
+    /**
+     * Turns a photographed document into black text on white paper, with a threshold that adapts
+     * to the lighting of every part of the page. Replaces {@link #enhanceImage} for unevenly lit
+     * documents.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param method
+     *            How the local threshold is computed.
+     * @param radius
+     *            The radius of the square around every pixel, about the height of a line of text,
+     *            from 1 up to {@link AdaptiveThreshold#MAX_RADIUS}.
+     * @param sensitivity
+     *            The fraction for Bradley or k for Sauvola.
+     * @return The black and white bitmap.
+     */
+    public Bitmap applyAdaptiveThresholdEffect(Bitmap src, AdaptiveThreshold.Method method,
+            int radius, double sensitivity) {
+        return mEngine.apply(src, new AdaptiveThreshold(method, radius, sensitivity));
+    }
+
+    /**
+     * Thresholds the image like {@link #applyAdaptiveThresholdEffect}, but returns one byte per
+     * pixel, 0 for black and 255 for white, or one bit per pixel with 1 for black.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param method
+     *            How the local threshold is computed.
+     * @param radius
+     *            The radius of the square around every pixel.
+     * @param sensitivity
+     *            The fraction for Bradley or k for Sauvola.
+     * @param packed
+     *            Whether to pack the result in rows of
+     *            {@link AdaptiveThreshold#getPackedStride(int)} bytes.
+     * @return The thresholded image.
+     */
+    public byte[] applyAdaptiveThreshold(Bitmap src, AdaptiveThreshold.Method method, int radius,
+            double sensitivity, boolean packed) {
+        return mEngine.threshold(src, new AdaptiveThreshold(method, radius, sensitivity), packed);
+    }
+
+    /**
+     * Thresholds a greyscale image like {@link #applyAdaptiveThresholdEffect(Bitmap,
+     * AdaptiveThreshold.Method, int, double)}.
+     * 
+     * @param image
+     *            The greyscale image.
+     * @param method
+     *            How the local threshold is computed.
+     * @param radius
+     *            The radius of the square around every pixel.
+     * @param sensitivity
+     *            The fraction for Bradley or k for Sauvola.
+     * @return A new image with 0 for black and 255 for white.
+     */
+    public GreyImage applyAdaptiveThresholdEffect(GreyImage image,
+            AdaptiveThreshold.Method method, int radius, double sensitivity) {
+        return mEngine.threshold(image, new AdaptiveThreshold(method, radius, sensitivity));
+    }
+
+    /**
+     * Converts the image to greyscale with one byte per pixel. With the room for the chroma of
+     * the encoder the image takes 1.5 bytes per pixel, 3/8 of the memory of the bitmap.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param tone
+     *            The greyscale conversion with its tone curve, like
+     *            {@link PointOperations#enhance(int, int)}.
+     * @return The greyscale image.
+     */
+    public GreyImage toGreyImage(Bitmap src, LookupTableOperation tone) {
+        return mEngine.toGrey(src, tone);
+    }
+
+    /**
+     * Converts a greyscale image to an opaque ARGB_8888 bitmap.
+     * 
+     * @param image
+     *            The greyscale image.
+     * @return The bitmap.
+     */
+    public Bitmap toBitmap(GreyImage image) {
+        return mEngine.toBitmap(image);
+    }
+
+    /**
+     * Sharpens a greyscale image in place with an unsharp mask, like
+     * {@link #applyUnsharpMaskEffect(Bitmap, double, int, int)}.
+     * 
+     * @param image
+     *            The greyscale image, overwritten with the result.
+     * @param amount
+     *            How much of the difference with the blurred image is added.
+     * @param radius
+     *            The radius of the blur, about the width of the edges to sharpen.
+     * @param threshold
+     *            The smallest difference that is sharpened, from 0 to 255.
+     * @return The sharpened image.
+     */
+    public GreyImage applyUnsharpMaskEffect(GreyImage image, double amount, int radius,
+            int threshold) {
+        mEngine.sharpen(image, new UnsharpMask(amount, radius, threshold));
+        return image;
     }
 
     public Bitmap applyMeanRemovalEffect(Bitmap src) {
-        double[][] MeanRemovalConfig = new double[][] {
-                {
-                        -1, -1, -1
-                }, {
-                        -1, 9, -1
-                }, {
-                        -1, -1, -1
-                }
-        };
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.applyConfig(MeanRemovalConfig);
-        convMatrix.Factor = 1;
-        convMatrix.Offset = 0;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.meanRemoval());
     }
 
     public Bitmap applySmoothEffect(Bitmap src, double value) {
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.setAll(1);
-        convMatrix.Matrix[1][1] = value;
-        convMatrix.Factor = value + 8;
-        convMatrix.Offset = 1;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.smooth(value));
     }
 
     public Bitmap applyEmbossEffect(Bitmap src) {
-        double[][] EmbossConfig = new double[][] {
-                {
-                        -1, 0, -1
-                }, {
-                        0, 4, 0
-                }, {
-                        -1, 0, -1
-                }
-        };
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.applyConfig(EmbossConfig);
-        convMatrix.Factor = 1;
-        convMatrix.Offset = 127;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.emboss());
     }
 
     public Bitmap applyEngraveEffect(Bitmap src) {
-        ConvolutionMatrix convMatrix = new ConvolutionMatrix(3);
-        convMatrix.setAll(0);
-        convMatrix.Matrix[0][0] = -2;
-        convMatrix.Matrix[1][1] = 2;
-        convMatrix.Factor = 1;
-        convMatrix.Offset = 95;
-        return ConvolutionMatrix.computeConvolution3x3(src, convMatrix);
+        return filter(src, ConvolutionKernel.engrave());
     }
 
     public Bitmap applyBoostEffect(Bitmap src, int type, float percent) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-        Bitmap bmOut = Bitmap.createBitmap(width, height, src.getConfig());
-
-        int A, R, G, B;
-        int pixel;
-
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                pixel = src.getPixel(x, y);
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-                if (type == 1) {
-                    R = (int) (R * (1 + percent));
-                    if (R > 255)
-                        R = 255;
-                } else if (type == 2) {
-                    G = (int) (G * (1 + percent));
-                    if (G > 255)
-                        G = 255;
-                } else if (type == 3) {
-                    B = (int) (B * (1 + percent));
-                    if (B > 255)
-                        B = 255;
-                }
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
-        return bmOut;
+        return filter(src, PointOperations.boost(type, percent));
     }
 
     public Bitmap applyRoundCornerEffect(Bitmap src, float round) {
@@ -575,229 +389,34 @@ public class ImageFilters {
     public static final double RANGE = 256d;
 
     public Bitmap applyTintEffect(Bitmap src, int degree) {
-
-        int width = src.getWidth();
-        int height = src.getHeight();
-
-        int[] pix = new int[width * height];
-        src.getPixels(pix, 0, width, 0, 0, width, height);
-
-        int RY, GY, BY, RYY, GYY, BYY, R, G, B, Y;
-        double angle = (PI * (double) degree) / HALF_CIRCLE_DEGREE;
-
-        int S = (int) (RANGE * Math.sin(angle));
-        int C = (int) (RANGE * Math.cos(angle));
-
-        for (int y = 0; y < height; y++)
-            for (int x = 0; x < width; x++) {
-                int index = y * width + x;
-                int r = (pix[index] >> 16) & 0xff;
-                int g = (pix[index] >> 8) & 0xff;
-                int b = pix[index] & 0xff;
-                RY = (70 * r - 59 * g - 11 * b) / 100;
-                GY = (-30 * r + 41 * g - 11 * b) / 100;
-                BY = (-30 * r - 59 * g + 89 * b) / 100;
-                Y = (30 * r + 59 * g + 11 * b) / 100;
-                RYY = (S * BY + C * RY) / 256;
-                BYY = (C * BY - S * RY) / 256;
-                GYY = (-51 * RYY - 19 * BYY) / 100;
-                R = Y + RYY;
-                R = (R < 0) ? 0 : ((R > 255) ? 255 : R);
-                G = Y + GYY;
-                G = (G < 0) ? 0 : ((G > 255) ? 255 : G);
-                B = Y + BYY;
-                B = (B < 0) ? 0 : ((B > 255) ? 255 : B);
-                pix[index] = 0xff000000 | (R << 16) | (G << 8) | B;
-            }
-
-        Bitmap outBitmap = Bitmap.createBitmap(width, height, src.getConfig());
-        outBitmap.setPixels(pix, 0, width, 0, 0, width, height);
-
-        pix = null;
-
-        return outBitmap;
+        return filter(src, PointOperations.tint(degree));
     }
 
     public static final int COLOR_MIN = 0x00;
     public static final int COLOR_MAX = 0xFF;
 
     public Bitmap applyFleaEffect(Bitmap source) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-        // a random object
-        Random random = new Random();
-
-        int index = 0;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // get random color
-                int randColor = Color.rgb(random.nextInt(COLOR_MAX), random.nextInt(COLOR_MAX),
-                        random.nextInt(COLOR_MAX));
-                // OR
-                pixels[index] |= randColor;
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, source.getConfig());
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.flea());
     }
 
     public Bitmap applyBlackFilter(Bitmap source) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-        // random object
-        Random random = new Random();
-
-        int R, G, B, index = 0, thresHold = 0;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // get color
-                R = Color.red(pixels[index]);
-                G = Color.green(pixels[index]);
-                B = Color.blue(pixels[index]);
-                // generate threshold
-                thresHold = random.nextInt(COLOR_MAX);
-                if (R < thresHold && G < thresHold && B < thresHold) {
-                    pixels[index] = Color.rgb(COLOR_MIN, COLOR_MIN, COLOR_MIN);
-                }
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.blackNoise());
     }
 
     public Bitmap applySnowEffect(Bitmap source) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-        // random object
-        Random random = new Random();
-
-        int R, G, B, index = 0, thresHold = 50;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // get color
-                R = Color.red(pixels[index]);
-                G = Color.green(pixels[index]);
-                B = Color.blue(pixels[index]);
-                // generate threshold
-                thresHold = random.nextInt(COLOR_MAX);
-                if (R > thresHold && G > thresHold && B > thresHold) {
-                    pixels[index] = Color.rgb(COLOR_MAX, COLOR_MAX, COLOR_MAX);
-                }
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.snow());
     }
 
     public Bitmap applyShadingFilter(Bitmap source, int shadingColor) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        int index = 0;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // AND
-                pixels[index] &= shadingColor;
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.shading(shadingColor));
     }
 
     public Bitmap applySaturationFilter(Bitmap source, int level) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        float[] HSV = new float[3];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        int index = 0;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // convert to HSV
-                Color.colorToHSV(pixels[index], HSV);
-                // increase Saturation level
-                HSV[1] *= level;
-                HSV[1] = (float) Math.max(0.0, Math.min(HSV[1], 1.0));
-                // take color back
-                pixels[index] |= Color.HSVToColor(HSV);
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.saturation(level));
     }
 
     public Bitmap applyHueFilter(Bitmap source, int level) {
-        // get image size
-        int width = source.getWidth();
-        int height = source.getHeight();
-        int[] pixels = new int[width * height];
-        float[] HSV = new float[3];
-        // get pixel array from source
-        source.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        int index = 0;
-        // iteration through pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // get current index in 2D-matrix
-                index = y * width + x;
-                // convert to HSV
-                Color.colorToHSV(pixels[index], HSV);
-                // increase Saturation level
-                HSV[0] *= level;
-                HSV[0] = (float) Math.max(0.0, Math.min(HSV[0], 360.0));
-                // take color back
-                pixels[index] |= Color.HSVToColor(HSV);
-            }
-        }
-        // output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bmOut.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bmOut;
+        return filter(source, PointOperations.hue(level));
     }
 
     public Bitmap applyReflection(Bitmap originalImage) {
@@ -858,87 +477,26 @@ public class ImageFilters {
      * @return The enhanced bitmap.
      */
     public Bitmap enhanceImage(Bitmap src, int brightnessChange, int contrastChange) {
-        // set the changings
-        final double GS_RED = 0.299;
-        final double GS_GREEN = 0.587;
-        final double GS_BLUE = 0.114;
-
-        // create output bitmap
-        Bitmap bmOut = Bitmap.createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
-        // pixel information
-        int A, R, G, B;
-        int pixel;
-
-        // get image size
-        int width = src.getWidth();
-        int height = src.getHeight();
-
-        // scan through every single pixel
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                // get one pixel color
-                pixel = src.getPixel(x, y);
-                // retrieve color of all channels
-                A = Color.alpha(pixel);
-                R = Color.red(pixel);
-                G = Color.green(pixel);
-                B = Color.blue(pixel);
-
-                // take conversion up to one single value - grayscale effect
-                R = G = B = (int) (GS_RED * R + GS_GREEN * G + GS_BLUE * B);
-
-                // apply contrastChange
-                R = (int) (((((R / 255.0) - 0.5) * contrastChange) + 0.5) * 255.0);
-                if (R < 0) {
-                    R = 0;
-                } else if (R > 255) {
-                    R = 255;
-                }
-
-                G = (int) (((((G / 255.0) - 0.5) * contrastChange) + 0.5) * 255.0);
-                if (G < 0) {
-                    G = 0;
-                } else if (G > 255) {
-                    G = 255;
-                }
-
-                B = (int) (((((B / 255.0) - 0.5) * contrastChange) + 0.5) * 255.0);
-                if (B < 0) {
-                    B = 0;
-                } else if (B > 255) {
-                    B = 255;
-                }
-
-                // apply brightnessEfect
-
-                R += brightnessChange;
-                if (R > 255) {
-                    R = 255;
-                } else if (R < 0) {
-                    R = 0;
-                }
-
-                G += brightnessChange;
-                if (G > 255) {
-                    G = 255;
-                } else if (G < 0) {
-                    G = 0;
-                }
-
-                B += brightnessChange;
-                if (B > 255) {
-                    B = 255;
-                } else if (B < 0) {
-                    B = 0;
-                }
-
-                // set new pixel color to output bitmap
-                bmOut.setPixel(x, y, Color.argb(A, R, G, B));
-            }
-        }
+        return filter(src, PointOperations.enhance(brightnessChange, contrastChange));
+    }
 
-        // return final image
-        return bmOut;
+    /**
+     * Enhances the image into an existing bitmap.
+     * 
+     * @param src
+     *            The source bitmap to enhance.
+     * @param dst
+     *            The mutable bitmap to store the result in, at least as large as the source. Can
+     *            be the source bitmap itself.
+     * @param brightnessChange
+     *            The value of brightness to change.
+     * @param contrastChange
+     *            The factor contrast to change
+     * @return The destination bitmap.
+     */
+    public Bitmap enhanceImage(Bitmap src, Bitmap dst, int brightnessChange, int contrastChange) {
+        mEngine.apply(src, dst, PointOperations.enhance(brightnessChange, contrastChange));
+        return dst;
     }
 
     /**
@@ -951,17 +509,81 @@ public class ImageFilters {
      * @return The bitmap with one color transparent.
      */
     public Bitmap changeColorTransparancy(Bitmap src, int color) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (src.getPixel(x, y) == color) {
-                    src.setPixel(x, y, Color.TRANSPARENT);
-                }
+        mEngine.apply(src, src, PointOperations.makeTransparent(color));
+        return src;
+
+    }
 
-            }
+    /**
+     * Runs a chain of filters over the image, fusing the point operations between the
+     * neighbourhood operations into single passes.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param pipeline
+     *            The filters to apply, in order.
+     * @return The filtered bitmap.
+     */
+    public Bitmap applyFilterPipeline(Bitmap src, FilterPipeline pipeline) {
+        if (isInPlace(src)) {
+            mEngine.applyInPlace(src, pipeline);
+            return src;
         }
-        return src;
+        return mEngine.apply(src, pipeline);
+    }
+
+    /**
+     * Runs a chain of filters over the image into an existing bitmap.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param dst
+     *            The mutable bitmap to store the result in, at least as large as the source. Must
+     *            not be the source bitmap.
+     * @param pipeline
+     *            The filters to apply, in order.
+     * @return The destination bitmap.
+     */
+    public Bitmap applyFilterPipeline(Bitmap src, Bitmap dst, FilterPipeline pipeline) {
+        mEngine.apply(src, dst, pipeline);
+        return dst;
+    }
+
+    /**
+     * Applies a point operation, for instance one from {@link PointOperations}, into an existing
+     * bitmap.
+     * 
+     * @param src
+     *            The source bitmap.
+     * @param dst
+     *            The mutable bitmap to store the result in, at least as large as the source. Can
+     *            be the source bitmap itself.
+     * @param operation
+     *            The operation to apply.
+     * @return The destination bitmap.
+     */
+    public Bitmap apply(Bitmap src, Bitmap dst, PointOperation operation) {
+        mEngine.apply(src, dst, operation);
+        return dst;
+    }
+
+    private boolean isInPlace(Bitmap src) {
+        return mInPlace && src.isMutable();
+    }
 
+    private Bitmap filter(Bitmap src, PointOperation operation) {
+        if (isInPlace(src)) {
+            mEngine.apply(src, src, operation);
+            return src;
+        }
+        return mEngine.apply(src, operation);
+    }
+
+    private Bitmap filter(Bitmap src, NeighbourhoodOperation operation) {
+        if (isInPlace(src)) {
+            mEngine.applyInPlace(src, operation);
+            return src;
+        }
+        return mEngine.apply(src, operation);
     }
 }
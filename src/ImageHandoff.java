@@ -0,0 +1,73 @@
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+/**
+ * Hands a processed image to the next activity while its file is still being written.
+ * <p>
+ * The next activity can show the bitmap right away instead of waiting for the encode and
+ * decoding the file again. Only the last posted image is kept.
+ * </p>
+ */
+public final class ImageHandoff {
+    private static ImageHandoff sPending;
+
+    private final File mFile;
+    private final Bitmap mBitmap;
+    private final Future<File> mWrite;
+
+    /**
+     * Creates a handoff.
+     *
+     * @param file
+     *            The file the image is written to.
+     * @param bitmap
+     *            The image.
+     * @param write
+     *            The future of the write, the bitmap must not be recycled before it is done.
+     */
+    public ImageHandoff(File file, Bitmap bitmap, Future<File> write) {
+        mFile = file;
+        mBitmap = bitmap;
+        mWrite = write;
+    }
+
+    /**
+     * Makes an image available to the next activity.
+     *
+     * @param handoff
+     *            The image to hand off.
+     */
+    public static synchronized void post(ImageHandoff handoff) {
+        sPending = handoff;
+    }
+
+    /**
+     * Takes the image that was posted for a file.
+     *
+     * @param file
+     *            The file of the image.
+     * @return The handoff, or null if no image was posted for the file.
+     */
+    public static synchronized ImageHandoff take(File file) {
+        ImageHandoff handoff = sPending;
+        if (handoff == null || !handoff.mFile.equals(file)) {
+            return null;
+        }
+        sPending = null;
+        return handoff;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public Future<File> getWrite() {
+        return mWrite;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A dedicated service for processing full-size images.
+ * <p>
+ * Every image is a frame job that runs on its own frame thread. The frame job splits its image
+ * into strips on a {@link StripExecutor} backed by a work-stealing {@link ForkJoinPool}, which no
+ * other part of the app shares. The number of frames in flight has a hard bound, so the memory
+ * used by the service stays predictable. Results are delivered through futures and an optional
+ * callback on the callback executor, usually the main thread.
+ * </p>
+ */
+public final class ImageProcessingService {
+    /**
+     * The number of strips per thread, so threads that finish early can take over strips of
+     * the others.
+     */
+    private static final int STRIPS_PER_THREAD = 4;
+
+    /**
+     * Receives the outcome of a frame job. It is not called when the job was cancelled.
+     *
+     * @param <T>
+     *            The type of the result.
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called when the job finished.
+         *
+         * @param result
+         *            The result of the job.
+         */
+        void onResult(T result);
+
+        /**
+         * Called when the job failed.
+         *
+         * @param error
+         *            The exception thrown by the job.
+         */
+        void onError(Throwable error);
+    }
+
+    private final ForkJoinPool mStripPool;
+    private final ThreadPoolExecutor mFrameExecutor;
+    private final Semaphore mFrames;
+    private final Executor mCallbackExecutor;
+    private final StripExecutor mStripExecutor;
+
+    /**
+     * Creates the service.
+     *
+     * @param parallelism
+     *            The number of threads that work on the strips of a frame, usually the number of
+     *            cores.
+     * @param maxFrames
+     *            The maximum number of frames being processed at the same time.
+     * @param callbackExecutor
+     *            The executor to deliver the callbacks on.
+     */
+    public ImageProcessingService(int parallelism, int maxFrames, Executor callbackExecutor) {
+        if (parallelism < 1 || maxFrames < 1) {
+            throw new IllegalArgumentException("Need at least one thread and one frame");
+        }
+        mStripPool = new ForkJoinPool(parallelism);
+        mFrameExecutor = new ThreadPoolExecutor(maxFrames, maxFrames, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new FrameThreadFactory());
+        mFrames = new Semaphore(maxFrames);
+        mCallbackExecutor = callbackExecutor;
+        mStripExecutor = new StripExecutor(mStripPool, parallelism, parallelism
+                * STRIPS_PER_THREAD);
+    }
+
+    /**
+     * Returns the executor frame jobs should split their images with.
+     *
+     * @return The strip executor of the service.
+     */
+    public StripExecutor getStripExecutor() {
+        return mStripExecutor;
+    }
+
+    /**
+     * Submits a frame job.
+     *
+     * @param job
+     *            The job to run.
+     * @param callback
+     *            The callback to deliver the outcome to, or null.
+     * @return The future of the job. Cancelling it interrupts the job, and skips the strips that
+     *         have not been started.
+     * @throws RejectedExecutionException
+     *             if the maximum number of frames is already in flight, or the service was shut
+     *             down.
+     */
+    public <T> Future<T> submit(Callable<T> job, Callback<T> callback) {
+        if (!mFrames.tryAcquire()) {
+            throw new RejectedExecutionException("Too many frames in flight");
+        }
+        FrameTask<T> task = new FrameTask<T>(job, callback);
+        try {
+            mFrameExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mFrames.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Stops the service. Running jobs are interrupted, and their callbacks are not called.
+     */
+    public void shutdown() {
+        mFrameExecutor.shutdownNow();
+        mStripPool.shutdownNow();
+    }
+
+    /**
+     * A frame job that gives its frame back and delivers its outcome when it is done.
+     */
+    private final class FrameTask<T> extends FutureTask<T> {
+        private final Callback<T> mCallback;
+
+        FrameTask(Callable<T> job, Callback<T> callback) {
+            super(job);
+            mCallback = callback;
+        }
+
+        @Override
+        protected void done() {
+            mFrames.release();
+            if (mCallback == null || isCancelled()) {
+                return;
+            }
+            try {
+                final T result = get();
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onResult(result);
+                    }
+                });
+            } catch (final ExecutionException e) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onError(e.getCause());
+                    }
+                });
+            } catch (CancellationException e) {
+                // cancelled after all, nobody waits for the outcome
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class FrameThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "image-frame-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
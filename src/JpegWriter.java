@@ -0,0 +1,236 @@
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Encodes bitmaps and greyscale images to JPEG files on a background executor.
+ * <p>
+ * Every file is first written to a temporary file next to it through a buffered stream, which is
+ * flushed and closed explicitly, and then renamed to its final name. Readers therefore either see
+ * no file or the complete file, never a partly written one. Cancelling an asynchronous write with
+ * interruption and renaming its file hold the same lock, so once the cancel returns the write
+ * either never renames its file or already has, and the file can be deleted.
+ * </p>
+ * <p>
+ * A {@link GreyImage} is encoded as an NV21 frame whose chroma is neutral, so the encoder reads
+ * the grey values as they are. Its JPEG holds only the luma, an odd last row or column is
+ * dropped because NV21 frames have an even size.
+ * </p>
+ */
+public final class JpegWriter {
+    private static final String TAG = JpegWriter.class.getSimpleName();
+    /**
+     * The quality the processed images have always been stored with.
+     */
+    public static final int DEFAULT_QUALITY = 100;
+    /**
+     * The size of the buffer between the encoder and the file.
+     */
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * The chroma value of grey.
+     */
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private final Executor mExecutor;
+    private final int mQuality;
+    private final boolean mSync;
+
+    /**
+     * Creates a writer.
+     *
+     * @param executor
+     *            The executor to encode and write on, usually a single I/O thread.
+     * @param quality
+     *            The JPEG quality, from 0 to 100.
+     * @param sync
+     *            Whether to wait until the file is on the storage device before it is renamed.
+     *            Safer when the device loses power, but slower.
+     */
+    public JpegWriter(Executor executor, int quality, boolean sync) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("The quality must be between 0 and 100");
+        }
+        mExecutor = executor;
+        mQuality = quality;
+        mSync = sync;
+    }
+
+    /**
+     * Encodes a bitmap on the executor. The bitmap must not be recycled until the future is done.
+     *
+     * @param bitmap
+     *            The bitmap to encode.
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @return The future of the written file. Cancelling it with interruption leaves the file
+     *         untouched if the rename has not happened yet, and waits for a rename that is
+     *         running.
+     */
+    public Future<File> writeAsync(final Bitmap bitmap, final File file) {
+        return writeAsync(file, new Encoder() {
+            @Override
+            public boolean encode(OutputStream stream) {
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, stream);
+            }
+        });
+    }
+
+    /**
+     * Encodes a greyscale image on the executor. The image must not be changed until the future
+     * is done.
+     *
+     * @param image
+     *            The image to encode.
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @return The future of the written file. Cancelling it with interruption leaves the file
+     *         untouched if the rename has not happened yet, and waits for a rename that is
+     *         running.
+     */
+    public Future<File> writeAsync(GreyImage image, File file) {
+        return writeAsync(file, greyEncoder(image));
+    }
+
+    /**
+     * Encodes a bitmap on the calling thread.
+     *
+     * @param bitmap
+     *            The bitmap to encode.
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @throws IOException
+     *             if the file could not be written. The existing file is then left untouched.
+     */
+    public void write(final Bitmap bitmap, File file) throws IOException {
+        write(file, new Encoder() {
+            @Override
+            public boolean encode(OutputStream stream) {
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, stream);
+            }
+        });
+    }
+
+    /**
+     * Encodes a greyscale image on the calling thread.
+     *
+     * @param image
+     *            The image to encode.
+     * @param file
+     *            The file to write, replaced if it exists.
+     * @throws IOException
+     *             if the file could not be written. The existing file is then left untouched.
+     */
+    public void write(GreyImage image, File file) throws IOException {
+        write(file, greyEncoder(image));
+    }
+
+    /**
+     * Encodes an image into a stream.
+     */
+    private interface Encoder {
+        /**
+         * @return False if the image could not be encoded.
+         */
+        boolean encode(OutputStream stream);
+    }
+
+    private Encoder greyEncoder(final GreyImage image) {
+        return new Encoder() {
+            @Override
+            public boolean encode(OutputStream stream) {
+                int width = image.getWidth();
+                int height = image.getHeight();
+                byte[] frame = image.getPixels();
+                // the room after the grey values becomes the chroma of the frame
+                Arrays.fill(frame, width * height, frame.length, NEUTRAL_CHROMA);
+                YuvImage yuv = new YuvImage(frame, ImageFormat.NV21, width, height, null);
+                return yuv.compressToJpeg(new Rect(0, 0, width, height), mQuality, stream);
+            }
+        };
+    }
+
+    private Future<File> writeAsync(final File file, final Encoder encoder) {
+        final Object lock = new Object();
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    write(file, encoder, lock);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write " + file, e);
+                    throw e;
+                }
+                return file;
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // the interrupt is set before the lock is released
+                synchronized (lock) {
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            }
+        };
+        mExecutor.execute(task);
+        return task;
+    }
+
+    private void write(File file, Encoder encoder) throws IOException {
+        write(file, encoder, new Object());
+    }
+
+    /**
+     * Writes a file through a temporary file.
+     *
+     * @param lock
+     *            The lock that is held while checking for an interrupt and renaming.
+     */
+    private void write(File file, Encoder encoder, Object lock) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        boolean renamed = false;
+        try {
+            FileOutputStream fileStream = new FileOutputStream(temp);
+            try {
+                OutputStream stream = new BufferedOutputStream(fileStream, BUFFER_BYTES);
+                if (!encoder.encode(stream)) {
+                    throw new IOException("Could not encode " + file);
+                }
+                stream.flush();
+                if (mSync) {
+                    fileStream.getFD().sync();
+                }
+            } finally {
+                fileStream.close();
+            }
+            synchronized (lock) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Cancelled writing " + file);
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp + " to " + file);
+                }
+                renamed = true;
+            }
+        } finally {
+            if (!renamed) {
+                temp.delete();
+            }
+        }
+    }
+}
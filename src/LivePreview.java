@@ -0,0 +1,322 @@
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters the preview of a photo the way the crop will be enhanced, while the user moves the
+ * crop, so the result can be seen before it is made.
+ * <p>
+ * The preview about the size of the screen is the proxy of the photo. It is converted to
+ * greyscale with the tone curve once, and then filtered in tiles, only where the crop is. Tiles
+ * that were filtered for an earlier position of the crop are kept, so moving the crop only
+ * filters the tiles it uncovers. The tiles are filtered with the rows and columns around them
+ * the filter reads, so together they are the filtered proxy. Tiles that are not filtered yet
+ * show the proxy in greyscale.
+ * </p>
+ * <p>
+ * The filtering runs on one background thread, leaving the other cores to the UI. Only the
+ * latest requested crop is filtered: a request that is replaced by a newer one is dropped after
+ * the tile being filtered, and the listener is told about new tiles at most about once per
+ * {@link #FRAME_BUDGET_NANOS}, so the view is not redrawn more often than the screen refreshes.
+ * Requesting a crop allocates nothing, so it can be done for every touch event.
+ * </p>
+ */
+public final class LivePreview {
+    /**
+     * The time the filter thread works before it publishes the new tiles, half a frame at 60
+     * frames per second.
+     */
+    public static final long FRAME_BUDGET_NANOS = 8000000L;
+    /**
+     * The width and height of a tile.
+     */
+    private static final int TILE_SIZE = 128;
+    /**
+     * How long {@link #release()} waits for the filter thread, far longer than a tile takes.
+     */
+    private static final long RELEASE_TIMEOUT_SECONDS = 1;
+
+    /**
+     * Is told when new tiles are filtered, on the filter thread.
+     */
+    public interface Listener {
+        void onPreviewUpdated();
+    }
+
+    private final Bitmap mProxy;
+    private final boolean mThreshold;
+    private final Listener mListener;
+    private final ExecutorService mWorker;
+    private final UnsharpMask mSharpen;
+    private final Runnable mRenderTask = new Runnable() {
+        @Override
+        public void run() {
+            render();
+        }
+    };
+
+    /**
+     * The requested crop, in the coordinates of the proxy, guarded by this.
+     */
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+    /**
+     * The number of requests so far, to find out that a request is stale.
+     */
+    private int mGeneration;
+    private boolean mScheduled;
+    private boolean mReleased;
+
+    // only used on the filter thread
+    private GreyImage mToned;
+    private Bitmap mBitmap;
+    private int mTilesWide;
+    private boolean[] mFiltered;
+    private AdaptiveThreshold mThresholdFilter;
+    private int[] mSource = new int[0];
+    private int[] mPixels = new int[0];
+    private byte[] mGrey = new byte[0];
+    private byte[] mOutput = new byte[0];
+
+    /**
+     * Creates a live preview. Nothing is filtered before the first request.
+     *
+     * @param proxy
+     *            The preview of the photo, which must not be recycled before
+     *            {@link #release()}.
+     * @param scale
+     *            The number of pixels of the photo per pixel of the proxy.
+     * @param threshold
+     *            Whether the crop is thresholded into black and white instead of sharpened.
+     * @param listener
+     *            The listener to tell about new tiles.
+     */
+    public LivePreview(Bitmap proxy, float scale, boolean threshold, Listener listener) {
+        mProxy = proxy;
+        mThreshold = threshold;
+        mListener = listener;
+        mWorker = Executors.newSingleThreadExecutor();
+        // a blur of the same width on the screen
+        int radius = Math.max(1, Math.round(ScanSettings.SHARPEN_RADIUS / scale));
+        mSharpen = new UnsharpMask(ScanSettings.SHARPEN_AMOUNT, radius,
+                ScanSettings.SHARPEN_THRESHOLD);
+    }
+
+    /**
+     * Requests the preview of a crop. Returns at once, the crop is filtered in the background.
+     *
+     * @param left
+     *            The first column of the crop in the proxy.
+     * @param top
+     *            The first row of the crop in the proxy.
+     * @param right
+     *            The column after the last column of the crop.
+     * @param bottom
+     *            The row after the last row of the crop.
+     */
+    public synchronized void request(int left, int top, int right, int bottom) {
+        if (mReleased) {
+            return;
+        }
+        mLeft = Math.max(left, 0);
+        mTop = Math.max(top, 0);
+        mRight = Math.min(right, mProxy.getWidth());
+        mBottom = Math.min(bottom, mProxy.getHeight());
+        mGeneration++;
+        if (!mScheduled) {
+            mScheduled = true;
+            mWorker.execute(mRenderTask);
+        }
+    }
+
+    /**
+     * Returns the filtered proxy, to be drawn over the proxy inside the crop.
+     *
+     * @return The bitmap of the size of the proxy, or null before the first tiles are filtered.
+     */
+    public synchronized Bitmap getBitmap() {
+        return mReleased ? null : mBitmap;
+    }
+
+    /**
+     * Stops filtering and frees the filtered proxy. Waits until the tile being filtered is done,
+     * so the proxy can be recycled afterwards. The bitmap must no longer be drawn.
+     */
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+        }
+        mWorker.shutdown();
+        try {
+            mWorker.awaitTermination(RELEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            // a thread that is still filtering lets the garbage collector free it
+            if (mWorker.isTerminated() && mBitmap != null) {
+                mBitmap.recycle();
+            }
+            mBitmap = null;
+        }
+    }
+
+    /**
+     * Filters the latest requested crop until no newer one is requested.
+     */
+    private void render() {
+        while (true) {
+            int left;
+            int top;
+            int right;
+            int bottom;
+            int generation;
+            synchronized (this) {
+                if (mReleased) {
+                    mScheduled = false;
+                    return;
+                }
+                left = mLeft;
+                top = mTop;
+                right = mRight;
+                bottom = mBottom;
+                generation = mGeneration;
+            }
+            if (mToned == null) {
+                prepare();
+            }
+            if (right > left && bottom > top) {
+                filter(left, top, right, bottom, generation);
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the proxy with the tone curve, and shows it unfiltered until the tiles are done.
+     */
+    private void prepare() {
+        int width = mProxy.getWidth();
+        int height = mProxy.getHeight();
+        int[] pixels = new int[width * height];
+        mProxy.getPixels(pixels, 0, width, 0, 0, width, height);
+        mToned = new GreyImage(width, height);
+        LookupTableOperation tone = ScanSettings.getTone(mThreshold);
+        tone.toGrey(pixels, 0, mToned.getPixels(), 0, width * height);
+        byte[] grey = mToned.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | (grey[i] & 0xff) * 0x010101;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        mTilesWide = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mFiltered = new boolean[mTilesWide * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+        synchronized (this) {
+            mBitmap = bitmap;
+        }
+    }
+
+    /**
+     * Filters the tiles of a crop that are not filtered yet, until a newer crop is requested.
+     */
+    private void filter(int left, int top, int right, int bottom, int generation) {
+        if (mThreshold) {
+            // the radius follows the size of the crop, the tiles of another radius are stale
+            int radius = ScanSettings.getThresholdRadius(right - left, bottom - top);
+            if (mThresholdFilter == null || mThresholdFilter.getRadius() != radius) {
+                mThresholdFilter = new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA,
+                        radius, ScanSettings.THRESHOLD_SENSITIVITY);
+                Arrays.fill(mFiltered, false);
+            }
+        }
+        long published = System.nanoTime();
+        boolean updated = false;
+        for (int tileTop = top / TILE_SIZE * TILE_SIZE; tileTop < bottom;
+                tileTop += TILE_SIZE) {
+            for (int tileLeft = left / TILE_SIZE * TILE_SIZE; tileLeft < right;
+                    tileLeft += TILE_SIZE) {
+                int tile = tileTop / TILE_SIZE * mTilesWide + tileLeft / TILE_SIZE;
+                if (mFiltered[tile]) {
+                    continue;
+                }
+                filterTile(tileLeft, tileTop, Math.min(tileLeft + TILE_SIZE, mToned.getWidth()),
+                        Math.min(tileTop + TILE_SIZE, mToned.getHeight()));
+                mFiltered[tile] = true;
+                updated = true;
+                if (System.nanoTime() - published >= FRAME_BUDGET_NANOS) {
+                    mListener.onPreviewUpdated();
+                    updated = false;
+                    published = System.nanoTime();
+                }
+                synchronized (this) {
+                    if (generation != mGeneration || mReleased) {
+                        // stale, the tiles that are done are kept for the newer crop
+                        if (updated) {
+                            mListener.onPreviewUpdated();
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+        if (updated) {
+            mListener.onPreviewUpdated();
+        }
+    }
+
+    /**
+     * Filters a tile from the tile and the pixels around it that the filter reads, which are
+     * filtered as an image of their own.
+     */
+    private void filterTile(int left, int top, int right, int bottom) {
+        int imageWidth = mToned.getWidth();
+        int imageHeight = mToned.getHeight();
+        int radius = mThreshold ? mThresholdFilter.getRadius() : mSharpen.getRadius();
+        int first = Math.max(top - radius, 0);
+        int last = Math.min(bottom + radius, imageHeight);
+        int from = Math.max(left - radius, 0);
+        int to = Math.min(right + radius, imageWidth);
+        int width = to - from;
+        int height = last - first;
+        int rows = bottom - top;
+        byte[] toned = mToned.getPixels();
+        if (mPixels.length < width * rows) {
+            mPixels = new int[width * rows];
+        }
+        if (mThreshold) {
+            if (mGrey.length < width * height) {
+                mGrey = new byte[width * height];
+                mOutput = new byte[width * height];
+            }
+            for (int y = first; y < last; y++) {
+                System.arraycopy(toned, y * imageWidth + from, mGrey, (y - first) * width, width);
+            }
+            mThresholdFilter.apply(mGrey, 0, mOutput, top - first, width, height, top - first,
+                    bottom - first, false);
+            for (int i = 0; i < width * rows; i++) {
+                mPixels[i] = 0xff000000 | (mOutput[i] & 0xff) * 0x010101;
+            }
+        } else {
+            if (mSource.length < width * height) {
+                mSource = new int[width * height];
+            }
+            for (int y = first, i = 0; y < last; y++) {
+                for (int x = from, in = y * imageWidth + from; x < to; x++, i++, in++) {
+                    mSource[i] = 0xff000000 | (toned[in] & 0xff) * 0x010101;
+                }
+            }
+            mSharpen.apply(mSource, 0, mPixels, top - first, width, height, top - first, bottom
+                    - first);
+        }
+        mBitmap.setPixels(mPixels, left - from, width, left, top, right - left, rows);
+    }
+}
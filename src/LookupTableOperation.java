@@ -0,0 +1,263 @@
+import java.util.Arrays;
+
+/**
+ * A point operation compiled into lookup tables.
+ * <p>
+ * There are two kinds of tables. Channel tables map the red, green and blue value of a pixel
+ * each through their own 256 entry table. Greyscale tables first compute the greyscale value of
+ * a pixel with integer luma weights, after which the whole chain of tone changes is one lookup in
+ * a 256 entry table of packed RGB values. The alpha channel is always kept.
+ * </p>
+ * <p>
+ * Consecutive tables can be fused into one with {@link #fuse(LookupTableOperation)}, so a chain
+ * of tone changes costs the same per pixel as a single one. The lookups run in the
+ * {@link PixelKernels}, so they use SIMD lanes on a JVM that supports them.
+ * </p>
+ */
+public final class LookupTableOperation implements PointOperation {
+    /**
+     * The luma weights (0.299, 0.587, 0.114) in 16.16 fixed point. They add up to 65536, so white
+     * stays white.
+     */
+    static final int LUMA_RED = 19595;
+    static final int LUMA_GREEN = 38470;
+    static final int LUMA_BLUE = 7471;
+    static final int LUMA_SHIFT = 16;
+
+    /**
+     * The number of entries in a table, one for every channel value.
+     */
+    public static final int TABLE_SIZE = 256;
+
+    /**
+     * Whether the tables are indexed by the greyscale value instead of the channel values.
+     */
+    private final boolean mGreyscale;
+    /**
+     * The output channel values, indexed by the input channel or greyscale value.
+     */
+    private final int[] mRed;
+    private final int[] mGreen;
+    private final int[] mBlue;
+    /**
+     * The output channel values shifted to their place in an ARGB pixel.
+     */
+    private final int[] mShiftedRed;
+    private final int[] mShiftedGreen;
+    private final int[] mShiftedBlue;
+    /**
+     * Maps a greyscale value to the packed RGB value of the output pixel.
+     */
+    private final int[] mPacked;
+    /**
+     * Whether every output value lies in the 0 - 255 range. Values outside of it overflow into
+     * the neighbouring channels, just like {@code Color.argb} does.
+     */
+    private final boolean mInRange;
+    /**
+     * Whether the output is grey, a greyscale table with the same value for every channel.
+     */
+    private final boolean mGrey;
+    private final PixelKernels mKernels = PixelKernels.getInstance();
+
+    private LookupTableOperation(boolean greyscale, int[] red, int[] green, int[] blue) {
+        if (red.length != TABLE_SIZE || green.length != TABLE_SIZE || blue.length != TABLE_SIZE) {
+            throw new IllegalArgumentException("Every table needs " + TABLE_SIZE + " entries");
+        }
+        mGreyscale = greyscale;
+        mRed = red;
+        mGreen = green;
+        mBlue = blue;
+        mShiftedRed = new int[TABLE_SIZE];
+        mShiftedGreen = new int[TABLE_SIZE];
+        mShiftedBlue = new int[TABLE_SIZE];
+        mPacked = new int[TABLE_SIZE];
+
+        boolean inRange = true;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            mShiftedRed[i] = red[i] << 16;
+            mShiftedGreen[i] = green[i] << 8;
+            mShiftedBlue[i] = blue[i];
+            mPacked[i] = mShiftedRed[i] | mShiftedGreen[i] | mShiftedBlue[i];
+            inRange &= isInRange(red[i]) && isInRange(green[i]) && isInRange(blue[i]);
+        }
+        mInRange = inRange;
+        mGrey = greyscale && inRange && Arrays.equals(red, green) && Arrays.equals(green, blue);
+    }
+
+    /**
+     * Compiles an operation that maps every channel through its own table.
+     *
+     * @param red
+     *            The output value for every red value, copied.
+     * @param green
+     *            The output value for every green value, copied.
+     * @param blue
+     *            The output value for every blue value, copied.
+     * @return The compiled operation.
+     */
+    public static LookupTableOperation channels(int[] red, int[] green, int[] blue) {
+        return new LookupTableOperation(false, red.clone(), green.clone(), blue.clone());
+    }
+
+    /**
+     * Compiles a greyscale conversion followed by a tone curve.
+     *
+     * @param table
+     *            The output channel value for every greyscale value, all in the 0 - 255 range.
+     * @return The compiled operation.
+     */
+    public static LookupTableOperation greyscale(int[] table) {
+        for (int value : table) {
+            if (!isInRange(value)) {
+                throw new IllegalArgumentException("Table value out of range: " + value);
+            }
+        }
+        return new LookupTableOperation(true, table.clone(), table.clone(), table.clone());
+    }
+
+    /**
+     * Compiles a plain greyscale conversion.
+     *
+     * @return The compiled operation.
+     */
+    public static LookupTableOperation greyscale() {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] = i;
+        }
+        return greyscale(table);
+    }
+
+    /**
+     * Compiles the greyscale, contrast and brightness chain of {@code ImageFilters.enhanceImage}.
+     *
+     * @param brightnessChange
+     *            The value to add to every channel.
+     * @param contrastChange
+     *            The factor to multiply the contrast with.
+     * @return The compiled operation.
+     */
+    public static LookupTableOperation enhance(int brightnessChange, int contrastChange) {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            // apply contrastChange
+            int value = PointOperations.clamp((int) (((((i / 255.0) - 0.5) * contrastChange)
+                    + 0.5) * 255.0));
+            // apply brightnessChange
+            table[i] = PointOperations.clamp(value + brightnessChange);
+        }
+        return greyscale(table);
+    }
+
+    /**
+     * Computes the greyscale value of a pixel with the integer luma weights.
+     *
+     * @param pixel
+     *            The ARGB pixel.
+     * @return The greyscale value in the 0 - 255 range.
+     */
+    static int luma(int pixel) {
+        return (LUMA_RED * ((pixel >> 16) & 0xff) + LUMA_GREEN * ((pixel >> 8) & 0xff)
+                + LUMA_BLUE * (pixel & 0xff)) >> LUMA_SHIFT;
+    }
+
+    private static boolean isInRange(int value) {
+        return value >= 0 && value <= 255;
+    }
+
+    /**
+     * Checks if this operation followed by another one can be compiled into one table.
+     * <p>
+     * This is the case when this operation keeps every channel in range, and the next operation
+     * maps channels or this operation is a greyscale table itself. A channel table followed by a
+     * greyscale table cannot be fused, since the greyscale value depends on all three mapped
+     * channels.
+     * </p>
+     *
+     * @param next
+     *            The operation that runs after this one.
+     * @return True if {@link #fuse(LookupTableOperation)} can be used.
+     */
+    public boolean canFuse(LookupTableOperation next) {
+        return mInRange && (mGreyscale || !next.mGreyscale);
+    }
+
+    /**
+     * Compiles this operation followed by another one into one table.
+     *
+     * @param next
+     *            The operation that runs after this one.
+     * @return The fused operation.
+     * @throws IllegalArgumentException
+     *             if the operations cannot be fused.
+     */
+    public LookupTableOperation fuse(LookupTableOperation next) {
+        if (!canFuse(next)) {
+            throw new IllegalArgumentException("The operations cannot be fused");
+        }
+        int[] red = new int[TABLE_SIZE];
+        int[] green = new int[TABLE_SIZE];
+        int[] blue = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            if (next.mGreyscale) {
+                // this is a greyscale table too, the next one looks up the luma of its output
+                int value = luma(mPacked[i]);
+                red[i] = next.mRed[value];
+                green[i] = next.mGreen[value];
+                blue[i] = next.mBlue[value];
+            } else {
+                red[i] = next.mRed[mRed[i]];
+                green[i] = next.mGreen[mGreen[i]];
+                blue[i] = next.mBlue[mBlue[i]];
+            }
+        }
+        return new LookupTableOperation(mGreyscale, red, green, blue);
+    }
+
+    /**
+     * Checks if the output of this operation is grey, so it can be stored in one byte per pixel
+     * with {@link #toGrey(int[], int, byte[], int, int)}.
+     *
+     * @return True if every output pixel has the same red, green and blue value.
+     */
+    public boolean isGrey() {
+        return mGrey;
+    }
+
+    /**
+     * Applies this operation and stores the grey value of every pixel in one byte.
+     *
+     * @param pixels
+     *            The ARGB pixels, are not changed.
+     * @param offset
+     *            The index of the first pixel.
+     * @param grey
+     *            The output grey values.
+     * @param greyOffset
+     *            The index of the first output value.
+     * @param length
+     *            The number of pixels.
+     * @throws IllegalStateException
+     *             if the output of this operation is not grey.
+     */
+    public void toGrey(int[] pixels, int offset, byte[] grey, int greyOffset, int length) {
+        if (!mGrey) {
+            throw new IllegalStateException("The output of the operation is not grey");
+        }
+        final int[] table = mBlue;
+        for (int i = 0; i < length; i++) {
+            grey[greyOffset + i] = (byte) table[luma(pixels[offset + i])];
+        }
+    }
+
+    @Override
+    public void apply(int[] pixels, int offset, int length) {
+        if (mGreyscale) {
+            mKernels.lookupGreyscale(pixels, offset, length, mPacked);
+        } else {
+            mKernels.lookupChannels(pixels, offset, length, mShiftedRed, mShiftedGreen,
+                    mShiftedBlue);
+        }
+    }
+}
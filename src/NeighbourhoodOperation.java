@@ -0,0 +1,42 @@
+/**
+ * A filter that computes every output pixel from the input pixels around the same position.
+ * <p>
+ * The source and destination buffers can hold a band of rows instead of the whole image, so
+ * the operation can run on strips that only carry the rows around them that it reads.
+ * </p>
+ */
+public interface NeighbourhoodOperation {
+
+    /**
+     * Returns how many rows and columns around a pixel the operation reads.
+     *
+     * @return The radius of the neighbourhood.
+     */
+    int getRadius();
+
+    /**
+     * Computes a range of rows of the output.
+     *
+     * @param src
+     *            The source pixels, holding the image rows from {@code srcTop} on. It must hold
+     *            the rows from {@code top - radius} up to {@code bottom + radius}, clipped to the
+     *            image.
+     * @param srcTop
+     *            The image row of the first row in the source buffer.
+     * @param dst
+     *            The destination pixels, holding the image rows from {@code dstTop} on. Must not
+     *            be the source buffer.
+     * @param dstTop
+     *            The image row of the first row in the destination buffer.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param top
+     *            The first image row to compute.
+     * @param bottom
+     *            The image row after the last row to compute.
+     */
+    void apply(int[] src, int srcTop, int[] dst, int dstTop, int width, int height, int top,
+            int bottom);
+}
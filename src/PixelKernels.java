@@ -0,0 +1,213 @@
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The innermost loops of the filter core: the table lookups of the point operations and the rows
+ * of the 3x3 convolution.
+ * <p>
+ * This class is the scalar implementation, which runs everywhere. On a desktop or server JVM with
+ * the {@code jdk.incubator.vector} module, the build of the filter core adds
+ * {@code VectorPixelKernels}, which computes several pixels per instruction in SIMD lanes.
+ * {@link #getInstance()} loads it by name when it is there and the JVM has the module and real
+ * vector registers, and falls back to this class otherwise, so the Android build does not know of
+ * it. Both give exactly the same pixels.
+ * </p>
+ */
+public class PixelKernels {
+    /**
+     * The name of the vectorized implementation, only on the class path of the server build.
+     */
+    private static final String VECTOR_CLASS = "VectorPixelKernels";
+    /**
+     * Set this system property to false to run the scalar kernels on a JVM that has the vector
+     * ones.
+     */
+    public static final String VECTOR_PROPERTY = "cropper.vector";
+
+    private static final PixelKernels SCALAR = new PixelKernels();
+
+    /**
+     * Loads the fastest kernels on first use. Loading them while this class is initialized would
+     * create the vector kernels before their own static fields are set, when the vector class is
+     * the first one touched.
+     */
+    private static final class Holder {
+        static final PixelKernels INSTANCE = load();
+    }
+
+    PixelKernels() {
+    }
+
+    /**
+     * @return The fastest kernels of this JVM.
+     */
+    public static PixelKernels getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return The scalar kernels, for instance to compare the vector ones with.
+     */
+    public static PixelKernels scalar() {
+        return SCALAR;
+    }
+
+    private static PixelKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true"))) {
+            return SCALAR;
+        }
+        try {
+            PixelKernels kernels = (PixelKernels) Class.forName(VECTOR_CLASS)
+                    .getDeclaredConstructor().newInstance();
+            return kernels.isAccelerated() ? kernels : SCALAR;
+        } catch (ClassNotFoundException e) {
+            // not in the build, like on Android
+        } catch (LinkageError e) {
+            // the JVM has no vector module, or it was not added
+        } catch (NoSuchMethodException e) {
+            // cannot happen, the class has a public constructor
+        } catch (InstantiationException e) {
+            // cannot happen, the class has a public constructor
+        } catch (IllegalAccessException e) {
+            // cannot happen, the class has a public constructor
+        } catch (InvocationTargetException e) {
+            // cannot happen, the constructor does nothing
+        }
+        return SCALAR;
+    }
+
+    /**
+     * @return Whether these kernels use SIMD instructions.
+     */
+    public boolean isAccelerated() {
+        return false;
+    }
+
+    /**
+     * Replaces every pixel by the entry of a table at its luma, keeping the alpha channel.
+     *
+     * @param pixels
+     *            The ARGB pixels, changed in place.
+     * @param offset
+     *            The index of the first pixel.
+     * @param length
+     *            The number of pixels.
+     * @param packed
+     *            The packed RGB value for every luma value, 256 entries.
+     */
+    public void lookupGreyscale(int[] pixels, int offset, int length, int[] packed) {
+        int pixel;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            pixel = pixels[i];
+            pixels[i] = (pixel & 0xff000000) | packed[LookupTableOperation.luma(pixel)];
+        }
+    }
+
+    /**
+     * Maps every channel of every pixel through its own table, keeping the alpha channel.
+     *
+     * @param pixels
+     *            The ARGB pixels, changed in place.
+     * @param offset
+     *            The index of the first pixel.
+     * @param length
+     *            The number of pixels.
+     * @param red
+     *            The output red value for every red value, shifted to its place in a pixel.
+     * @param green
+     *            The output green value for every green value, shifted to its place in a pixel.
+     * @param blue
+     *            The output blue value for every blue value.
+     */
+    public void lookupChannels(int[] pixels, int offset, int length, int[] red, int[] green,
+            int[] blue) {
+        int pixel;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            pixel = pixels[i];
+            pixels[i] = (pixel & 0xff000000) | red[(pixel >> 16) & 0xff]
+                    | green[(pixel >> 8) & 0xff] | blue[pixel & 0xff];
+        }
+    }
+
+    /**
+     * Convolves a run of pixels of one row with a 3x3 kernel. Every channel becomes the weighted
+     * sum of its neighbourhood plus the bias, divided by the divisor and clamped; the alpha
+     * channel is copied from the center pixel.
+     * <p>
+     * The three rows around the run are walked as a sliding window: the pixels of the left and
+     * center column are kept from the previous pixel, so every pixel loads only the three pixels
+     * of its right column.
+     * </p>
+     *
+     * @param src
+     *            The source pixels. The run and the pixels around it must be in the buffer.
+     * @param in
+     *            The index of the source pixel at the center of the first neighbourhood.
+     * @param width
+     *            The distance between the rows of the source.
+     * @param dst
+     *            The output pixels, must not be the source buffer.
+     * @param out
+     *            The index of the first output pixel.
+     * @param length
+     *            The number of pixels of the run.
+     * @param weights
+     *            The nine weights, {@code weights[row * 3 + column]}.
+     * @param bias
+     *            Added to the weighted sum before it is divided.
+     * @param divisor
+     *            The positive value the biased sum is divided by, or 0 to give 255 for a
+     *            positive sum and 0 otherwise.
+     */
+    public void convolve3x3(int[] src, int in, int width, int[] dst, int out, int length,
+            int[] weights, int bias, int divisor) {
+        final int w00 = weights[0], w01 = weights[1], w02 = weights[2];
+        final int w10 = weights[3], w11 = weights[4], w12 = weights[5];
+        final int w20 = weights[6], w21 = weights[7], w22 = weights[8];
+
+        int above = in - width;
+        int center = in;
+        int below = in + width;
+        // the pixels of the left and center column of the first neighbourhood
+        int a0 = src[above - 1], b0 = src[center - 1], c0 = src[below - 1];
+        int a1 = src[above], b1 = src[center], c1 = src[below];
+
+        for (int x = 0; x < length; x++) {
+            int a2 = src[above + x + 1];
+            int b2 = src[center + x + 1];
+            int c2 = src[below + x + 1];
+
+            int sumR = w00 * ((a0 >> 16) & 0xff) + w01 * ((a1 >> 16) & 0xff) + w02
+                    * ((a2 >> 16) & 0xff) + w10 * ((b0 >> 16) & 0xff) + w11
+                    * ((b1 >> 16) & 0xff) + w12 * ((b2 >> 16) & 0xff) + w20
+                    * ((c0 >> 16) & 0xff) + w21 * ((c1 >> 16) & 0xff) + w22
+                    * ((c2 >> 16) & 0xff);
+            int sumG = w00 * ((a0 >> 8) & 0xff) + w01 * ((a1 >> 8) & 0xff) + w02
+                    * ((a2 >> 8) & 0xff) + w10 * ((b0 >> 8) & 0xff) + w11
+                    * ((b1 >> 8) & 0xff) + w12 * ((b2 >> 8) & 0xff) + w20
+                    * ((c0 >> 8) & 0xff) + w21 * ((c1 >> 8) & 0xff) + w22
+                    * ((c2 >> 8) & 0xff);
+            int sumB = w00 * (a0 & 0xff) + w01 * (a1 & 0xff) + w02 * (a2 & 0xff) + w10
+                    * (b0 & 0xff) + w11 * (b1 & 0xff) + w12 * (b2 & 0xff) + w20
+                    * (c0 & 0xff) + w21 * (c1 & 0xff) + w22 * (c2 & 0xff);
+
+            int R, G, B;
+            if (divisor != 0) {
+                R = PointOperations.clamp((sumR + bias) / divisor);
+                G = PointOperations.clamp((sumG + bias) / divisor);
+                B = PointOperations.clamp((sumB + bias) / divisor);
+            } else {
+                R = sumR > 0 ? 255 : 0;
+                G = sumG > 0 ? 255 : 0;
+                B = sumB > 0 ? 255 : 0;
+            }
+            dst[out + x] = (b1 & 0xff000000) | (R << 16) | (G << 8) | B;
+
+            a0 = a1;
+            b0 = b1;
+            c0 = c1;
+            a1 = a2;
+            b1 = b2;
+            c1 = c2;
+        }
+    }
+}
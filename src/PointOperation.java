@@ -0,0 +1,21 @@
+/**
+ * A filter that computes every output pixel from the input pixel at the same position only.
+ * <p>
+ * Implementations work on plain ARGB {@code int} buffers, so they do not depend on the Android
+ * graphics classes and can be run and measured on a desktop JVM.
+ * </p>
+ */
+public interface PointOperation {
+
+    /**
+     * Applies the operation in place on a range of ARGB pixels.
+     *
+     * @param pixels
+     *            The buffer holding the pixels, one ARGB value per element.
+     * @param offset
+     *            The index of the first pixel to process.
+     * @param length
+     *            The number of pixels to process.
+     */
+    void apply(int[] pixels, int offset, int length);
+}
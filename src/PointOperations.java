@@ -0,0 +1,575 @@
+import java.util.Random;
+
+/**
+ * Factory for the point operations used by {@link ImageFilters}.
+ * <p>
+ * Every kernel works on ARGB {@code int} buffers and gives the same result per pixel as the
+ * original {@code getPixel}/{@code setPixel} loops in ImageFilters. Operations that change every
+ * channel on its own are compiled into a {@link LookupTableOperation}, so a
+ * {@link FilterPipeline} can fuse them.
+ * </p>
+ */
+public final class PointOperations {
+    /**
+     * The random channels and thresholds of the noise operations are below this bound.
+     */
+    private static final int NOISE_RANGE = 255;
+
+    private PointOperations() {
+    }
+
+    /**
+     * Inverts the red, green and blue channels, keeping the alpha channel.
+     *
+     * @return The invert operation.
+     */
+    public static LookupTableOperation invert() {
+        int[] table = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < table.length; i++) {
+            // inverting byte for each R/G/B channel
+            table[i] = 255 - i;
+        }
+        return LookupTableOperation.channels(table, table, table);
+    }
+
+    /**
+     * Converts the pixels to greyscale with the (0.299, 0.587, 0.114) luma weights.
+     *
+     * @return The greyscale operation.
+     */
+    public static PointOperation greyscale() {
+        final double GS_RED = 0.299;
+        final double GS_GREEN = 0.587;
+        final double GS_BLUE = 0.114;
+
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                int A, R, G, B;
+                int pixel;
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    pixel = pixels[i];
+                    A = pixel >>> 24;
+                    R = (pixel >> 16) & 0xff;
+                    G = (pixel >> 8) & 0xff;
+                    B = pixel & 0xff;
+                    // take conversion up to one single value
+                    R = G = B = (int) (GS_RED * R + GS_GREEN * G + GS_BLUE * B);
+                    pixels[i] = (A << 24) | (R << 16) | (G << 8) | B;
+                }
+            }
+        };
+    }
+
+    /**
+     * Applies a gamma curve to every channel.
+     *
+     * @param red
+     *            The gamma of the red channel.
+     * @param green
+     *            The gamma of the green channel.
+     * @param blue
+     *            The gamma of the blue channel.
+     * @return The gamma operation.
+     */
+    public static LookupTableOperation gamma(double red, double green, double blue) {
+        // constant value curve
+        final int MAX_SIZE = 256;
+        final double MAX_VALUE_DBL = 255.0;
+        final int MAX_VALUE_INT = 255;
+        final double REVERSE = 1.0;
+
+        // gamma arrays
+        int[] gammaR = new int[MAX_SIZE];
+        int[] gammaG = new int[MAX_SIZE];
+        int[] gammaB = new int[MAX_SIZE];
+
+        // setting values for every gamma channels
+        for (int i = 0; i < MAX_SIZE; ++i) {
+            gammaR[i] = Math.min(MAX_VALUE_INT,
+                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / red)) + 0.5));
+            gammaG[i] = Math.min(MAX_VALUE_INT,
+                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / green)) + 0.5));
+            gammaB[i] = Math.min(MAX_VALUE_INT,
+                    (int) ((MAX_VALUE_DBL * Math.pow(i / MAX_VALUE_DBL, REVERSE / blue)) + 0.5));
+        }
+
+        return LookupTableOperation.channels(gammaR, gammaG, gammaB);
+    }
+
+    /**
+     * Multiplies every channel with a factor.
+     *
+     * @param red
+     *            The factor for the red channel.
+     * @param green
+     *            The factor for the green channel.
+     * @param blue
+     *            The factor for the blue channel.
+     * @return The color filter operation.
+     */
+    public static LookupTableOperation colorFilter(double red, double green, double blue) {
+        int[] tableR = new int[LookupTableOperation.TABLE_SIZE];
+        int[] tableG = new int[LookupTableOperation.TABLE_SIZE];
+        int[] tableB = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < LookupTableOperation.TABLE_SIZE; i++) {
+            // apply filtering on each channel R, G, B
+            tableR[i] = (int) (i * red);
+            tableG[i] = (int) (i * green);
+            tableB[i] = (int) (i * blue);
+        }
+        return LookupTableOperation.channels(tableR, tableG, tableB);
+    }
+
+    /**
+     * Converts the pixels to greyscale and tones them with a color.
+     *
+     * @param depth
+     *            The intensity of the toning.
+     * @param red
+     *            The red component of the toning color.
+     * @param green
+     *            The green component of the toning color.
+     * @param blue
+     *            The blue component of the toning color.
+     * @return The sepia toning operation.
+     */
+    public static PointOperation sepiaToning(final int depth, final double red,
+            final double green, final double blue) {
+        // constant grayscale
+        final double GS_RED = 0.3;
+        final double GS_GREEN = 0.59;
+        final double GS_BLUE = 0.11;
+
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                int A, R, G, B;
+                int pixel;
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    pixel = pixels[i];
+                    A = pixel >>> 24;
+                    R = (pixel >> 16) & 0xff;
+                    G = (pixel >> 8) & 0xff;
+                    B = pixel & 0xff;
+                    // apply grayscale sample
+                    B = G = R = (int) (GS_RED * R + GS_GREEN * G + GS_BLUE * B);
+
+                    // apply intensity level for sepia-toning on each channel
+                    R += (depth * red);
+                    if (R > 255) {
+                        R = 255;
+                    }
+                    G += (depth * green);
+                    if (G > 255) {
+                        G = 255;
+                    }
+                    B += (depth * blue);
+                    if (B > 255) {
+                        B = 255;
+                    }
+                    pixels[i] = (A << 24) | (R << 16) | (G << 8) | B;
+                }
+            }
+        };
+    }
+
+    /**
+     * Rounds every channel off to a multiple of an offset.
+     *
+     * @param bitOffset
+     *            The step between the remaining channel values.
+     * @return The decrease color depth operation.
+     */
+    public static LookupTableOperation decreaseColorDepth(int bitOffset) {
+        int[] table = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < table.length; i++) {
+            // round-off color offset
+            table[i] = ((i + (bitOffset / 2)) - ((i + (bitOffset / 2)) % bitOffset) - 1);
+            if (table[i] < 0) {
+                table[i] = 0;
+            }
+        }
+        return LookupTableOperation.channels(table, table, table);
+    }
+
+    /**
+     * Changes the contrast of every channel.
+     *
+     * @param value
+     *            The contrast change in percent.
+     * @return The contrast operation.
+     */
+    public static LookupTableOperation contrast(double value) {
+        // get contrast value
+        double contrast = Math.pow((100 + value) / 100, 2);
+
+        int[] table = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = clamp((int) (((((i / 255.0) - 0.5) * contrast) + 0.5) * 255.0));
+        }
+        return LookupTableOperation.channels(table, table, table);
+    }
+
+    /**
+     * Adds a value to every channel.
+     *
+     * @param value
+     *            The value to add, can be negative.
+     * @return The brightness operation.
+     */
+    public static LookupTableOperation brightness(int value) {
+        int[] table = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < table.length; i++) {
+            // increase/decrease each channel
+            table[i] = clamp(i + value);
+        }
+        return LookupTableOperation.channels(table, table, table);
+    }
+
+    /**
+     * Boosts one channel by a percentage.
+     *
+     * @param type
+     *            The channel to boost: 1 for red, 2 for green and 3 for blue.
+     * @param percent
+     *            The fraction to add to the channel.
+     * @return The boost operation.
+     */
+    public static LookupTableOperation boost(int type, float percent) {
+        int[] tableR = new int[LookupTableOperation.TABLE_SIZE];
+        int[] tableG = new int[LookupTableOperation.TABLE_SIZE];
+        int[] tableB = new int[LookupTableOperation.TABLE_SIZE];
+        for (int i = 0; i < LookupTableOperation.TABLE_SIZE; i++) {
+            tableR[i] = tableG[i] = tableB[i] = i;
+        }
+        int[] boosted = type == 1 ? tableR : (type == 2 ? tableG : (type == 3 ? tableB : null));
+        if (boosted != null) {
+            for (int i = 0; i < LookupTableOperation.TABLE_SIZE; i++) {
+                boosted[i] = (int) (i * (1 + percent));
+                if (boosted[i] > 255)
+                    boosted[i] = 255;
+            }
+        }
+        return LookupTableOperation.channels(tableR, tableG, tableB);
+    }
+
+    /**
+     * Converts the pixels to greyscale and changes their contrast and brightness, as used to
+     * enhance a scanned document. The chain is compiled into one {@link LookupTableOperation},
+     * whose integer luma can differ by one level from the double precision weights.
+     *
+     * @param brightnessChange
+     *            The value to add to every channel.
+     * @param contrastChange
+     *            The factor to multiply the contrast with.
+     * @return The enhance operation.
+     */
+    public static LookupTableOperation enhance(int brightnessChange, int contrastChange) {
+        return LookupTableOperation.enhance(brightnessChange, contrastChange);
+    }
+
+    /**
+     * Makes every pixel of one color transparent.
+     *
+     * @param color
+     *            The color to make transparent.
+     * @return The transparency operation.
+     */
+    public static PointOperation makeTransparent(final int color) {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    if (pixels[i] == color) {
+                        pixels[i] = 0;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Rotates the hue of every pixel in the YUV color space and makes it opaque.
+     *
+     * @param degree
+     *            The angle to rotate the hue by, in degrees.
+     * @return The tint operation.
+     */
+    public static PointOperation tint(int degree) {
+        final double PI = 3.14159d;
+        final double HALF_CIRCLE_DEGREE = 180d;
+        final double RANGE = 256d;
+
+        double angle = (PI * (double) degree) / HALF_CIRCLE_DEGREE;
+        final int S = (int) (RANGE * Math.sin(angle));
+        final int C = (int) (RANGE * Math.cos(angle));
+
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                int RY, GY, BY, RYY, GYY, BYY, R, G, B, Y;
+                int pixel;
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    pixel = pixels[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    RY = (70 * r - 59 * g - 11 * b) / 100;
+                    GY = (-30 * r + 41 * g - 11 * b) / 100;
+                    BY = (-30 * r - 59 * g + 89 * b) / 100;
+                    Y = (30 * r + 59 * g + 11 * b) / 100;
+                    RYY = (S * BY + C * RY) / 256;
+                    BYY = (C * BY - S * RY) / 256;
+                    GYY = (-51 * RYY - 19 * BYY) / 100;
+                    R = clamp(Y + RYY);
+                    G = clamp(Y + GYY);
+                    B = clamp(Y + BYY);
+                    pixels[i] = 0xff000000 | (R << 16) | (G << 8) | B;
+                }
+            }
+        };
+    }
+
+    /**
+     * Combines every pixel with a color by a bitwise and, which keeps only the bits of the
+     * channels the color has.
+     *
+     * @param color
+     *            The ARGB color to combine the pixels with.
+     * @return The shading operation.
+     */
+    public static PointOperation shading(final int color) {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    pixels[i] &= color;
+                }
+            }
+        };
+    }
+
+    /**
+     * Combines every pixel with an opaque random color by a bitwise or, which sprinkles the image
+     * with bright specks.
+     * <p>
+     * Every call draws from a {@link Random} of its own, so the strips of an image do not contend
+     * for one generator. The noise differs from run to run, like it always has.
+     * </p>
+     *
+     * @return The flea operation.
+     */
+    public static PointOperation flea() {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                Random random = new Random();
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    int r = random.nextInt(NOISE_RANGE);
+                    int g = random.nextInt(NOISE_RANGE);
+                    int b = random.nextInt(NOISE_RANGE);
+                    pixels[i] |= 0xff000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+        };
+    }
+
+    /**
+     * Turns every pixel opaque black whose channels are all darker than a random threshold, so
+     * dark areas get black specks. Draws from a {@link Random} per call, like {@link #flea()}.
+     *
+     * @return The black noise operation.
+     */
+    public static PointOperation blackNoise() {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                Random random = new Random();
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    int pixel = pixels[i];
+                    int threshold = random.nextInt(NOISE_RANGE);
+                    if (((pixel >> 16) & 0xff) < threshold && ((pixel >> 8) & 0xff) < threshold
+                            && (pixel & 0xff) < threshold) {
+                        pixels[i] = 0xff000000;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Turns every pixel opaque white whose channels are all brighter than a random threshold, so
+     * bright areas get white specks. Draws from a {@link Random} per call, like {@link #flea()}.
+     *
+     * @return The snow operation.
+     */
+    public static PointOperation snow() {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                Random random = new Random();
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    int pixel = pixels[i];
+                    int threshold = random.nextInt(NOISE_RANGE);
+                    if (((pixel >> 16) & 0xff) > threshold && ((pixel >> 8) & 0xff) > threshold
+                            && (pixel & 0xff) > threshold) {
+                        pixels[i] = 0xffffffff;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Multiplies the saturation of every pixel in the HSV color space, and combines the result
+     * with the original pixel by a bitwise or, like the Bitmap version of the filter did.
+     * <p>
+     * The conversions are those of {@code Color.colorToHSV} and {@code Color.HSVToColor}, in
+     * {@code float} and with the same rounding, so the pixels are the same as on a device.
+     * </p>
+     *
+     * @param level
+     *            The factor to multiply the saturation with, the result is clamped to 0 - 1.
+     * @return The saturation operation.
+     */
+    public static PointOperation saturation(final int level) {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    int pixel = pixels[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    int max = Math.max(r, Math.max(g, b));
+                    int delta = max - Math.min(r, Math.min(g, b));
+                    float s = delta == 0 ? 0 : delta / (float) max;
+                    s = Math.max(0f, Math.min(s * level, 1f));
+                    pixels[i] = pixel | 0xff000000
+                            | hsvToRgb(hue(r, g, b, max, delta), s, max / 255f);
+                }
+            }
+        };
+    }
+
+    /**
+     * Multiplies the hue of every pixel in the HSV color space, and combines the result with the
+     * original pixel by a bitwise or, like the Bitmap version of the filter did. The conversions
+     * are those of {@link #saturation(int)}.
+     *
+     * @param level
+     *            The factor to multiply the hue with, the result is clamped to 0 - 360 degrees.
+     * @return The hue operation.
+     */
+    public static PointOperation hue(final int level) {
+        return new PointOperation() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    int pixel = pixels[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    int max = Math.max(r, Math.max(g, b));
+                    int delta = max - Math.min(r, Math.min(g, b));
+                    float h = hue(r, g, b, max, delta) * level;
+                    h = Math.max(0f, Math.min(h, 360f));
+                    float s = delta == 0 ? 0 : delta / (float) max;
+                    pixels[i] = pixel | 0xff000000 | hsvToRgb(h, s, max / 255f);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the hue of a color like {@code Color.colorToHSV}.
+     *
+     * @param r
+     *            The red channel.
+     * @param g
+     *            The green channel.
+     * @param b
+     *            The blue channel.
+     * @param max
+     *            The largest channel.
+     * @param delta
+     *            The difference of the largest and the smallest channel.
+     * @return The hue in degrees, from 0 up to 360, and 0 for grey.
+     */
+    private static float hue(int r, int g, int b, int max, int delta) {
+        if (delta == 0) {
+            return 0;
+        }
+        float h;
+        if (r == max) {
+            h = (g - b) / (float) delta;
+        } else if (g == max) {
+            h = 2 + (b - r) / (float) delta;
+        } else {
+            h = 4 + (r - g) / (float) delta;
+        }
+        h *= 60;
+        if (h < 0) {
+            h += 360;
+        }
+        return h;
+    }
+
+    /**
+     * Converts a color in the HSV color space to RGB like {@code Color.HSVToColor}.
+     *
+     * @param h
+     *            The hue in degrees, from 0 up to and including 360, which is the same as 0.
+     * @param s
+     *            The saturation, from 0 to 1.
+     * @param v
+     *            The value, from 0 to 1.
+     * @return The red, green and blue channels, with an alpha of 0.
+     */
+    private static int hsvToRgb(float h, float s, float v) {
+        int value = round(v * 255);
+        if (s <= 1f / (1 << 12)) {
+            return value * 0x010101;
+        }
+        float sector = h >= 360 ? 0 : h / 60;
+        // the sector is never negative, so the cast floors it
+        int w = (int) sector;
+        float f = sector - w;
+        int p = round((1 - s) * v * 255);
+        int q = round((1 - s * f) * v * 255);
+        int t = round((1 - s * (1 - f)) * v * 255);
+        switch (w) {
+            case 0:
+                return (value << 16) | (t << 8) | p;
+            case 1:
+                return (q << 16) | (value << 8) | p;
+            case 2:
+                return (p << 16) | (value << 8) | t;
+            case 3:
+                return (p << 16) | (q << 8) | value;
+            case 4:
+                return (t << 16) | (p << 8) | value;
+            default:
+                return (value << 16) | (p << 8) | q;
+        }
+    }
+
+    /**
+     * Rounds like the HSV conversions of {@code Color}, halves up.
+     */
+    private static int round(float value) {
+        return (int) Math.floor(value + 0.5f);
+    }
+
+    /**
+     * Clamps a channel value to the 0 - 255 range.
+     *
+     * @param value
+     *            The channel value.
+     * @return The clamped channel value.
+     */
+    static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
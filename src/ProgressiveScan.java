@@ -0,0 +1,262 @@
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Enhances a crop progressively, so the user sees a result right away instead of waiting for the
+ * full resolution.
+ * <p>
+ * The whole filter chain first runs on a copy of the crop decoded with a large sample size,
+ * which takes a fraction of the time. It is scaled up into the bitmap of the full size result,
+ * which is handed to the {@link Listener} to show. The full resolution crop is then decoded band
+ * by band, and every band of rows is filtered as soon as the rows around it that the filter
+ * reads are decoded, and replaces the preview in the bitmap.
+ * </p>
+ * <p>
+ * The bands are filtered with the same operations and parameters as the whole frame in
+ * {@link CropActivity}, with all the rows they read, so the result is exactly the same. Only the
+ * preview is filtered with a blur radius scaled to its size.
+ * </p>
+ */
+public final class ProgressiveScan {
+    /**
+     * The sample size of the preview, an eighth of the width and height of the crop.
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 8;
+    /**
+     * The number of rows a strip filters at a time, which bounds the buffers of a band.
+     */
+    private static final int BAND_ROWS = 64;
+
+    /**
+     * Is told about the progress of a scan, on the thread that runs it.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the preview is in the bitmap.
+         *
+         * @param bitmap
+         *            The bitmap of the full size result, which holds the scaled up preview and
+         *            is filled in with the full resolution rows from now on.
+         */
+        void onPreview(Bitmap bitmap);
+
+        /**
+         * Called after a range of rows of the bitmap is replaced with the full resolution
+         * result.
+         *
+         * @param top
+         *            The first row that was replaced.
+         * @param bottom
+         *            The row after the last row that was replaced.
+         */
+        void onRowsReady(int top, int bottom);
+    }
+
+    private final RegionCropper mCropper;
+    private final Rect mRegion;
+    private final boolean mThreshold;
+    private final int mSampleSize;
+    private final StripExecutor mExecutor;
+    private final BufferPool mPool;
+    private Bitmap mBitmap;
+
+    /**
+     * Creates a scan of a crop.
+     *
+     * @param cropper
+     *            The cropper of the photo.
+     * @param region
+     *            The crop in the coordinates of the full resolution photo.
+     * @param threshold
+     *            Whether the crop is thresholded into black and white instead of sharpened.
+     * @param sampleSize
+     *            The sample size of the preview, a power of two.
+     * @param executor
+     *            The executor to run the strips on.
+     * @param pool
+     *            The pool of the images, the bitmap and the buffers.
+     */
+    public ProgressiveScan(RegionCropper cropper, Rect region, boolean threshold, int sampleSize,
+            StripExecutor executor, BufferPool pool) {
+        mCropper = cropper;
+        mRegion = region;
+        mThreshold = threshold;
+        mSampleSize = sampleSize;
+        mExecutor = executor;
+        mPool = pool;
+    }
+
+    /**
+     * Runs the scan on the calling thread.
+     *
+     * @param listener
+     *            The listener to tell about the progress.
+     * @param trace
+     *            The scan to record the stages in.
+     * @return The enhanced crop. {@link #getBitmap()} holds the same values then.
+     */
+    public GreyImage run(Listener listener, ScanTrace.Scan trace) {
+        LookupTableOperation tone = ScanSettings.getTone(mThreshold);
+        trace.begin(ScanTrace.Stage.PREVIEW);
+        GreyImage preview = filter(mCropper.decodeGrey(mRegion, tone, mSampleSize));
+        Rect clipped = new Rect(mRegion);
+        clipped.intersect(0, 0, mCropper.getWidth(), mCropper.getHeight());
+        mBitmap = mPool.obtainBitmap(clipped.width(), clipped.height(), Bitmap.Config.ARGB_8888);
+        drawPreview(preview);
+        trace.end(ScanTrace.Stage.PREVIEW, (long) mBitmap.getByteCount() + preview.getByteCount());
+        listener.onPreview(mBitmap);
+
+        BandFilter bands = new BandFilter(clipped.width(), clipped.height(), listener, trace);
+        trace.begin(ScanTrace.Stage.DECODE_REGION);
+        GreyImage decoded = mCropper.decodeGrey(mRegion, tone, mPool, bands);
+        trace.end(ScanTrace.Stage.DECODE_REGION, decoded.getByteCount());
+        mPool.release(decoded);
+        return bands.mOutput;
+    }
+
+    /**
+     * @return The bitmap of the result, null before the preview is done.
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Filters the preview like the full resolution crop.
+     */
+    private GreyImage filter(GreyImage preview) {
+        if (mThreshold) {
+            // the radius follows the size of the crop by itself
+            return new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA, ScanSettings
+                    .getThresholdRadius(preview.getWidth(), preview.getHeight()),
+                    ScanSettings.THRESHOLD_SENSITIVITY).threshold(preview, mExecutor);
+        }
+        int radius = Math.max(1, Math.round((float) ScanSettings.SHARPEN_RADIUS / mSampleSize));
+        new UnsharpMask(ScanSettings.SHARPEN_AMOUNT, radius, ScanSettings.SHARPEN_THRESHOLD)
+                .sharpen(preview, mExecutor);
+        return preview;
+    }
+
+    /**
+     * Scales the preview up into the bitmap of the result.
+     */
+    private void drawPreview(GreyImage preview) {
+        int width = preview.getWidth();
+        int height = preview.getHeight();
+        byte[] grey = preview.getPixels();
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | (grey[i] & 0xff) * 0x010101;
+        }
+        Bitmap small = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(mBitmap).drawBitmap(small, null, new Rect(0, 0, mBitmap.getWidth(), mBitmap
+                .getHeight()), new Paint(Paint.FILTER_BITMAP_FLAG));
+        small.recycle();
+    }
+
+    /**
+     * Filters the rows of the crop while it is decoded, and copies them into the bitmap.
+     */
+    private final class BandFilter implements RegionCropper.BandListener {
+        private final int mWidth;
+        private final int mHeight;
+        private final Listener mListener;
+        private final ScanTrace.Scan mTrace;
+        private final AdaptiveThreshold mThresholdFilter;
+        private final UnsharpMask mSharpen;
+        /**
+         * The rows around a row the filter reads.
+         */
+        private final int mRadius;
+        final GreyImage mOutput;
+        /**
+         * The row after the last filtered row.
+         */
+        private int mFiltered;
+
+        BandFilter(int width, int height, Listener listener, ScanTrace.Scan trace) {
+            mWidth = width;
+            mHeight = height;
+            mListener = listener;
+            mTrace = trace;
+            if (mThreshold) {
+                mThresholdFilter = new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA,
+                        ScanSettings.getThresholdRadius(width, height),
+                        ScanSettings.THRESHOLD_SENSITIVITY);
+                mSharpen = null;
+                mRadius = mThresholdFilter.getRadius();
+            } else {
+                mThresholdFilter = null;
+                mSharpen = new UnsharpMask(ScanSettings.SHARPEN_AMOUNT,
+                        ScanSettings.SHARPEN_RADIUS, ScanSettings.SHARPEN_THRESHOLD);
+                mRadius = mSharpen.getRadius();
+            }
+            mOutput = mPool.obtainGreyImage(width, height);
+        }
+
+        @Override
+        public void onBandDecoded(final GreyImage image, int bottom) {
+            // the rows up to the radius above the last decoded row have all their neighbours
+            final int ready = bottom == mHeight ? mHeight : bottom - mRadius;
+            if (ready <= mFiltered) {
+                return;
+            }
+            mTrace.end(ScanTrace.Stage.DECODE_REGION, image.getByteCount());
+            mTrace.begin(ScanTrace.Stage.ENHANCE);
+            final int first = mFiltered;
+            mExecutor.execute(ready - first, new StripExecutor.StripTask() {
+                @Override
+                public void run(int top, int bottom) {
+                    for (int bandTop = first + top; bandTop < first + bottom;
+                            bandTop += BAND_ROWS) {
+                        filterBand(image, bandTop, Math.min(bandTop + BAND_ROWS, first
+                                + bottom));
+                    }
+                }
+            });
+            mFiltered = ready;
+            // the decoded and the filtered crop and the bitmap
+            mTrace.end(ScanTrace.Stage.ENHANCE, 2L * image.getByteCount() + mBitmap.getByteCount());
+            mListener.onRowsReady(first, ready);
+            mTrace.begin(ScanTrace.Stage.DECODE_REGION);
+        }
+
+        /**
+         * Filters a band of rows into the output and the bitmap.
+         */
+        private void filterBand(GreyImage image, int top, int bottom) {
+            int width = mWidth;
+            byte[] out = mOutput.getPixels();
+            int[] pixels = mPool.obtainInts((bottom - top) * width);
+            if (mThreshold) {
+                mThresholdFilter.apply(image.getPixels(), 0, out, 0, width, mHeight, top, bottom,
+                        false);
+                for (int i = 0, in = top * width, end = (bottom - top) * width; i < end;
+                        i++, in++) {
+                    pixels[i] = 0xff000000 | (out[in] & 0xff) * 0x010101;
+                }
+            } else {
+                // the unsharp mask of the grey bitmap gives the same values as that of the image
+                int first = Math.max(0, top - mRadius);
+                int last = Math.min(mHeight, bottom + mRadius);
+                byte[] grey = image.getPixels();
+                int[] src = mPool.obtainInts((last - first) * width);
+                for (int i = 0, in = first * width, end = (last - first) * width; i < end;
+                        i++, in++) {
+                    src[i] = 0xff000000 | (grey[in] & 0xff) * 0x010101;
+                }
+                mSharpen.apply(src, first, pixels, top, width, mHeight, top, bottom);
+                mPool.release(src);
+                for (int i = 0, o = top * width, end = (bottom - top) * width; i < end;
+                        i++, o++) {
+                    out[o] = (byte) pixels[i];
+                }
+            }
+            mBitmap.setPixels(pixels, 0, width, 0, top, width, bottom - top);
+            mPool.release(pixels);
+        }
+    }
+}
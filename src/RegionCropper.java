@@ -0,0 +1,276 @@
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * Crops a photo without decoding it at full resolution.
+ * <p>
+ * The photo is shown as a preview decoded with a power of two sample size, and only the region
+ * the user selects is decoded at full resolution with a {@link BitmapRegionDecoder}. The memory
+ * needed is bounded by the size of the screen and the size of the crop, not by the size of the
+ * photo.
+ * </p>
+ * <p>
+ * A region can also be decoded straight into a {@link GreyImage}, a band of rows at a time, so
+ * the full resolution crop never exists as an ARGB bitmap.
+ * </p>
+ */
+public final class RegionCropper {
+    /**
+     * The number of bytes of the ARGB bitmap of a band decoded by
+     * {@link #decodeGrey(Rect, LookupTableOperation)}. Every band decodes the JPEG blocks it
+     * touches again, so the bands are high enough to make that a small part of the work.
+     */
+    private static final int GREY_BAND_BYTES = 4 * 1024 * 1024;
+    /**
+     * The smallest height of a band, a few rows of JPEG blocks.
+     */
+    private static final int MIN_GREY_BAND_ROWS = 64;
+
+    /**
+     * Is told about every band of a region that is decoded into greyscale.
+     */
+    public interface BandListener {
+
+        /**
+         * Called on the decoding thread after every band.
+         *
+         * @param image
+         *            The image the region is decoded into.
+         * @param bottom
+         *            The row of the image after the last decoded row. The rows above it are
+         *            final.
+         */
+        void onBandDecoded(GreyImage image, int bottom);
+    }
+
+    private final String mPath;
+    private final BitmapRegionDecoder mDecoder;
+
+    /**
+     * Opens a photo for cropping. Only the header of the photo is read.
+     *
+     * @param path
+     *            The path of the JPEG or PNG file.
+     * @throws IOException
+     *             if the file cannot be read or is not a supported image.
+     */
+    public RegionCropper(String path) throws IOException {
+        mPath = path;
+        mDecoder = BitmapRegionDecoder.newInstance(path, false);
+    }
+
+    /**
+     * @return The width of the photo at full resolution.
+     */
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    /**
+     * @return The height of the photo at full resolution.
+     */
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    /**
+     * Decodes the whole photo at a reduced resolution. The sample size is the largest power of two
+     * that keeps the preview at least as large as the requested size, so it stays sharp on the
+     * screen.
+     *
+     * @param minWidth
+     *            The width the preview should at least have, usually the width of the screen.
+     * @param minHeight
+     *            The height the preview should at least have, usually the height of the screen.
+     * @return The preview, or null if the photo could not be decoded.
+     */
+    public Bitmap decodePreview(int minWidth, int minHeight) {
+        int sampleSize = 1;
+        while (getWidth() / (sampleSize * 2) >= minWidth
+                && getHeight() / (sampleSize * 2) >= minHeight) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(mPath, options);
+    }
+
+    /**
+     * Decodes a region of the photo at full resolution.
+     *
+     * @param region
+     *            The region in the coordinates of the full resolution photo. It is clipped to the
+     *            bounds of the photo.
+     * @return The region as an ARGB_8888 bitmap.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo.
+     */
+    public Bitmap decodeRegion(Rect region) {
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, getWidth(), getHeight())) {
+            throw new IllegalArgumentException("The region " + region + " is outside the photo");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return mDecoder.decodeRegion(clipped, options);
+    }
+
+    /**
+     * Decodes a region of the photo at full resolution into a greyscale image.
+     *
+     * @param region
+     *            The region in the coordinates of the full resolution photo. It is clipped to the
+     *            bounds of the photo.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @return The greyscale region.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo or the output of the tone curve is not
+     *             grey.
+     */
+    public GreyImage decodeGrey(Rect region, LookupTableOperation tone) {
+        return decodeGrey(region, tone, null);
+    }
+
+    /**
+     * Decodes a region of the photo at full resolution into a greyscale image, with buffers from
+     * a pool. The bitmap the bands are decoded into is as wide as the photo, so it is reused for
+     * every crop of photos of the same size. That needs Jelly Bean, before it every band is a new
+     * bitmap.
+     *
+     * @param region
+     *            The region in the coordinates of the full resolution photo. It is clipped to the
+     *            bounds of the photo.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @param pool
+     *            The pool of the image and the decode buffers, or null to allocate them.
+     * @return The greyscale region.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo or the output of the tone curve is not
+     *             grey.
+     */
+    public GreyImage decodeGrey(Rect region, LookupTableOperation tone, BufferPool pool) {
+        return decodeGrey(region, tone, pool, null);
+    }
+
+    /**
+     * Decodes a region of the photo at full resolution into a greyscale image, with buffers from
+     * a pool, and tells a listener about every band, so the rows can be used before the whole
+     * region is decoded.
+     *
+     * @param region
+     *            The region in the coordinates of the full resolution photo. It is clipped to the
+     *            bounds of the photo.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @param pool
+     *            The pool of the image and the decode buffers, or null to allocate them.
+     * @param listener
+     *            The listener to call after every band, or null.
+     * @return The greyscale region.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo or the output of the tone curve is not
+     *             grey.
+     */
+    public GreyImage decodeGrey(Rect region, LookupTableOperation tone, BufferPool pool,
+            BandListener listener) {
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, getWidth(), getHeight())) {
+            throw new IllegalArgumentException("The region " + region + " is outside the photo");
+        }
+        if (!tone.isGrey()) {
+            throw new IllegalArgumentException("The output of the tone curve is not grey");
+        }
+        int width = clipped.width();
+        int height = clipped.height();
+        // the band height depends on the photo, not on the crop, so the buffers can be reused
+        int rows = Math.max(MIN_GREY_BAND_ROWS, GREY_BAND_BYTES / 4 / getWidth());
+        GreyImage image = pool != null ? pool.obtainGreyImage(width, height) : new GreyImage(
+                width, height);
+        int[] pixels = pool != null ? pool.obtainInts(rows * getWidth()) : new int[rows * width];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // the decoder draws every band into the top left of the bitmap
+            options.inBitmap = pool.obtainBitmap(getWidth(), rows, Bitmap.Config.ARGB_8888);
+        }
+        for (int top = clipped.top; top < clipped.bottom; top += rows) {
+            int bottom = Math.min(top + rows, clipped.bottom);
+            Bitmap band = mDecoder.decodeRegion(new Rect(clipped.left, top, clipped.right,
+                    bottom), options);
+            if (band == null) {
+                throw new IllegalStateException("Could not decode the region " + clipped);
+            }
+            band.getPixels(pixels, 0, width, 0, 0, width, bottom - top);
+            if (band != options.inBitmap) {
+                band.recycle();
+            }
+            tone.toGrey(pixels, 0, image.getPixels(), (top - clipped.top) * width, (bottom - top)
+                    * width);
+            if (listener != null) {
+                listener.onBandDecoded(image, bottom - clipped.top);
+            }
+        }
+        if (pool != null) {
+            pool.release(pixels);
+            if (options.inBitmap != null) {
+                pool.release(options.inBitmap);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Decodes a region of the photo at a reduced resolution into a greyscale image, in one pass.
+     *
+     * @param region
+     *            The region in the coordinates of the full resolution photo. It is clipped to the
+     *            bounds of the photo.
+     * @param tone
+     *            The greyscale conversion with its tone curve, whose output must be grey.
+     * @param sampleSize
+     *            The sample size, a power of two. A sample size of 8 decodes every eighth row and
+     *            column of the region.
+     * @return The downsampled greyscale region.
+     * @throws IllegalArgumentException
+     *             if the region lies outside the photo or the output of the tone curve is not
+     *             grey.
+     */
+    public GreyImage decodeGrey(Rect region, LookupTableOperation tone, int sampleSize) {
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, getWidth(), getHeight())) {
+            throw new IllegalArgumentException("The region " + region + " is outside the photo");
+        }
+        if (!tone.isGrey()) {
+            throw new IllegalArgumentException("The output of the tone curve is not grey");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = mDecoder.decodeRegion(clipped, options);
+        if (bitmap == null) {
+            throw new IllegalStateException("Could not decode the region " + clipped);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        GreyImage image = new GreyImage(width, height);
+        tone.toGrey(pixels, 0, image.getPixels(), 0, width * height);
+        return image;
+    }
+
+    /**
+     * Frees the native memory of the decoder. The cropper cannot be used afterwards.
+     */
+    public void recycle() {
+        mDecoder.recycle();
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The filter settings of a scan, shared by {@link CropActivity} and the batch runner of the server
+ * build, so both make the same file of the same photo and crop.
+ */
+public final class ScanSettings {
+    /**
+     * The enhance curve of the contrast mode, applied while the crop is decoded.
+     */
+    public static final int BRIGHTNESS_CHANGE = 0;
+    public static final int CONTRAST_CHANGE = 3;
+    /**
+     * The unsharp mask that sharpens the text of the scan. The threshold keeps the JPEG noise of
+     * the paper from being amplified.
+     */
+    public static final double SHARPEN_AMOUNT = 0.8;
+    public static final int SHARPEN_RADIUS = 2;
+    public static final int SHARPEN_THRESHOLD = 6;
+    /**
+     * The Sauvola threshold of the black and white mode. The radius is a fraction of the longest
+     * side of the crop, about the height of a line of text.
+     */
+    public static final int THRESHOLD_RADIUS_DIVISOR = 50;
+    public static final double THRESHOLD_SENSITIVITY = 0.34;
+
+    private ScanSettings() {
+    }
+
+    /**
+     * Returns the greyscale conversion a crop is decoded with.
+     *
+     * @param threshold
+     *            Whether the crop is thresholded into black and white afterwards.
+     * @return The enhance curve, or a plain greyscale conversion for the threshold.
+     */
+    public static LookupTableOperation getTone(boolean threshold) {
+        return threshold ? LookupTableOperation.greyscale() : PointOperations.enhance(
+                BRIGHTNESS_CHANGE, CONTRAST_CHANGE);
+    }
+
+    /**
+     * Returns the radius of the adaptive threshold of a crop.
+     *
+     * @param width
+     *            The width of the crop.
+     * @param height
+     *            The height of the crop.
+     * @return The radius, at most {@link AdaptiveThreshold#MAX_RADIUS}.
+     */
+    public static int getThresholdRadius(int width, int height) {
+        return Math.min(Math.max(width, height) / THRESHOLD_RADIUS_DIVISOR + 1,
+                AdaptiveThreshold.MAX_RADIUS);
+    }
+}
@@ -0,0 +1,483 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records how long every stage of recent scans took and how much memory it used, to find out
+ * where the time of a slow scan went.
+ * <p>
+ * A scan is started with {@link #startScan()}, and every stage of it is wrapped in
+ * {@link Scan#begin(Stage)} and {@link Scan#end(Stage, long)}, on whatever thread the stage runs.
+ * A stage records its wall time, the CPU time and the bytes allocated by the process while it
+ * ran, and the bytes of the images it held. The CPU time and the allocations are those of the
+ * whole process, so the strips a stage runs on other threads are included, and so is the work
+ * of stages that run at the same time. They come from a {@link Probe} of the platform.
+ * </p>
+ * <p>
+ * The last {@link #DEFAULT_CAPACITY} scans are kept in a ring, from which percentiles of every
+ * stage are computed with {@link #getSummary(Stage)}. An {@link Exporter} is given every scan
+ * once it is finished, for instance to log it or to upload it.
+ * </p>
+ * <p>
+ * The trace is disabled until {@link #enable(Probe, Exporter)} is called. While it is disabled
+ * {@link #startScan()} returns a shared scan that records nothing, so the stages cost a field
+ * read and allocate nothing. All methods are thread safe.
+ * </p>
+ */
+public final class ScanTrace {
+    /**
+     * The number of scans the shared trace keeps.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    /**
+     * The value of a metric that was not recorded, or that the probe cannot measure.
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * The stages of a scan.
+     */
+    public enum Stage {
+        /**
+         * Decoding the preview the crop is chosen on.
+         */
+        DECODE_PREVIEW,
+        /**
+         * Decoding and enhancing the downsampled crop of a progressive scan, until it can be
+         * shown.
+         */
+        PREVIEW,
+        /**
+         * Decoding the cropped region into greyscale, with the tone curve.
+         */
+        DECODE_REGION,
+        /**
+         * Sharpening the crop, or thresholding it into black and white.
+         */
+        ENHANCE,
+        /**
+         * Converting the result into the bitmap that is shown.
+         */
+        TO_BITMAP,
+        /**
+         * Encoding and writing the JPEG file.
+         */
+        ENCODE,
+        /**
+         * Drawing the result into a PDF document and saving it.
+         */
+        EXPORT_PDF
+    }
+
+    /**
+     * What is recorded of every stage.
+     */
+    public enum Metric {
+        WALL_NANOS,
+        CPU_NANOS,
+        ALLOCATED_BYTES,
+        /**
+         * The bytes of the images the stage held at once, as reported by the stage.
+         */
+        IMAGE_BYTES
+    }
+
+    /**
+     * Measures the process, the platform specific part of the trace.
+     */
+    public interface Probe {
+        /**
+         * @return The CPU time the process used so far in nanoseconds, or {@link #UNKNOWN}.
+         */
+        long getCpuNanos();
+
+        /**
+         * @return The bytes the process allocated so far, or {@link #UNKNOWN}.
+         */
+        long getAllocatedBytes();
+    }
+
+    /**
+     * Receives the scans that are finished.
+     */
+    public interface Exporter {
+        /**
+         * Called on the thread that finished the scan.
+         *
+         * @param trace
+         *            The trace of the scan, for the summaries of the recent scans.
+         * @param scan
+         *            The finished scan.
+         */
+        void export(ScanTrace trace, Scan scan);
+    }
+
+    /**
+     * The stages of one scan.
+     */
+    public static final class Scan {
+        private static final int STAGES = Stage.values().length;
+        private static final int METRICS = Metric.values().length;
+
+        private final ScanTrace mTrace;
+        private final Probe mProbe;
+        private final Exporter mExporter;
+        private final long mStartMillis;
+        /**
+         * The wall time, CPU time and allocated bytes at the begin of every stage. A stage
+         * begins and ends on the same thread, so they are not shared.
+         */
+        private final long[] mStarts;
+        /**
+         * The metrics of every stage, guarded by the trace.
+         */
+        private final long[] mValues;
+
+        Scan(ScanTrace trace, Probe probe, Exporter exporter) {
+            mTrace = trace;
+            mProbe = probe;
+            mExporter = exporter;
+            mStartMillis = System.currentTimeMillis();
+            mStarts = trace != null ? new long[STAGES * 3] : null;
+            mValues = trace != null ? new long[STAGES * METRICS] : null;
+            if (mValues != null) {
+                Arrays.fill(mValues, UNKNOWN);
+            }
+        }
+
+        /**
+         * @return Whether the scan is recorded.
+         */
+        public boolean isEnabled() {
+            return mTrace != null;
+        }
+
+        /**
+         * @return The time the scan started, in milliseconds since the epoch.
+         */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * Marks the begin of a stage.
+         *
+         * @param stage
+         *            The stage, which ends on the calling thread.
+         */
+        public void begin(Stage stage) {
+            if (mTrace == null) {
+                return;
+            }
+            int start = stage.ordinal() * 3;
+            mStarts[start] = System.nanoTime();
+            mStarts[start + 1] = mProbe.getCpuNanos();
+            mStarts[start + 2] = mProbe.getAllocatedBytes();
+        }
+
+        /**
+         * Marks the end of a stage. A stage that runs more than once adds up its times and
+         * allocations, and keeps its largest image bytes.
+         *
+         * @param stage
+         *            The stage, which began on the calling thread.
+         * @param imageBytes
+         *            The bytes of the images the stage held at once.
+         */
+        public void end(Stage stage, long imageBytes) {
+            if (mTrace == null) {
+                return;
+            }
+            long wall = System.nanoTime();
+            long cpu = mProbe.getCpuNanos();
+            long allocated = mProbe.getAllocatedBytes();
+            int start = stage.ordinal() * 3;
+            synchronized (mTrace) {
+                add(stage, Metric.WALL_NANOS, wall - mStarts[start]);
+                add(stage, Metric.CPU_NANOS, difference(mStarts[start + 1], cpu));
+                add(stage, Metric.ALLOCATED_BYTES, difference(mStarts[start + 2], allocated));
+                int index = getIndex(stage, Metric.IMAGE_BYTES);
+                mValues[index] = Math.max(mValues[index], imageBytes);
+            }
+        }
+
+        /**
+         * Hands the scan to the exporter. Stages that end afterwards are still recorded, but not
+         * exported.
+         */
+        public void finish() {
+            if (mExporter != null) {
+                mExporter.export(mTrace, this);
+            }
+        }
+
+        /**
+         * Returns a metric of a stage.
+         *
+         * @param stage
+         *            The stage.
+         * @param metric
+         *            The metric.
+         * @return The value, or {@link ScanTrace#UNKNOWN} if the stage did not end or the probe
+         *         cannot measure the metric.
+         */
+        public long get(Stage stage, Metric metric) {
+            if (mTrace == null) {
+                return UNKNOWN;
+            }
+            synchronized (mTrace) {
+                return mValues[getIndex(stage, metric)];
+            }
+        }
+
+        /**
+         * @return Whether the stage ended at least once.
+         */
+        public boolean hasStage(Stage stage) {
+            return get(stage, Metric.WALL_NANOS) != UNKNOWN;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("scan");
+            for (Stage stage : Stage.values()) {
+                if (hasStage(stage)) {
+                    builder.append(' ').append(stage).append(' ');
+                    appendMetrics(builder, get(stage, Metric.WALL_NANOS), get(stage,
+                            Metric.CPU_NANOS), get(stage, Metric.ALLOCATED_BYTES), get(stage,
+                            Metric.IMAGE_BYTES));
+                }
+            }
+            return builder.toString();
+        }
+
+        private void add(Stage stage, Metric metric, long value) {
+            int index = getIndex(stage, metric);
+            if (value == UNKNOWN) {
+                mValues[index] = UNKNOWN;
+            } else {
+                mValues[index] = Math.max(mValues[index], 0) + value;
+            }
+        }
+
+        private static int getIndex(Stage stage, Metric metric) {
+            return stage.ordinal() * METRICS + metric.ordinal();
+        }
+
+        private static long difference(long start, long end) {
+            return start != UNKNOWN && end != UNKNOWN ? Math.max(end - start, 0) : UNKNOWN;
+        }
+    }
+
+    /**
+     * The percentiles of a stage over the recent scans.
+     */
+    public static final class Summary {
+        private final Stage mStage;
+        /**
+         * The known values of every metric, sorted.
+         */
+        private final long[][] mValues;
+
+        Summary(Stage stage, long[][] values) {
+            mStage = stage;
+            mValues = values;
+        }
+
+        public Stage getStage() {
+            return mStage;
+        }
+
+        /**
+         * @return The number of recent scans that have the stage.
+         */
+        public int getCount() {
+            // the wall time is known of every stage that ended
+            return mValues[Metric.WALL_NANOS.ordinal()].length;
+        }
+
+        /**
+         * Returns a percentile of a metric, the smallest value that at least the given percentage
+         * of the values is not larger than.
+         *
+         * @param metric
+         *            The metric.
+         * @param percentile
+         *            The percentile, from 0 to 100.
+         * @return The value, or {@link ScanTrace#UNKNOWN} if no scan has it.
+         */
+        public long getPercentile(Metric metric, double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("The percentile must be between 0 and 100");
+            }
+            long[] values = mValues[metric.ordinal()];
+            if (values.length == 0) {
+                return UNKNOWN;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * values.length);
+            return values[Math.max(rank - 1, 0)];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(mStage).append(" of ").append(getCount()).append(" scans");
+            double[] percentiles = {
+                    50, 90, 99
+            };
+            for (double percentile : percentiles) {
+                builder.append(String.format(" p%.0f ", percentile));
+                appendMetrics(builder, getPercentile(Metric.WALL_NANOS, percentile),
+                        getPercentile(Metric.CPU_NANOS, percentile), getPercentile(
+                                Metric.ALLOCATED_BYTES, percentile), getPercentile(
+                                Metric.IMAGE_BYTES, percentile));
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final Scan DISABLED = new Scan(null, null, null);
+    private static ScanTrace sInstance;
+
+    /**
+     * The recent scans, a ring whose oldest scan is at mNext once it is full.
+     */
+    private final Scan[] mScans;
+    private int mNext;
+    private int mCount;
+    private volatile Probe mProbe;
+    private Exporter mExporter;
+
+    /**
+     * Creates a disabled trace.
+     *
+     * @param capacity
+     *            The number of recent scans to keep.
+     */
+    public ScanTrace(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        }
+        mScans = new Scan[capacity];
+    }
+
+    /**
+     * @return The trace shared by the activities, which keeps {@link #DEFAULT_CAPACITY} scans.
+     */
+    public static synchronized ScanTrace getInstance() {
+        if (sInstance == null) {
+            sInstance = new ScanTrace(DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts recording the scans that start from now on.
+     *
+     * @param probe
+     *            Measures the CPU time and allocations of the process.
+     * @param exporter
+     *            Receives the finished scans, or null.
+     */
+    public synchronized void enable(Probe probe, Exporter exporter) {
+        if (probe == null) {
+            throw new IllegalArgumentException("The probe must not be null");
+        }
+        mExporter = exporter;
+        mProbe = probe;
+    }
+
+    /**
+     * Stops recording the scans that start from now on. The recent scans are kept.
+     */
+    public synchronized void disable() {
+        mProbe = null;
+        mExporter = null;
+    }
+
+    public boolean isEnabled() {
+        return mProbe != null;
+    }
+
+    /**
+     * Starts a scan.
+     *
+     * @return The scan to record the stages in, which records nothing if the trace is disabled.
+     */
+    public Scan startScan() {
+        if (mProbe == null) {
+            return DISABLED;
+        }
+        synchronized (this) {
+            if (mProbe == null) {
+                return DISABLED;
+            }
+            Scan scan = new Scan(this, mProbe, mExporter);
+            mScans[mNext] = scan;
+            mNext = (mNext + 1) % mScans.length;
+            mCount = Math.min(mCount + 1, mScans.length);
+            return scan;
+        }
+    }
+
+    /**
+     * @return The recent scans, the oldest first.
+     */
+    public synchronized List<Scan> getScans() {
+        List<Scan> scans = new ArrayList<Scan>(mCount);
+        for (int i = mCount; i > 0; i--) {
+            scans.add(mScans[(mNext - i + mScans.length) % mScans.length]);
+        }
+        return scans;
+    }
+
+    /**
+     * Forgets the recent scans.
+     */
+    public synchronized void clear() {
+        Arrays.fill(mScans, null);
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Returns the percentiles of a stage over the recent scans that have it.
+     *
+     * @param stage
+     *            The stage.
+     * @return The summary, with a count of 0 if no recent scan has the stage.
+     */
+    public synchronized Summary getSummary(Stage stage) {
+        List<Scan> scans = getScans();
+        Metric[] metrics = Metric.values();
+        long[][] values = new long[metrics.length][];
+        for (Metric metric : metrics) {
+            long[] known = new long[scans.size()];
+            int count = 0;
+            for (Scan scan : scans) {
+                long value = scan.get(stage, metric);
+                if (value != UNKNOWN) {
+                    known[count++] = value;
+                }
+            }
+            known = Arrays.copyOf(known, count);
+            Arrays.sort(known);
+            values[metric.ordinal()] = known;
+        }
+        return new Summary(stage, values);
+    }
+
+    private static void appendMetrics(StringBuilder builder, long wallNanos, long cpuNanos,
+            long allocatedBytes, long imageBytes) {
+        builder.append(String.format("%.1f ms", wallNanos / 1e6));
+        if (cpuNanos != UNKNOWN) {
+            builder.append(String.format(" cpu %.1f ms", cpuNanos / 1e6));
+        }
+        if (allocatedBytes != UNKNOWN) {
+            builder.append(String.format(" alloc %d KB", allocatedBytes / 1024));
+        }
+        if (imageBytes != UNKNOWN) {
+            builder.append(String.format(" images %d KB", imageBytes / 1024));
+        }
+    }
+}
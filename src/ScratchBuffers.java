@@ -0,0 +1,73 @@
+/**
+ * Scratch arrays of the threads that run the strips of an operation.
+ * <p>
+ * Every thread gets its own arrays, which grow to the largest length requested and are then
+ * reused by every band and every call, so an operation that is applied band by band allocates
+ * nothing once its threads have warmed up. The arrays are not cleared between uses and may be
+ * longer than requested, so the length asked for has to be used instead of their length.
+ * </p>
+ * <p>
+ * An operation keeps its scratch buffers in a static field, so every instance of it shares the
+ * arrays of a thread, and a new instance for every image does not allocate them again. The
+ * arrays then live as long as the threads that used them. An index always holds arrays of the
+ * same type. Nested operations need scratch buffers of their own, since an index hands out the
+ * same array to every caller on a thread, so an operation must not run another instance of its
+ * own class while it holds its arrays.
+ * </p>
+ */
+public final class ScratchBuffers {
+    private final ThreadLocal<Object[]> mArrays;
+
+    /**
+     * Creates scratch buffers.
+     *
+     * @param count
+     *            The number of arrays every thread needs at the same time.
+     */
+    public ScratchBuffers(final int count) {
+        mArrays = new ThreadLocal<Object[]>() {
+            @Override
+            protected Object[] initialValue() {
+                return new Object[count];
+            }
+        };
+    }
+
+    /**
+     * Returns a scratch array of ints of the calling thread.
+     *
+     * @param index
+     *            The index of the array, from 0 up to the count of the buffers.
+     * @param length
+     *            The least length of the array.
+     * @return The array at the index, with undefined content.
+     */
+    public int[] getInts(int index, int length) {
+        Object[] arrays = mArrays.get();
+        int[] array = (int[]) arrays[index];
+        if (array == null || array.length < length) {
+            array = new int[length];
+            arrays[index] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Returns a scratch array of bytes of the calling thread.
+     *
+     * @param index
+     *            The index of the array, from 0 up to the count of the buffers.
+     * @param length
+     *            The least length of the array.
+     * @return The array at the index, with undefined content.
+     */
+    public byte[] getBytes(int index, int length) {
+        Object[] arrays = mArrays.get();
+        byte[] array = (byte[]) arrays[index];
+        if (array == null || array.length < length) {
+            array = new byte[length];
+            arrays[index] = array;
+        }
+        return array;
+    }
+}
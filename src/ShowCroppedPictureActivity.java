@@ -23,6 +23,7 @@ import com.qoppa.android.pdfViewer.fonts.StandardFontTF;
 
 
 import java.io.File;
+import java.util.concurrent.Future;
 
 public class ShowCroppedPictureActivity extends Activity {
     private static final String TAG = ShowCroppedPictureActivity.class.getSimpleName();
@@ -64,6 +65,11 @@ public class ShowCroppedPictureActivity extends Activity {
      * File object of the image we get our of our Intent
      */
     private File mImgFile;
+    /**
+     * The write of mImgFile that may still be running, mBitmap must not be recycled before it is
+     * done.
+     */
+    private Future<File> mPendingWrite;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -71,8 +77,15 @@ public class ShowCroppedPictureActivity extends Activity {
         setContentView(R.layout.activity_show_crop);
         mContext = this;
         mImgFile = new File(this.getIntent().getStringExtra("imagePath"));
-        if (mImgFile.exists()) {
+        // the processed image may still be being written, show it from memory
+        ImageHandoff handoff = ImageHandoff.take(mImgFile);
+        if (handoff != null) {
+            mBitmap = handoff.getBitmap();
+            mPendingWrite = handoff.getWrite();
+        } else if (mImgFile.exists()) {
             mBitmap = BitmapFactory.decodeFile(mImgFile.getAbsolutePath());
+        }
+        if (mBitmap != null) {
             mImageView = (ImageView) findViewById(R.id.image);
             mImageView.setImageBitmap(mBitmap);
         }
@@ -85,6 +98,11 @@ public class ShowCroppedPictureActivity extends Activity {
         mNewPictureButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (mPendingWrite != null) {
+                    // do not let the write bring the file back, the cancel waits for a rename
+                    // that is running, so the file is deleted after it
+                    mPendingWrite.cancel(true);
+                }
                 mBitmap = null;
                 mImageView.setImageBitmap(null);
                 mImgFile.delete();
@@ -99,7 +117,7 @@ public class ShowCroppedPictureActivity extends Activity {
         mCropImageButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                mBitmap.recycle();
+                recycleBitmap();
                 Intent intent = new Intent(mContext, CropActivity.class);
                 String path = mImgFile.getAbsolutePath().substring(0,
                         mImgFile.getAbsolutePath().length() - 12)
@@ -170,7 +188,7 @@ public class ShowCroppedPictureActivity extends Activity {
     @Override
     public void onBackPressed() {
         super.onBackPressed();
-        mBitmap.recycle();
+        recycleBitmap();
         Intent intent = new Intent(mContext, CropActivity.class);
         String path = mImgFile.getAbsolutePath().substring(0,
                 mImgFile.getAbsolutePath().length() - 12)
@@ -181,8 +199,21 @@ public class ShowCroppedPictureActivity extends Activity {
                 intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK).putExtra("imgpath", path));
     }
 
+    /**
+     * Gives the bitmap back to the pool of the scans, unless it is still being written. The
+     * garbage collector frees it then.
+     */
+    private void recycleBitmap() {
+        if (mPendingWrite == null || mPendingWrite.isDone()) {
+            BufferPool.getInstance().release(mBitmap);
+        }
+    }
+
     private File getPdf(String storePath) {
         PDFDocument pdf = null;
+        // the export is traced as a scan of its own, it can happen any number of times
+        ScanTrace.Scan scan = ScanTrace.getInstance().startScan();
+        scan.begin(ScanTrace.Stage.EXPORT_PDF);
 
         try {
             // this static allows the sdk to access font assets,
@@ -211,6 +242,8 @@ public class ShowCroppedPictureActivity extends Activity {
         } catch (Exception e) {
             Log.e("error", Log.getStackTraceString(e));
         }
+        scan.end(ScanTrace.Stage.EXPORT_PDF, mBitmap != null ? mBitmap.getByteCount() : 0);
+        scan.finish();
         File pdfFile = new File(storePath);
         return pdfFile;
     }
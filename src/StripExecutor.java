@@ -0,0 +1,163 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task over horizontal strips of an image in parallel and waits until all strips are
+ * done.
+ * <p>
+ * The strips come from a {@link StripPartitioner} and cover every row exactly once. The image
+ * can be split into more strips than there are threads: the calling thread and the helper
+ * threads keep taking the next strip that has not been started, so a thread that finishes early
+ * takes over work from the others.
+ * </p>
+ */
+public final class StripExecutor {
+
+    /**
+     * The work to do for one strip.
+     */
+    public interface StripTask {
+
+        /**
+         * Processes the rows of one strip.
+         *
+         * @param top
+         *            The first row of the strip.
+         * @param bottom
+         *            The row after the last row of the strip.
+         */
+        void run(int top, int bottom);
+    }
+
+    /**
+     * Runs every task on the calling thread, as one strip.
+     */
+    public static final StripExecutor SINGLE_THREADED = new StripExecutor(null, 1);
+
+    private final Executor mExecutor;
+    private final int mThreads;
+    private final StripPartitioner mPartitioner;
+
+    /**
+     * Creates a strip executor that uses one strip per thread.
+     *
+     * @param executor
+     *            The executor to run the strips on, at least {@code strips - 1} threads wide.
+     * @param strips
+     *            The number of strips to split an image into, usually the number of cores.
+     */
+    public StripExecutor(Executor executor, int strips) {
+        this(executor, strips, strips);
+    }
+
+    /**
+     * Creates a strip executor.
+     *
+     * @param executor
+     *            The executor to run the helper threads on, at least {@code threads - 1} threads
+     *            wide.
+     * @param threads
+     *            The number of threads that work on an image, including the calling thread.
+     * @param strips
+     *            The number of strips to split an image into, at least the number of threads.
+     */
+    public StripExecutor(Executor executor, int threads, int strips) {
+        if (threads < 1 || strips < threads || (executor == null && threads > 1)) {
+            throw new IllegalArgumentException("Cannot run " + strips + " strips on " + threads
+                    + " threads");
+        }
+        mExecutor = executor;
+        mThreads = threads;
+        mPartitioner = new StripPartitioner(strips);
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    public int getStrips() {
+        return mPartitioner.getStrips();
+    }
+
+    public StripPartitioner getPartitioner() {
+        return mPartitioner;
+    }
+
+    /**
+     * Runs a task over all rows of an image.
+     *
+     * @param height
+     *            The number of rows to split into strips.
+     * @param task
+     *            The task to run for every strip.
+     * @throws CancellationException
+     *             if the calling thread is interrupted while waiting for the strips. Strips that
+     *             have not been started by then are skipped.
+     */
+    public void execute(final int height, final StripTask task) {
+        final StripPartitioner partitioner = mPartitioner;
+        final int strips = partitioner.getStripCount(height);
+        if (strips == 1) {
+            task.run(0, height);
+            return;
+        }
+
+        final AtomicInteger nextStrip = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final Throwable[] failure = new Throwable[1];
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int strip;
+                while (!stopped.get() && !Thread.currentThread().isInterrupted()
+                        && (strip = nextStrip.getAndIncrement()) < strips) {
+                    try {
+                        task.run(partitioner.getTop(height, strip),
+                                partitioner.getBottom(height, strip));
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = t;
+                            }
+                        }
+                        stopped.set(true);
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(mThreads, strips) - 1;
+        final CountDownLatch done = new CountDownLatch(helpers);
+        for (int i = 0; i < helpers; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            stopped.set(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for the strips");
+        }
+        synchronized (failure) {
+            if (failure[0] instanceof RuntimeException) {
+                throw (RuntimeException) failure[0];
+            } else if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            }
+        }
+    }
+}
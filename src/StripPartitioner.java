@@ -0,0 +1,74 @@
+/**
+ * Splits the rows of an image into horizontal strips.
+ * <p>
+ * The strips cover every row exactly once and never overlap, for any height and number of
+ * strips. When the height is not a multiple of the number of strips, the remainder rows are
+ * spread over the strips, so no strip is more than one row higher than another. A strip that
+ * writes its rows at {@code top * width} of a shared output buffer therefore lands at its final
+ * offset, and the strips need no stitching afterwards.
+ * </p>
+ */
+public final class StripPartitioner {
+    private final int mStrips;
+
+    /**
+     * Creates a partitioner.
+     *
+     * @param strips
+     *            The number of strips to split an image into, usually the number of cores.
+     */
+    public StripPartitioner(int strips) {
+        if (strips < 1) {
+            throw new IllegalArgumentException("Cannot split an image into " + strips
+                    + " strips");
+        }
+        mStrips = strips;
+    }
+
+    /**
+     * @return The number of strips a high enough image is split into.
+     */
+    public int getStrips() {
+        return mStrips;
+    }
+
+    /**
+     * Returns the number of strips an image is split into. An image with fewer rows than strips
+     * gets one strip per row, and an empty image one empty strip.
+     *
+     * @param height
+     *            The number of rows of the image.
+     * @return The number of strips, at least one.
+     */
+    public int getStripCount(int height) {
+        return Math.max(1, Math.min(mStrips, height));
+    }
+
+    /**
+     * Returns the first row of a strip. The last row of a strip is the row before the top of the
+     * next one.
+     *
+     * @param height
+     *            The number of rows of the image.
+     * @param strip
+     *            The index of the strip, from 0 up to and including
+     *            {@link #getStripCount(int)}, where that last index gives the height.
+     * @return The first row of the strip.
+     */
+    public int getTop(int height, int strip) {
+        return (int) ((long) height * strip / getStripCount(height));
+    }
+
+    /**
+     * Returns the row after the last row of a strip.
+     *
+     * @param height
+     *            The number of rows of the image.
+     * @param strip
+     *            The index of the strip.
+     * @return The row after the last row of the strip.
+     */
+    public int getBottom(int height, int strip) {
+        return getTop(height, strip + 1);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Splits an image into rectangular tiles and visits them in row-major order.
+ * <p>
+ * Pixel buffers are stored row by row, so walking an image column by column touches a new cache
+ * line for every pixel. Filters that iterate through the tiles of a Tiling, and row by row inside
+ * each tile, keep the pixels they work on in the cache. The tile size is configurable so it can
+ * be matched to the cache of the device.
+ * </p>
+ */
+public final class Tiling {
+    /**
+     * The default number of bytes a tile may occupy, the size of a typical L1 data cache.
+     */
+    public static final int DEFAULT_CACHE_BYTES = 32 * 1024;
+
+    /**
+     * Callback for every tile of an image.
+     */
+    public interface TileVisitor {
+
+        /**
+         * Visits one tile. The bounds are clipped to the image.
+         *
+         * @param left
+         *            The first column of the tile.
+         * @param top
+         *            The first row of the tile.
+         * @param right
+         *            The column after the last column of the tile.
+         * @param bottom
+         *            The row after the last row of the tile.
+         */
+        void visitTile(int left, int top, int right, int bottom);
+    }
+
+    private final int mTileWidth;
+    private final int mTileHeight;
+
+    /**
+     * Creates a tiling with a fixed tile size.
+     *
+     * @param tileWidth
+     *            The width of a tile in pixels.
+     * @param tileHeight
+     *            The height of a tile in pixels.
+     */
+    public Tiling(int tileWidth, int tileHeight) {
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileWidth + "x"
+                    + tileHeight);
+        }
+        mTileWidth = tileWidth;
+        mTileHeight = tileHeight;
+    }
+
+    /**
+     * Creates a tiling of full-width bands. This is the best layout for point operations, since
+     * every band is one contiguous range of the pixel buffer.
+     *
+     * @param width
+     *            The width of the image.
+     * @param cacheBytes
+     *            The number of bytes a band of ARGB pixels may occupy.
+     * @return The tiling.
+     */
+    public static Tiling rows(int width, int cacheBytes) {
+        return new Tiling(Math.max(1, width), Math.max(1, cacheBytes / 4 / Math.max(1, width)));
+    }
+
+    /**
+     * Creates a tiling of square tiles. This is the best layout for neighbourhood operations,
+     * since the rows above and below a tile are still in the cache when they are read again.
+     *
+     * @param cacheBytes
+     *            The number of bytes a tile of ARGB pixels may occupy.
+     * @return The tiling.
+     */
+    public static Tiling squares(int cacheBytes) {
+        int side = Math.max(1, (int) Math.sqrt(cacheBytes / 4));
+        return new Tiling(side, side);
+    }
+
+    public int getTileWidth() {
+        return mTileWidth;
+    }
+
+    public int getTileHeight() {
+        return mTileHeight;
+    }
+
+    /**
+     * Visits all tiles of an image, row of tiles by row of tiles.
+     *
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param visitor
+     *            The visitor to call for every tile.
+     */
+    public void forEachTile(int width, int height, TileVisitor visitor) {
+        forEachTile(0, 0, width, height, visitor);
+    }
+
+    /**
+     * Visits all tiles of a region of an image, row of tiles by row of tiles.
+     *
+     * @param left
+     *            The first column of the region.
+     * @param top
+     *            The first row of the region.
+     * @param right
+     *            The column after the last column of the region.
+     * @param bottom
+     *            The row after the last row of the region.
+     * @param visitor
+     *            The visitor to call for every tile.
+     */
+    public void forEachTile(int left, int top, int right, int bottom, TileVisitor visitor) {
+        for (int y = top; y < bottom; y += mTileHeight) {
+            int tileBottom = Math.min(y + mTileHeight, bottom);
+            for (int x = left; x < right; x += mTileWidth) {
+                visitor.visitTile(x, y, Math.min(x + mTileWidth, right), tileBottom);
+            }
+        }
+    }
+}
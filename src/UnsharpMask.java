@@ -0,0 +1,222 @@
+/**
+ * Sharpens an image by adding the difference between the image and a blurred copy of it.
+ * <p>
+ * The blur is a {@link BoxBlur}. Every band is blurred into the output rows, and the difference
+ * is added while the band is still in the cache, so a blurred copy of the whole image never
+ * exists. Differences smaller than the threshold are left alone, so the noise of flat areas,
+ * like the paper of a scan, is not amplified.
+ * </p>
+ * <p>
+ * A {@link GreyImage} is sharpened in place by {@link #sharpen(GreyImage, StripExecutor)}, band
+ * by band like a bitmap, which gives the same values as sharpening a grey bitmap.
+ * </p>
+ */
+public final class UnsharpMask implements NeighbourhoodOperation {
+    /**
+     * The number of fraction bits of the amount.
+     */
+    private static final int AMOUNT_SHIFT = 8;
+    /**
+     * The number of grey values a band of a {@link GreyImage} aims for.
+     */
+    private static final int BAND_PIXELS = 64 * 1024;
+    /**
+     * The least height of a band of a {@link GreyImage} in radii, so the rows read around a band
+     * stay a small part of it.
+     */
+    private static final int MIN_BAND_RADII = 8;
+    /**
+     * The window, band and pending band of every strip of a {@link GreyImage}, shared by all
+     * unsharp masks.
+     */
+    private static final ScratchBuffers SCRATCH = new ScratchBuffers(3);
+
+    private final BoxBlur mBlur;
+    /**
+     * The amount in fixed point.
+     */
+    private final int mAmount;
+    private final int mThreshold;
+
+    /**
+     * Creates an unsharp mask.
+     *
+     * @param amount
+     *            How much of the difference is added, 1 doubles the contrast of the edges.
+     * @param radius
+     *            The radius of the box blur, about the width of the edges to sharpen.
+     * @param threshold
+     *            The smallest difference of a channel that is sharpened, from 0 to 255.
+     */
+    public UnsharpMask(double amount, int radius, int threshold) {
+        if (amount < 0 || threshold < 0 || threshold > 255) {
+            throw new IllegalArgumentException("The amount must be positive and the threshold "
+                    + "between 0 and 255");
+        }
+        mBlur = new BoxBlur(radius);
+        mAmount = (int) Math.round(amount * (1 << AMOUNT_SHIFT));
+        mThreshold = threshold;
+    }
+
+    @Override
+    public int getRadius() {
+        return mBlur.getRadius();
+    }
+
+    /**
+     * Sharpens a greyscale image in place, band by band within parallel strips. Every band is
+     * written back once the next band has read the rows around it, and the rows around every
+     * strip are copied before any strip starts, since the neighbouring strips overwrite them.
+     *
+     * @param image
+     *            The image to sharpen.
+     * @param executor
+     *            The executor to run the strips on.
+     */
+    public void sharpen(GreyImage image, StripExecutor executor) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final byte[] pixels = image.getPixels();
+        final int radius = getRadius();
+        final int rows = Math.max(Math.max(1, BAND_PIXELS / Math.max(1, width)),
+                MIN_BAND_RADII * radius);
+        final StripPartitioner partitioner = executor.getPartitioner();
+        final int strips = partitioner.getStripCount(height);
+
+        final byte[][] above = new byte[strips][];
+        final byte[][] below = new byte[strips][];
+        for (int strip = 0; strip < strips; strip++) {
+            int top = partitioner.getTop(height, strip);
+            int bottom = partitioner.getBottom(height, strip);
+            int aboveTop = Math.max(0, top - radius);
+            int belowBottom = Math.min(height, bottom + radius);
+            above[strip] = new byte[(top - aboveTop) * width];
+            below[strip] = new byte[(belowBottom - bottom) * width];
+            System.arraycopy(pixels, aboveTop * width, above[strip], 0, above[strip].length);
+            System.arraycopy(pixels, bottom * width, below[strip], 0, below[strip].length);
+        }
+
+        executor.execute(height, new StripExecutor.StripTask() {
+            @Override
+            public void run(int stripTop, int stripBottom) {
+                int strip = 0;
+                while (partitioner.getTop(height, strip) != stripTop) {
+                    strip++;
+                }
+                byte[] window = SCRATCH.getBytes(0, (rows + 2 * radius) * width);
+                byte[] band = SCRATCH.getBytes(1, rows * width);
+                byte[] pending = SCRATCH.getBytes(2, rows * width);
+                int pendingTop = stripTop;
+
+                for (int top = stripTop; top < stripBottom; top += rows) {
+                    int bottom = Math.min(top + rows, stripBottom);
+                    int windowTop = Math.max(0, top - radius);
+                    int windowBottom = Math.min(height, bottom + radius);
+                    int readTop = Math.max(windowTop, stripTop);
+                    int readBottom = Math.min(windowBottom, stripBottom);
+                    if (windowTop < stripTop) {
+                        System.arraycopy(above[strip], 0, window, 0, above[strip].length);
+                    }
+                    System.arraycopy(pixels, readTop * width, window,
+                            (readTop - windowTop) * width, (readBottom - readTop) * width);
+                    if (windowBottom > stripBottom) {
+                        System.arraycopy(below[strip], 0, window,
+                                (stripBottom - windowTop) * width,
+                                (windowBottom - stripBottom) * width);
+                    }
+                    apply(window, windowTop, band, top, width, height, top, bottom);
+
+                    // this band has read the rows of the previous one, which can be written now
+                    if (top > stripTop) {
+                        System.arraycopy(pending, 0, pixels, pendingTop * width,
+                                (top - pendingTop) * width);
+                    }
+                    byte[] written = pending;
+                    pending = band;
+                    band = written;
+                    pendingTop = top;
+                }
+                System.arraycopy(pending, 0, pixels, pendingTop * width,
+                        (stripBottom - pendingTop) * width);
+            }
+        });
+    }
+
+    /**
+     * Sharpens a band of grey values, like
+     * {@link #apply(int[], int, int[], int, int, int, int, int)} sharpens a band of pixels.
+     *
+     * @param src
+     *            The grey values of the input rows, one byte per pixel, starting with row
+     *            {@code srcTop}. Contains at least {@link #getRadius()} rows above and below the
+     *            band, as far as the image reaches.
+     * @param srcTop
+     *            The row of the image the first row of {@code src} belongs to.
+     * @param dst
+     *            The grey values of the output rows, starting with row {@code dstTop}.
+     * @param dstTop
+     *            The row of the image the first row of {@code dst} belongs to.
+     * @param width
+     *            The width of the image.
+     * @param height
+     *            The height of the image.
+     * @param top
+     *            The first row of the band.
+     * @param bottom
+     *            The row after the last row of the band.
+     */
+    public void apply(byte[] src, int srcTop, byte[] dst, int dstTop, int width, int height,
+            int top, int bottom) {
+        mBlur.apply(src, srcTop, dst, dstTop, width, height, top, bottom);
+
+        final int amount = mAmount;
+        final int threshold = mThreshold;
+        final int half = 1 << (AMOUNT_SHIFT - 1);
+        for (int y = top; y < bottom; y++) {
+            int in = (y - srcTop) * width;
+            int out = (y - dstTop) * width;
+            for (int x = 0; x < width; x++) {
+                int value = src[in + x] & 0xff;
+                int diff = value - (dst[out + x] & 0xff);
+                if (diff >= threshold || -diff >= threshold) {
+                    value = PointOperations.clamp(value + ((diff * amount + half) >> AMOUNT_SHIFT));
+                }
+                dst[out + x] = (byte) value;
+            }
+        }
+    }
+
+    @Override
+    public void apply(int[] src, int srcTop, int[] dst, int dstTop, int width, int height,
+            int top, int bottom) {
+        mBlur.apply(src, srcTop, dst, dstTop, width, height, top, bottom);
+
+        final int amount = mAmount;
+        final int threshold = mThreshold;
+        final int half = 1 << (AMOUNT_SHIFT - 1);
+        for (int y = top; y < bottom; y++) {
+            int in = (y - srcTop) * width;
+            int out = (y - dstTop) * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = src[in + x];
+                int blurred = dst[out + x];
+                int R = (pixel >> 16) & 0xff;
+                int G = (pixel >> 8) & 0xff;
+                int B = pixel & 0xff;
+                int diffR = R - ((blurred >> 16) & 0xff);
+                int diffG = G - ((blurred >> 8) & 0xff);
+                int diffB = B - (blurred & 0xff);
+                if (diffR >= threshold || -diffR >= threshold) {
+                    R = PointOperations.clamp(R + ((diffR * amount + half) >> AMOUNT_SHIFT));
+                }
+                if (diffG >= threshold || -diffG >= threshold) {
+                    G = PointOperations.clamp(G + ((diffG * amount + half) >> AMOUNT_SHIFT));
+                }
+                if (diffB >= threshold || -diffB >= threshold) {
+                    B = PointOperations.clamp(B + ((diffB * amount + half) >> AMOUNT_SHIFT));
+                }
+                dst[out + x] = (pixel & 0xff000000) | (R << 16) | (G << 8) | B;
+            }
+        }
+    }
+}